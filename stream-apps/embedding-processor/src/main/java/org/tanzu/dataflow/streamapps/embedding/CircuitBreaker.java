@@ -0,0 +1,128 @@
+package org.tanzu.dataflow.streamapps.embedding;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Count-based circuit breaker for calls to the embedding provider.
+ * <p>
+ * While closed it tracks the outcome of the last {@code windowSize} calls and opens once at least
+ * half the window has been seen and the failure rate reaches {@code failureRateThreshold}. After
+ * {@code openMs} it lets a single trial call through (half-open): success closes the circuit,
+ * failure opens it again. Calls rejected with HTTP 429 are neither successes nor failures, since
+ * the dispatcher's rate limiter already handles them.
+ * <p>
+ * Publishes {@code embedding.circuit.state} (gauge: 0 closed, 1 half-open, 2 open) and
+ * {@code embedding.circuit.rejected} (counter).
+ */
+public class CircuitBreaker {
+
+    enum State { CLOSED, HALF_OPEN, OPEN }
+
+    private static final long HALF_OPEN_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final EmbeddingProperties.Resilience properties;
+    private final LongSupplier clock;
+    private final boolean[] window;
+    private final Counter rejected;
+    private State state = State.CLOSED;
+    private int calls;
+    private int failures;
+    private int next;
+    private long openUntil;
+    private boolean trialInFlight;
+
+    public CircuitBreaker(EmbeddingProperties.Resilience properties, MeterRegistry meterRegistry) {
+        this(properties, meterRegistry, System::nanoTime);
+    }
+
+    CircuitBreaker(EmbeddingProperties.Resilience properties, MeterRegistry meterRegistry, LongSupplier clock) {
+        this.properties = properties;
+        this.clock = clock;
+        this.window = new boolean[properties.windowSize()];
+        Gauge.builder("embedding.circuit.state", this, breaker -> breaker.state().ordinal()).register(meterRegistry);
+        this.rejected = meterRegistry.counter("embedding.circuit.rejected");
+    }
+
+    /**
+     * Returns 0 if a call may proceed now, otherwise the nanoseconds to wait before asking again.
+     */
+    public synchronized long tryAcquire() {
+        if (state == State.OPEN && clock.getAsLong() - openUntil >= 0) {
+            state = State.HALF_OPEN;
+            trialInFlight = false;
+        }
+        return switch (state) {
+            case CLOSED -> 0;
+            case HALF_OPEN -> {
+                if (!trialInFlight) {
+                    trialInFlight = true;
+                    yield 0;
+                }
+                rejected.increment();
+                yield HALF_OPEN_POLL_NANOS;
+            }
+            case OPEN -> {
+                rejected.increment();
+                yield Math.max(1, openUntil - clock.getAsLong());
+            }
+        };
+    }
+
+    public synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            close();
+        } else if (state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            open();
+        } else if (state == State.CLOSED) {
+            record(true);
+            if (calls >= Math.max(1, window.length / 2) && failures >= properties.failureRateThreshold() * calls) {
+                open();
+            }
+        }
+    }
+
+    /**
+     * Releases a half-open trial whose outcome says nothing about provider health.
+     */
+    public synchronized void onIgnored() {
+        trialInFlight = false;
+    }
+
+    public synchronized State state() {
+        return state;
+    }
+
+    private void record(boolean failure) {
+        if (calls == window.length) {
+            if (window[next]) failures--;
+        } else {
+            calls++;
+        }
+        window[next] = failure;
+        if (failure) failures++;
+        next = (next + 1) % window.length;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openUntil = clock.getAsLong() + TimeUnit.MILLISECONDS.toNanos(properties.openMs());
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        calls = 0;
+        failures = 0;
+        next = 0;
+    }
+}
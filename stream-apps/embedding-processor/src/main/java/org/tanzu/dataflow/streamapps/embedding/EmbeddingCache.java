@@ -0,0 +1,259 @@
+package org.tanzu.dataflow.streamapps.embedding;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.text.Normalizer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.tanzu.dataflow.streamapps.common.Texts;
+
+/**
+ * Cache of embeddings keyed by the SHA-256 of the normalized text (NFC, whitespace collapsed)
+ * together with {@code embedding.provider}, {@code embedding.model} and {@code embedding.dimensions}.
+ * Keys are hashed before the cache lock is taken, which only guards the maps and the file.
+ * <p>
+ * Lookups go to an in-heap LRU tier first and then to a memory-mapped file of fixed-size slots,
+ * each holding a 32-byte key followed by the vector as little-endian float32. The file keeps
+ * {@code embedding.cache.disk-entries} slots and, when full, evicts in approximate LRU order with
+ * the CLOCK algorithm: a hand sweeps the slots, and an entry hit since the hand last passed it is
+ * spared once. Its index is rebuilt from the slots at startup, so cached embeddings survive
+ * restarts as long as {@code embedding.cache.directory} does. A file written for a different
+ * dimension count or capacity is discarded. The file is locked while open: an instance that finds
+ * it locked by another (on a shared volume) keeps only the heap tier rather than overwriting slots
+ * the other instance may be reading.
+ * <p>
+ * Publishes {@code embedding.cache.hits} (tagged with the {@code tier} that answered) and
+ * {@code embedding.cache.misses}.
+ */
+public class EmbeddingCache implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(EmbeddingCache.class);
+
+    private static final int MAGIC = 0x454d4243;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 64;
+    private static final int KEY_BYTES = 32;
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final EmbeddingProperties properties;
+    private final Map<Key, float[]> memory;
+    private final Map<Key, Integer> slots = new HashMap<>();
+    private final BitSet referenced = new BitSet();
+    private final Counter memoryHits;
+    private final Counter diskHits;
+    private final Counter misses;
+
+    private FileChannel channel;
+    private MappedByteBuffer file;
+    private int slotBytes;
+    private int capacity;
+    private int next;
+
+    public EmbeddingCache(EmbeddingProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        int memoryEntries = properties.cache().memoryEntries();
+        this.memory = new LinkedHashMap<>(Math.min(memoryEntries, 1 << 16), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, float[]> eldest) {
+                return size() > memoryEntries;
+            }
+        };
+        this.memoryHits = meterRegistry.counter("embedding.cache.hits", "tier", "memory");
+        this.diskHits = meterRegistry.counter("embedding.cache.hits", "tier", "disk");
+        this.misses = meterRegistry.counter("embedding.cache.misses");
+        if (properties.cache().enabled()) {
+            open(Path.of(properties.cache().directory()));
+        }
+    }
+
+    /**
+     * Returns the cached embedding of {@code text}, or {@code null} when it has to be computed.
+     */
+    public float[] get(String text) {
+        if (!properties.cache().enabled()) {
+            return null;
+        }
+        Key key = keyOf(text);
+        synchronized (this) {
+            return get(key);
+        }
+    }
+
+    private float[] get(Key key) {
+        Integer slot = slots.get(key);
+        if (slot != null) {
+            // Hot entries are answered from the heap, so count those hits against the disk slot too.
+            referenced.set(slot);
+        }
+        float[] embedding = memory.get(key);
+        if (embedding != null) {
+            memoryHits.increment();
+            return embedding;
+        }
+        if (slot != null) {
+            embedding = new float[properties.dimensions()];
+            vectorOf(slot).asFloatBuffer().get(embedding);
+            memory.put(key, embedding);
+            diskHits.increment();
+            return embedding;
+        }
+        misses.increment();
+        return null;
+    }
+
+    public void put(String text, float[] embedding) {
+        if (!properties.cache().enabled()) {
+            return;
+        }
+        Key key = keyOf(text);
+        synchronized (this) {
+            put(key, embedding);
+        }
+    }
+
+    private void put(Key key, float[] embedding) {
+        memory.put(key, embedding);
+        if (file == null || embedding.length != properties.dimensions() || slots.containsKey(key)) {
+            return;
+        }
+
+        int slot = next;
+        for (int swept = 0; referenced.get(slot) && swept < capacity; swept++) {
+            referenced.clear(slot);
+            slot = (slot + 1) % capacity;
+        }
+        Key evicted = readKey(slot);
+        if (evicted != null) {
+            slots.remove(evicted);
+        }
+        // Clear the key first so a slot is never read back with a half-written vector.
+        writeKey(slot, new Key(0, 0, 0, 0));
+        vectorOf(slot).asFloatBuffer().put(embedding);
+        writeKey(slot, key);
+        slots.put(key, slot);
+        next = (slot + 1) % capacity;
+        file.putInt(16, next);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            file.force();
+            channel.close();
+            channel = null;
+            file = null;
+        }
+    }
+
+    Key keyOf(String text) {
+        String normalized = WHITESPACE.matcher(Normalizer.normalize(text, Normalizer.Form.NFC)).replaceAll(" ").strip();
+        MessageDigest digest = Texts.sha256();
+        digest.update(normalized.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(properties.provider().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(properties.model().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        ByteBuffer hash = ByteBuffer.wrap(digest.digest(Integer.toString(properties.dimensions())
+                .getBytes(StandardCharsets.UTF_8)));
+        return new Key(hash.getLong(), hash.getLong(), hash.getLong(), hash.getLong());
+    }
+
+    private void open(Path directory) {
+        slotBytes = KEY_BYTES + properties.dimensions() * Float.BYTES;
+        capacity = (int) Math.min(properties.cache().diskEntries(), (Integer.MAX_VALUE - HEADER_BYTES) / slotBytes);
+        if (capacity < properties.cache().diskEntries()) {
+            log.warn("embedding.cache.disk-entries={} exceeds a 2GB mapping, using {}",
+                    properties.cache().diskEntries(), capacity);
+        }
+        long size = HEADER_BYTES + (long) capacity * slotBytes;
+        Path path = directory.resolve("embeddings-" + properties.dimensions() + ".cache");
+        if (directory.toAbsolutePath().startsWith(Path.of(System.getProperty("java.io.tmpdir")).toAbsolutePath())) {
+            log.warn("Embedding cache {} is in the temp directory and is lost when the instance restarts or is"
+                    + " restaged; set embedding.cache.directory to a persistent volume", path);
+        }
+        try {
+            Files.createDirectories(directory);
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (!lock()) {
+                log.warn("Embedding cache {} is in use by another instance; caching on the heap only. Give each"
+                        + " instance its own embedding.cache.directory to share the disk tier", path);
+                channel.close();
+                channel = null;
+                return;
+            }
+            ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            boolean compatible = channel.size() == size && header.getInt(0) == MAGIC && header.getInt(4) == VERSION
+                    && header.getInt(8) == properties.dimensions() && header.getInt(12) == capacity;
+            if (!compatible) {
+                channel.truncate(0);
+            }
+            file = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            file.order(ByteOrder.LITTLE_ENDIAN);
+            if (!compatible) {
+                file.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, properties.dimensions()).putInt(12, capacity).putInt(16, 0);
+            }
+            next = file.getInt(16);
+            for (int slot = 0; slot < capacity; slot++) {
+                Key key = readKey(slot);
+                if (key != null) {
+                    slots.put(key, slot);
+                }
+            }
+            log.info("Opened embedding cache {} with {} of {} entries", path, slots.size(), capacity);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open embedding cache " + path, e);
+        }
+    }
+
+    private boolean lock() throws IOException {
+        try {
+            return channel.tryLock() != null;
+        } catch (OverlappingFileLockException e) {
+            return false;
+        }
+    }
+
+    private ByteBuffer vectorOf(int slot) {
+        return file.slice(HEADER_BYTES + slot * slotBytes + KEY_BYTES, slotBytes - KEY_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private Key readKey(int slot) {
+        int offset = HEADER_BYTES + slot * slotBytes;
+        Key key = new Key(file.getLong(offset), file.getLong(offset + 8), file.getLong(offset + 16), file.getLong(offset + 24));
+        return key.isEmpty() ? null : key;
+    }
+
+    private void writeKey(int slot, Key key) {
+        int offset = HEADER_BYTES + slot * slotBytes;
+        file.putLong(offset, key.a()).putLong(offset + 8, key.b()).putLong(offset + 16, key.c()).putLong(offset + 24, key.d());
+    }
+
+    record Key(long a, long b, long c, long d) {
+        boolean isEmpty() {
+            return a == 0 && b == 0 && c == 0 && d == 0;
+        }
+    }
+}
@@ -1,24 +1,58 @@
 package org.tanzu.dataflow.streamapps.embedding;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.function.Function;
 
+import io.micrometer.core.instrument.MeterRegistry;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.springframework.ai.embedding.EmbeddingModel;
-import org.springframework.ai.embedding.EmbeddingRequest;
-import org.springframework.ai.embedding.EmbeddingResponse;
+import org.springframework.ai.retry.autoconfigure.SpringAiRetryProperties;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.cloud.stream.config.ListenerContainerCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.support.MessageBuilder;
 
+import org.tanzu.dataflow.streamapps.common.BatchConsumers;
+import org.tanzu.dataflow.streamapps.common.ChunkBatch;
+import org.tanzu.dataflow.streamapps.common.EmbeddedText;
+import org.tanzu.dataflow.streamapps.common.VectorMessageConverter;
+
 /**
  * Spring Cloud Stream function that converts text into vector embeddings.
  * Accepts a text payload and emits the embedding as a float array.
- * Uses Spring AI's {@link EmbeddingModel} abstraction, configured for OpenAI by default.
+ * Uses Spring AI's {@link EmbeddingModel} abstraction, configured for OpenAI by default; with
+ * {@code embedding.provider=onnx} the {@link OnnxEmbeddingModel} embeds in-process instead.
  * The API key is injected via CredHub service binding (EMBEDDING_API_KEY in VCAP_SERVICES).
+ * <p>
+ * {@code generateEmbeddedText} is an alternative function that emits an {@link EmbeddedText}
+ * carrying both the text and its vector, for sinks that store precomputed embeddings.
+ * <p>
+ * {@code generateEmbeddingBatch} and {@code generateEmbeddedTextBatch} are their batching
+ * counterparts: they receive a batch of messages assembled by the RabbitMQ binder, embed it with
+ * as few multi-input requests as the {@link EmbeddingProperties.Batch} bounds allow, and emit one
+ * message per input with that input's headers preserved.
+ * <p>
+ * {@code generateEmbeddedTextFromChunkBatch} takes the {@link ChunkBatch} messages of the chunker's
+ * {@code chunkTextBatch} function, embeds each batch like the batching functions do, and emits one
+ * {@link EmbeddedText} per chunk with the batch headers and the chunk's {@code chunk-index}.
+ * <p>
+ * All functions send their requests through the {@link EmbeddingDispatcher}, which keeps them within
+ * the provider's request and token quotas, backs off on HTTP 429, and bounds tail latency with
+ * deadlines, hedged requests and a circuit breaker. The single-message functions consume with
+ * {@code embedding.dispatcher.max-concurrency} listener threads, so the dispatcher sees as many
+ * concurrent requests as the batching functions send. Texts already embedded
+ * with the same model and dimensions are answered from the {@link EmbeddingCache}.
  */
 @Configuration
 @EnableConfigurationProperties(EmbeddingProperties.class)
@@ -26,25 +60,206 @@ public class EmbeddingConfiguration {
 
     private static final Logger log = LoggerFactory.getLogger(EmbeddingConfiguration.class);
 
+    @Bean
+    @ConditionalOnProperty(name = "embedding.provider", havingValue = "onnx")
+    public OnnxEmbeddingModel onnxEmbeddingModel(EmbeddingProperties properties, MeterRegistry meterRegistry) {
+        EmbeddingProperties.Onnx onnx = properties.onnx();
+        if (onnx.modelPath() == null || onnx.modelPath().isBlank()) {
+            throw new IllegalStateException("embedding.onnx.model-path must be set when embedding.provider=onnx");
+        }
+        if (onnx.tokenizerPath() == null || onnx.tokenizerPath().isBlank()) {
+            throw new IllegalStateException("embedding.onnx.tokenizer-path must be set when embedding.provider=onnx");
+        }
+        return new OnnxEmbeddingModel(onnx, meterRegistry);
+    }
+
+    @Bean
+    public RateLimitErrorHandler rateLimitErrorHandler(SpringAiRetryProperties retryProperties) {
+        return new RateLimitErrorHandler(retryProperties);
+    }
+
+    @Bean
+    public EmbeddingDispatcher embeddingDispatcher(EmbeddingModel embeddingModel, EmbeddingProperties properties,
+            MeterRegistry meterRegistry) {
+        return new EmbeddingDispatcher(embeddingModel, properties.dispatcher(), properties.resilience(), meterRegistry);
+    }
+
+    /**
+     * Delivers each batch of the batching functions at most {@code embedding.batch.linger-ms} after
+     * its first message; see {@link BatchConsumers#lingerCustomizer(long)}.
+     */
+    @Bean
+    public ListenerContainerCustomizer<MessageListenerContainer> batchLingerCustomizer(EmbeddingProperties properties) {
+        return BatchConsumers.lingerCustomizer(properties.batch().lingerMs());
+    }
+
+    @Bean
+    public EmbeddingCache embeddingCache(EmbeddingProperties properties, MeterRegistry meterRegistry) {
+        return new EmbeddingCache(properties, meterRegistry);
+    }
+
     @Bean
     public Function<Message<String>, Message<float[]>> generateEmbedding(
-            EmbeddingModel embeddingModel, EmbeddingProperties properties) {
+            EmbeddingDispatcher dispatcher, EmbeddingCache cache, EmbeddingProperties properties) {
         return message -> {
-            String text = message.getPayload();
-            log.debug("Generating embedding for {} characters using model={}, dimensions={}",
-                    text.length(), properties.model(), properties.dimensions());
+            float[] embedding = embed(dispatcher, cache, message.getPayload(), properties);
 
-            EmbeddingResponse response = embeddingModel.call(
-                    new EmbeddingRequest(java.util.List.of(text), null));
+            return MessageBuilder.withPayload(embedding)
+                    .copyHeaders(message.getHeaders())
+                    .setHeader(VectorMessageConverter.MODEL_HEADER, properties.model())
+                    .setHeader(VectorMessageConverter.DIMENSIONS_HEADER, embedding.length)
+                    .build();
+        };
+    }
 
-            float[] embedding = response.getResult().getOutput();
-            log.debug("Generated embedding with {} dimensions", embedding.length);
+    @Bean
+    public Function<Message<String>, Message<EmbeddedText>> generateEmbeddedText(
+            EmbeddingDispatcher dispatcher, EmbeddingCache cache, EmbeddingProperties properties) {
+        return message -> {
+            String text = message.getPayload();
+            float[] embedding = embed(dispatcher, cache, text, properties);
 
-            return MessageBuilder.withPayload(embedding)
+            return MessageBuilder.withPayload(new EmbeddedText(text, embedding))
                     .copyHeaders(message.getHeaders())
-                    .setHeader("embedding-model", properties.model())
-                    .setHeader("embedding-dimensions", embedding.length)
+                    .setHeader(VectorMessageConverter.MODEL_HEADER, properties.model())
+                    .setHeader(VectorMessageConverter.DIMENSIONS_HEADER, embedding.length)
                     .build();
         };
     }
+
+    @Bean
+    public Function<Message<List<String>>, List<Message<float[]>>> generateEmbeddingBatch(
+            EmbeddingDispatcher dispatcher, EmbeddingCache cache, EmbeddingProperties properties) {
+        return message -> {
+            List<String> texts = message.getPayload();
+            List<Map<String, Object>> headers = BatchConsumers.batchedHeaders(message, texts.size());
+            List<float[]> embeddings = embedBatch(dispatcher, cache, texts, properties);
+
+            List<Message<float[]>> messages = new ArrayList<>(texts.size());
+            for (int i = 0; i < texts.size(); i++) {
+                messages.add(MessageBuilder.withPayload(embeddings.get(i))
+                        .copyHeaders(headers.get(i))
+                        .setHeader(VectorMessageConverter.MODEL_HEADER, properties.model())
+                        .setHeader(VectorMessageConverter.DIMENSIONS_HEADER, embeddings.get(i).length)
+                        .build());
+            }
+            return messages;
+        };
+    }
+
+    @Bean
+    public Function<Message<List<String>>, List<Message<EmbeddedText>>> generateEmbeddedTextBatch(
+            EmbeddingDispatcher dispatcher, EmbeddingCache cache, EmbeddingProperties properties) {
+        return message -> {
+            List<String> texts = message.getPayload();
+            List<Map<String, Object>> headers = BatchConsumers.batchedHeaders(message, texts.size());
+            List<float[]> embeddings = embedBatch(dispatcher, cache, texts, properties);
+
+            List<Message<EmbeddedText>> messages = new ArrayList<>(texts.size());
+            for (int i = 0; i < texts.size(); i++) {
+                messages.add(MessageBuilder.withPayload(new EmbeddedText(texts.get(i), embeddings.get(i)))
+                        .copyHeaders(headers.get(i))
+                        .setHeader(VectorMessageConverter.MODEL_HEADER, properties.model())
+                        .setHeader(VectorMessageConverter.DIMENSIONS_HEADER, embeddings.get(i).length)
+                        .build());
+            }
+            return messages;
+        };
+    }
+
+    @Bean
+    public Function<Message<ChunkBatch>, List<Message<EmbeddedText>>> generateEmbeddedTextFromChunkBatch(
+            EmbeddingDispatcher dispatcher, EmbeddingCache cache, EmbeddingProperties properties) {
+        return message -> {
+            ChunkBatch batch = message.getPayload();
+            List<Map<String, Object>> headers = batch.chunkHeaders(message.getHeaders());
+            List<float[]> embeddings = embedBatch(dispatcher, cache, batch.chunks(), properties);
+
+            List<Message<EmbeddedText>> messages = new ArrayList<>(batch.chunks().size());
+            for (int i = 0; i < batch.chunks().size(); i++) {
+                messages.add(MessageBuilder.withPayload(new EmbeddedText(batch.chunks().get(i), embeddings.get(i)))
+                        .copyHeaders(headers.get(i))
+                        .setHeader(VectorMessageConverter.MODEL_HEADER, properties.model())
+                        .setHeader(VectorMessageConverter.DIMENSIONS_HEADER, embeddings.get(i).length)
+                        .build());
+            }
+            return messages;
+        };
+    }
+
+    /**
+     * Splits texts into consecutive embedding requests holding at most {@code maxInputs} inputs
+     * and at most {@code maxTokens} estimated tokens. A single text above the token budget is
+     * sent on its own rather than rejected.
+     */
+    List<List<String>> partition(List<String> texts, int maxInputs, int maxTokens) {
+        List<List<String>> requests = new ArrayList<>();
+        List<String> current = new ArrayList<>();
+        long currentTokens = 0;
+
+        for (String text : texts) {
+            int tokens = estimateTokens(text);
+            if (!current.isEmpty() && (current.size() >= maxInputs || currentTokens + tokens > maxTokens)) {
+                requests.add(current);
+                current = new ArrayList<>();
+                currentTokens = 0;
+            }
+            current.add(text);
+            currentTokens += tokens;
+        }
+        if (!current.isEmpty()) {
+            requests.add(current);
+        }
+        return requests;
+    }
+
+    /**
+     * Rough token count for OpenAI's BPE encodings: about four characters per token of English text.
+     */
+    static int estimateTokens(String text) {
+        return (text.length() + 3) / 4;
+    }
+
+    private List<float[]> embedBatch(EmbeddingDispatcher dispatcher, EmbeddingCache cache, List<String> texts,
+            EmbeddingProperties properties) {
+        float[][] embeddings = new float[texts.size()][];
+        Map<String, List<Integer>> misses = new LinkedHashMap<>();
+        for (int i = 0; i < texts.size(); i++) {
+            embeddings[i] = cache.get(texts.get(i));
+            if (embeddings[i] == null) {
+                misses.computeIfAbsent(texts.get(i), text -> new ArrayList<>()).add(i);
+            }
+        }
+
+        if (!misses.isEmpty()) {
+            List<String> pending = new ArrayList<>(misses.keySet());
+            List<List<String>> requests = partition(pending,
+                    properties.batch().maxInputs(), properties.batch().maxTokens());
+            List<float[]> computed = dispatcher.embedAll(requests);
+            for (int i = 0; i < pending.size(); i++) {
+                cache.put(pending.get(i), computed.get(i));
+                for (int index : misses.get(pending.get(i))) {
+                    embeddings[index] = computed.get(i);
+                }
+            }
+            log.debug("Generated {} embeddings in {} requests using model={}",
+                    pending.size(), requests.size(), properties.model());
+        }
+        return Arrays.asList(embeddings);
+    }
+
+    private float[] embed(EmbeddingDispatcher dispatcher, EmbeddingCache cache, String text,
+            EmbeddingProperties properties) {
+        float[] cached = cache.get(text);
+        if (cached != null) {
+            return cached;
+        }
+        log.debug("Generating embedding for {} characters using model={}, dimensions={}",
+                text.length(), properties.model(), properties.dimensions());
+
+        float[] embedding = dispatcher.embed(List.of(text))[0];
+        cache.put(text, embedding);
+        log.debug("Generated embedding with {} dimensions", embedding.length);
+        return embedding;
+    }
 }
@@ -0,0 +1,422 @@
+package org.tanzu.dataflow.streamapps.embedding;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleSupplier;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+import org.springframework.ai.retry.NonTransientAiException;
+import org.springframework.ai.retry.TransientAiException;
+
+/**
+ * Sends embedding requests to the provider within its quotas, keeping several requests in flight.
+ * <p>
+ * Each request runs on its own virtual thread and must obtain a concurrency slot, one permit from
+ * the requests-per-minute bucket and its estimated token count from the tokens-per-minute bucket
+ * before it is sent. The concurrency limit adapts AIMD-style: it grows by one slot per window of
+ * successful requests and is halved on every HTTP 429, and a 429 also pauses all dispatch for the
+ * provider's {@code Retry-After} delay before the request is retried.
+ * <p>
+ * Every call is bounded by {@code embedding.resilience.deadline-ms}. When the primary attempt is
+ * slower than the {@code hedge-percentile} of recent successful calls, a duplicate hedge request
+ * is sent if quota allows and the first successful response wins. Deadline overruns and provider
+ * errors feed a {@link CircuitBreaker}; while it is open, calls either wait for it to half-open,
+ * which leaves messages parked in the broker, or fail fast ({@code when-open=fail}).
+ * <p>
+ * Publishes {@code embedding.dispatcher.queued}, {@code embedding.dispatcher.in-flight},
+ * {@code embedding.dispatcher.concurrency-limit}, {@code embedding.dispatcher.requests.available}
+ * and {@code embedding.dispatcher.tokens.available} (gauges), {@code embedding.dispatcher.wait}
+ * (timer) and {@code embedding.dispatcher.rate-limited} (counter), plus {@code embedding.attempt}
+ * (latency histogram of every attempt, tagged with {@code outcome} and {@code hedge}),
+ * {@code embedding.hedges} and {@code embedding.deadline.exceeded} (counters).
+ */
+public class EmbeddingDispatcher implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(EmbeddingDispatcher.class);
+
+    private static final int MIN_LATENCY_SAMPLES = 20;
+
+    private final EmbeddingModel embeddingModel;
+    private final EmbeddingProperties.Dispatcher properties;
+    private final EmbeddingProperties.Resilience resilience;
+    private final CircuitBreaker circuitBreaker;
+    private final LatencyWindow latencies = new LatencyWindow(512);
+    private final TokenBucket requests;
+    private final TokenBucket tokens;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private double concurrencyLimit;
+    private int inFlight;
+    private int queued;
+    private long pausedUntil;
+
+    private final MeterRegistry meterRegistry;
+    private final Timer waitTimer;
+    private final Counter rateLimited;
+    private final Counter hedges;
+    private final Counter deadlineExceeded;
+
+    public EmbeddingDispatcher(EmbeddingModel embeddingModel, EmbeddingProperties.Dispatcher properties,
+            EmbeddingProperties.Resilience resilience, MeterRegistry meterRegistry) {
+        this.embeddingModel = embeddingModel;
+        this.properties = properties;
+        this.resilience = resilience;
+        this.circuitBreaker = new CircuitBreaker(resilience, meterRegistry);
+        this.meterRegistry = meterRegistry;
+        this.requests = new TokenBucket(properties.requestsPerMinute());
+        this.tokens = new TokenBucket(properties.tokensPerMinute());
+        this.concurrencyLimit = properties.maxConcurrency();
+        this.pausedUntil = System.nanoTime();
+
+        Gauge.builder("embedding.dispatcher.queued", this, d -> d.read(() -> d.queued)).register(meterRegistry);
+        Gauge.builder("embedding.dispatcher.in-flight", this, d -> d.read(() -> d.inFlight)).register(meterRegistry);
+        Gauge.builder("embedding.dispatcher.concurrency-limit", this, EmbeddingDispatcher::concurrencyLimit)
+                .register(meterRegistry);
+        Gauge.builder("embedding.dispatcher.requests.available", requests, TokenBucket::available).register(meterRegistry);
+        Gauge.builder("embedding.dispatcher.tokens.available", tokens, TokenBucket::available).register(meterRegistry);
+        this.waitTimer = meterRegistry.timer("embedding.dispatcher.wait");
+        this.rateLimited = meterRegistry.counter("embedding.dispatcher.rate-limited");
+        this.hedges = meterRegistry.counter("embedding.hedges");
+        this.deadlineExceeded = meterRegistry.counter("embedding.deadline.exceeded");
+    }
+
+    /**
+     * Embeds every request concurrently and returns the embeddings in input order, flattened.
+     */
+    public List<float[]> embedAll(List<List<String>> batches) {
+        if (batches.size() == 1) {
+            List<float[]> embeddings = new ArrayList<>(batches.getFirst().size());
+            Collections.addAll(embeddings, embed(batches.getFirst()));
+            return embeddings;
+        }
+
+        List<Future<float[][]>> futures = new ArrayList<>(batches.size());
+        for (List<String> batch : batches) {
+            futures.add(executor.submit(() -> embed(batch)));
+        }
+        List<float[]> embeddings = new ArrayList<>();
+        try {
+            for (Future<float[][]> future : futures) {
+                Collections.addAll(embeddings, future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for embeddings", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) throw runtime;
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            futures.forEach(future -> future.cancel(true));
+        }
+        return embeddings;
+    }
+
+    /**
+     * Embeds one request on the calling thread, waiting for quota and retrying on HTTP 429.
+     */
+    public float[][] embed(List<String> texts) {
+        long estimatedTokens = texts.stream().mapToLong(EmbeddingConfiguration::estimateTokens).sum();
+        for (int attempt = 1; ; attempt++) {
+            awaitCircuit();
+            try {
+                acquire(estimatedTokens);
+            } catch (RuntimeException e) {
+                // Release a half-open trial taken by awaitCircuit, or every later call would wait for it.
+                circuitBreaker.onIgnored();
+                throw e;
+            }
+            boolean succeeded = false;
+            try {
+                float[][] embeddings = hedged(texts, estimatedTokens);
+                succeeded = true;
+                circuitBreaker.onSuccess();
+                return embeddings;
+            } catch (RateLimitException e) {
+                circuitBreaker.onIgnored();
+                onRateLimited(e.retryAfter());
+                if (attempt > properties.maxRetries()) throw e;
+                log.debug("Rate limited by provider, retrying (attempt {} of {})", attempt, properties.maxRetries());
+            } catch (NonTransientAiException e) {
+                circuitBreaker.onIgnored();
+                throw e;
+            } catch (RuntimeException e) {
+                circuitBreaker.onFailure();
+                throw e;
+            } finally {
+                release(succeeded);
+            }
+        }
+    }
+
+    public double concurrencyLimit() {
+        return read(() -> Math.floor(concurrencyLimit));
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void acquire(long estimatedTokens) {
+        long start = System.nanoTime();
+        lock.lock();
+        queued++;
+        try {
+            while (true) {
+                long wait = pausedUntil - System.nanoTime();
+                if (wait <= 0 && inFlight >= (int) concurrencyLimit) {
+                    changed.await();
+                    continue;
+                }
+                if (wait <= 0) {
+                    wait = Math.max(requests.waitNanos(1), tokens.waitNanos(estimatedTokens));
+                }
+                if (wait <= 0) {
+                    requests.take(1);
+                    tokens.take(estimatedTokens);
+                    inFlight++;
+                    return;
+                }
+                changed.awaitNanos(wait);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for embedding quota", e);
+        } finally {
+            queued--;
+            lock.unlock();
+            waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Sends the request, hedging it once if the primary attempt outlives the configured percentile
+     * of recent latencies, and returns the first successful response within the deadline.
+     */
+    private float[][] hedged(List<String> texts, long estimatedTokens) {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(resilience.deadlineMs());
+        long hedgeDelay = hedgeDelay();
+        long hedgeAt = hedgeDelay > 0 ? start + hedgeDelay : deadline;
+        CompletionService<float[][]> completion = new ExecutorCompletionService<>(executor);
+        List<Future<float[][]>> attempts = new ArrayList<>(2);
+        attempts.add(completion.submit(() -> call(texts, false)));
+        boolean hedged = false;
+        boolean hedgeSlot = false;
+        RuntimeException failure = null;
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                long until = hedged ? deadline : Math.min(hedgeAt, deadline);
+                Future<float[][]> done = completion.poll(until - now, TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    if (System.nanoTime() - deadline >= 0) {
+                        deadlineExceeded.increment();
+                        throw new TransientAiException("Embedding request exceeded its deadline of "
+                                + resilience.deadlineMs() + " ms");
+                    }
+                    hedged = true;
+                    if (tryAcquireHedge(estimatedTokens)) {
+                        hedgeSlot = true;
+                        hedges.increment();
+                        attempts.add(completion.submit(() -> call(texts, true)));
+                    }
+                    continue;
+                }
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof RuntimeException runtime
+                                ? runtime : new IllegalStateException(e.getCause());
+                    }
+                    if (attempts.stream().allMatch(Future::isDone)) throw failure;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for embeddings", e);
+        } finally {
+            attempts.forEach(attempt -> attempt.cancel(true));
+            if (hedgeSlot) {
+                release(false);
+            }
+        }
+    }
+
+    private float[][] call(List<String> texts, boolean hedge) {
+        Timer.Sample sample = Timer.start();
+        String outcome = "error";
+        try {
+            EmbeddingResponse response = embeddingModel.call(new EmbeddingRequest(texts, null));
+            float[][] embeddings = new float[texts.size()][];
+            for (Embedding result : response.getResults()) {
+                embeddings[result.getIndex()] = result.getOutput();
+            }
+            outcome = "success";
+            return embeddings;
+        } catch (RateLimitException e) {
+            outcome = "rate-limited";
+            throw e;
+        } finally {
+            if (!"success".equals(outcome) && Thread.currentThread().isInterrupted()) {
+                outcome = "cancelled";
+            }
+            long nanos = sample.stop(Timer.builder("embedding.attempt")
+                    .tag("outcome", outcome)
+                    .tag("hedge", Boolean.toString(hedge))
+                    .publishPercentileHistogram()
+                    .register(meterRegistry));
+            if ("success".equals(outcome)) {
+                latencies.record(nanos);
+            }
+        }
+    }
+
+    /**
+     * Delay after which a hedge is sent, or 0 when hedging is off or there is too little history.
+     */
+    private long hedgeDelay() {
+        if (!resilience.hedging()) {
+            return 0;
+        }
+        long percentile = latencies.percentile(resilience.hedgePercentile(), MIN_LATENCY_SAMPLES);
+        return percentile == 0 ? 0 : Math.max(percentile, TimeUnit.MILLISECONDS.toNanos(resilience.minHedgeDelayMs()));
+    }
+
+    private void awaitCircuit() {
+        long wait;
+        while ((wait = circuitBreaker.tryAcquire()) > 0) {
+            if ("fail".equals(resilience.whenOpen())) {
+                throw new NonTransientAiException("Embedding provider circuit breaker is open");
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the circuit breaker", e);
+            }
+        }
+    }
+
+    /**
+     * Takes quota for a hedge only if it is available right now; hedges never queue.
+     */
+    private boolean tryAcquireHedge(long estimatedTokens) {
+        lock.lock();
+        try {
+            if (pausedUntil - System.nanoTime() > 0 || inFlight >= (int) concurrencyLimit
+                    || requests.waitNanos(1) > 0 || tokens.waitNanos(estimatedTokens) > 0) {
+                return false;
+            }
+            requests.take(1);
+            tokens.take(estimatedTokens);
+            inFlight++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(boolean succeeded) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (succeeded) {
+                concurrencyLimit = Math.min(properties.maxConcurrency(), concurrencyLimit + 1 / concurrencyLimit);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onRateLimited(Duration retryAfter) {
+        rateLimited.increment();
+        Duration delay = retryAfter != null ? retryAfter : Duration.ofMillis(properties.retryAfterMs());
+        int limit;
+        lock.lock();
+        try {
+            concurrencyLimit = Math.max(1, concurrencyLimit / 2);
+            pausedUntil = Math.max(pausedUntil, System.nanoTime() + delay.toNanos());
+            limit = (int) concurrencyLimit;
+        } finally {
+            lock.unlock();
+        }
+        log.warn("Embedding provider returned 429; concurrency limit now {}, pausing {} ms", limit, delay.toMillis());
+    }
+
+    CircuitBreaker circuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Adds a successful-call latency to the history the hedge delay is chosen from.
+     */
+    void recordLatency(long nanos) {
+        latencies.record(nanos);
+    }
+
+    private double read(DoubleSupplier value) {
+        lock.lock();
+        try {
+            return value.getAsDouble();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Latencies of the most recent successful calls, for choosing the hedge delay.
+     */
+    private static final class LatencyWindow {
+
+        private final long[] samples;
+        private int count;
+        private int next;
+
+        LatencyWindow(int size) {
+            this.samples = new long[size];
+        }
+
+        synchronized void record(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        synchronized long percentile(double percentile, int minSamples) {
+            if (count < minSamples) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, (int) Math.ceil(percentile * count) - 1)];
+        }
+    }
+}
@@ -4,11 +4,136 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 
 @ConfigurationProperties(prefix = "embedding")
 public record EmbeddingProperties(
+        String provider,
         String model,
-        int dimensions
+        int dimensions,
+        Batch batch,
+        Dispatcher dispatcher,
+        Cache cache,
+        Onnx onnx,
+        Resilience resilience
 ) {
     public EmbeddingProperties {
+        if (provider == null || provider.isBlank()) provider = "openai";
+        provider = provider.toLowerCase();
         if (model == null || model.isBlank()) model = "text-embedding-3-small";
         if (dimensions <= 0) dimensions = 1536;
+        if (batch == null) batch = new Batch(0, 0, 0);
+        if (dispatcher == null) dispatcher = new Dispatcher(0, 0, 0, 0, 0);
+        if (cache == null) cache = new Cache(false, 0, 0, null);
+        if (onnx == null) onnx = new Onnx(null, null, null, 0, 0, 0, 0, null);
+        if (resilience == null) resilience = new Resilience(0, true, 0, 0, 0, 0, 0, null);
+    }
+
+    /**
+     * Bounds for the batching functions ({@code generateEmbeddingBatch},
+     * {@code generateEmbeddedTextBatch}). {@code maxInputs} and {@code lingerMs} are applied by the
+     * RabbitMQ binder when it assembles a delivery batch: a batch is delivered once it holds
+     * {@code maxInputs}, or {@code lingerMs} after its first message or since the last one,
+     * whichever comes first; {@code maxTokens} splits a delivery into several embedding requests
+     * when the estimated token count of the inputs grows too large.
+     */
+    public record Batch(
+            int maxInputs,
+            int maxTokens,
+            long lingerMs
+    ) {
+        public Batch {
+            if (maxInputs <= 0) maxInputs = 100;
+            if (maxTokens <= 0) maxTokens = 100_000;
+            if (lingerMs <= 0) lingerMs = 500;
+        }
+    }
+
+    /**
+     * Provider quotas and concurrency for the {@link EmbeddingDispatcher}. Set
+     * {@code requestsPerMinute} and {@code tokensPerMinute} to the limits of the provider account;
+     * {@code retryAfterMs} is the pause applied after a 429 that carries no {@code Retry-After}.
+     */
+    public record Dispatcher(
+            int maxConcurrency,
+            long requestsPerMinute,
+            long tokensPerMinute,
+            int maxRetries,
+            long retryAfterMs
+    ) {
+        public Dispatcher {
+            if (maxConcurrency <= 0) maxConcurrency = 8;
+            if (requestsPerMinute <= 0) requestsPerMinute = 3_000;
+            if (tokensPerMinute <= 0) tokensPerMinute = 1_000_000;
+            if (maxRetries <= 0) maxRetries = 5;
+            if (retryAfterMs <= 0) retryAfterMs = 1_000;
+        }
+    }
+
+    /**
+     * Sizing of the {@link EmbeddingCache}: {@code memoryEntries} vectors are kept on the heap and
+     * {@code diskEntries} in the memory-mapped file under {@code directory}.
+     */
+    public record Cache(
+            boolean enabled,
+            int memoryEntries,
+            int diskEntries,
+            String directory
+    ) {
+        public Cache {
+            if (memoryEntries <= 0) memoryEntries = 10_000;
+            if (diskEntries <= 0) diskEntries = 50_000;
+            if (directory == null || directory.isBlank()) directory = System.getProperty("java.io.tmpdir") + "/embedding-cache";
+        }
+    }
+
+    /**
+     * Local model for {@code provider=onnx}: a sentence-transformer exported to ONNX and its
+     * HuggingFace {@code tokenizer.json}. {@code workers} sessions run in parallel, each with
+     * {@code intraOpThreads} threads; set {@code model} and {@code dimensions} to match the model.
+     */
+    public record Onnx(
+            String modelPath,
+            String tokenizerPath,
+            String outputName,
+            int workers,
+            int intraOpThreads,
+            int batchSize,
+            int maxLength,
+            Boolean normalize
+    ) {
+        public Onnx {
+            if (normalize == null) normalize = true;
+            if (outputName == null || outputName.isBlank()) outputName = "last_hidden_state";
+            if (workers <= 0) workers = Runtime.getRuntime().availableProcessors();
+            if (intraOpThreads <= 0) intraOpThreads = 1;
+            if (batchSize <= 0) batchSize = 32;
+            if (maxLength <= 0) maxLength = 256;
+        }
+    }
+
+    /**
+     * Tail-latency controls of the {@link EmbeddingDispatcher}: a per-call deadline, a hedge sent
+     * once a call outlives the {@code hedgePercentile} of recent latencies (never sooner than
+     * {@code minHedgeDelayMs}), and the {@link CircuitBreaker} window, failure-rate threshold and
+     * open duration. {@code whenOpen} is {@code wait} (hold messages until the circuit half-opens)
+     * or {@code fail} (reject them so the binder retries or dead-letters them).
+     */
+    public record Resilience(
+            long deadlineMs,
+            boolean hedging,
+            double hedgePercentile,
+            long minHedgeDelayMs,
+            int windowSize,
+            double failureRateThreshold,
+            long openMs,
+            String whenOpen
+    ) {
+        public Resilience {
+            if (deadlineMs <= 0) deadlineMs = 30_000;
+            if (hedgePercentile <= 0 || hedgePercentile >= 1) hedgePercentile = 0.95;
+            if (minHedgeDelayMs <= 0) minHedgeDelayMs = 50;
+            if (windowSize <= 0) windowSize = 20;
+            if (failureRateThreshold <= 0 || failureRateThreshold > 1) failureRateThreshold = 0.5;
+            if (openMs <= 0) openMs = 30_000;
+            if (whenOpen == null || whenOpen.isBlank()) whenOpen = "wait";
+            whenOpen = whenOpen.toLowerCase();
+        }
     }
 }
@@ -0,0 +1,226 @@
+package org.tanzu.dataflow.streamapps.embedding;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ai.djl.huggingface.tokenizers.Encoding;
+import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OnnxValue;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+
+/**
+ * In-process CPU {@link EmbeddingModel} running a sentence-transformer exported to ONNX, selected
+ * with {@code embedding.provider=onnx}. No network access is needed once the model and
+ * {@code tokenizer.json} are on local disk.
+ * <p>
+ * A pool of {@code embedding.onnx.workers} threads (one per core by default) each owns a tokenizer
+ * and a single-threaded ONNX session, so workers never contend for native resources. A request is
+ * split into batches of {@code embedding.onnx.batch-size} inputs that run on the pool in parallel;
+ * token embeddings are mean-pooled over the attention mask and optionally L2-normalized.
+ * Each batch is timed as {@code embedding.onnx.inference}.
+ */
+public class OnnxEmbeddingModel implements EmbeddingModel, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(OnnxEmbeddingModel.class);
+
+    private final EmbeddingProperties.Onnx properties;
+    private final OrtEnvironment environment = OrtEnvironment.getEnvironment();
+    private final BlockingQueue<Worker> idle;
+    private final List<Worker> workers = new ArrayList<>();
+    private final ExecutorService executor;
+    private final Timer inference;
+
+    public OnnxEmbeddingModel(EmbeddingProperties.Onnx properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.idle = new ArrayBlockingQueue<>(properties.workers());
+        this.inference = Timer.builder("embedding.onnx.inference")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        try {
+            for (int i = 0; i < properties.workers(); i++) {
+                Worker worker = openWorker();
+                workers.add(worker);
+                idle.add(worker);
+            }
+        } catch (IOException e) {
+            close();
+            throw new UncheckedIOException("Cannot load tokenizer " + properties.tokenizerPath(), e);
+        } catch (OrtException e) {
+            close();
+            throw new IllegalStateException("Cannot load ONNX model " + properties.modelPath(), e);
+        }
+        this.executor = Executors.newFixedThreadPool(properties.workers(),
+                Thread.ofPlatform().name("embedding-onnx-", 0).daemon().factory());
+        log.info("Loaded ONNX embedding model {} with {} workers", properties.modelPath(), properties.workers());
+    }
+
+    @Override
+    public EmbeddingResponse call(EmbeddingRequest request) {
+        List<String> texts = request.getInstructions();
+        List<Future<float[][]>> batches = new ArrayList<>();
+        for (int start = 0; start < texts.size(); start += properties.batchSize()) {
+            List<String> batch = texts.subList(start, Math.min(texts.size(), start + properties.batchSize()));
+            batches.add(executor.submit(() -> infer(batch)));
+        }
+
+        List<Embedding> embeddings = new ArrayList<>(texts.size());
+        try {
+            for (Future<float[][]> batch : batches) {
+                for (float[] embedding : batch.get()) {
+                    embeddings.add(new Embedding(embedding, embeddings.size()));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for ONNX inference", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) throw runtime;
+            throw new IllegalStateException("ONNX inference failed", e.getCause());
+        } finally {
+            batches.forEach(batch -> batch.cancel(true));
+        }
+        return new EmbeddingResponse(embeddings);
+    }
+
+    @Override
+    public float[] embed(Document document) {
+        return embed(document.getText());
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        for (Worker worker : workers) {
+            worker.tokenizer().close();
+            try {
+                worker.session().close();
+            } catch (OrtException e) {
+                log.warn("Failed to close ONNX session", e);
+            }
+        }
+    }
+
+    private float[][] infer(List<String> texts) throws OrtException, InterruptedException {
+        Worker worker = idle.take();
+        Timer.Sample sample = Timer.start();
+        try {
+            Encoding[] encodings = worker.tokenizer().batchEncode(texts);
+            long[][] inputIds = new long[encodings.length][];
+            long[][] attentionMask = new long[encodings.length][];
+            long[][] typeIds = new long[encodings.length][];
+            for (int i = 0; i < encodings.length; i++) {
+                inputIds[i] = encodings[i].getIds();
+                attentionMask[i] = encodings[i].getAttentionMask();
+                typeIds[i] = encodings[i].getTypeIds();
+            }
+
+            Map<String, OnnxTensor> inputs = new HashMap<>();
+            try {
+                inputs.put("input_ids", OnnxTensor.createTensor(environment, inputIds));
+                inputs.put("attention_mask", OnnxTensor.createTensor(environment, attentionMask));
+                if (worker.session().getInputNames().contains("token_type_ids")) {
+                    inputs.put("token_type_ids", OnnxTensor.createTensor(environment, typeIds));
+                }
+                try (OrtSession.Result result = worker.session().run(inputs)) {
+                    OnnxValue output = result.get(properties.outputName())
+                            .orElseThrow(() -> new IllegalStateException("ONNX model has no output named "
+                                    + properties.outputName()));
+                    return pool(output.getValue(), attentionMask, properties.normalize());
+                }
+            } finally {
+                inputs.values().forEach(OnnxTensor::close);
+            }
+        } finally {
+            sample.stop(inference);
+            idle.add(worker);
+        }
+    }
+
+    /**
+     * Turns the model output into one vector per input: a {@code [batch][tokens][hidden]} output is
+     * mean-pooled over the attention mask, a {@code [batch][hidden]} output is used as is.
+     */
+    static float[][] pool(Object output, long[][] attentionMask, boolean normalize) {
+        float[][] pooled;
+        if (output instanceof float[][][] tokens) {
+            pooled = new float[tokens.length][];
+            for (int i = 0; i < tokens.length; i++) {
+                float[] sum = new float[tokens[i][0].length];
+                int count = 0;
+                for (int t = 0; t < tokens[i].length; t++) {
+                    if (attentionMask[i][t] == 0) continue;
+                    count++;
+                    for (int d = 0; d < sum.length; d++) {
+                        sum[d] += tokens[i][t][d];
+                    }
+                }
+                for (int d = 0; d < sum.length; d++) {
+                    sum[d] /= Math.max(count, 1);
+                }
+                pooled[i] = sum;
+            }
+        } else if (output instanceof float[][] sentences) {
+            pooled = sentences;
+        } else {
+            throw new IllegalStateException("Unsupported ONNX output type " + output.getClass().getSimpleName());
+        }
+
+        if (normalize) {
+            for (float[] vector : pooled) {
+                double norm = 0;
+                for (float value : vector) {
+                    norm += value * value;
+                }
+                float scale = norm == 0 ? 1f : (float) (1 / Math.sqrt(norm));
+                for (int d = 0; d < vector.length; d++) {
+                    vector[d] *= scale;
+                }
+            }
+        }
+        return pooled;
+    }
+
+    private Worker openWorker() throws IOException, OrtException {
+        HuggingFaceTokenizer tokenizer = HuggingFaceTokenizer.builder()
+                .optTokenizerPath(Path.of(properties.tokenizerPath()))
+                .optMaxLength(properties.maxLength())
+                .optTruncation(true)
+                .optPadding(true)
+                .build();
+        try (OrtSession.SessionOptions options = new OrtSession.SessionOptions()) {
+            options.setIntraOpNumThreads(properties.intraOpThreads());
+            options.setInterOpNumThreads(1);
+            return new Worker(tokenizer, environment.createSession(properties.modelPath(), options));
+        }
+    }
+
+    private record Worker(HuggingFaceTokenizer tokenizer, OrtSession session) {
+    }
+}
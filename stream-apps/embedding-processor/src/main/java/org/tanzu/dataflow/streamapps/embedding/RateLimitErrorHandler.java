@@ -0,0 +1,86 @@
+package org.tanzu.dataflow.streamapps.embedding;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+import org.springframework.ai.retry.NonTransientAiException;
+import org.springframework.ai.retry.TransientAiException;
+import org.springframework.ai.retry.autoconfigure.SpringAiRetryProperties;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.ResponseErrorHandler;
+
+/**
+ * Replaces Spring AI's default error handler for the embedding client so that HTTP 429 responses
+ * surface as {@link RateLimitException} with the provider's {@code retry-after-ms} or
+ * {@code Retry-After} delay. Every other status is classified exactly as
+ * {@code spring.ai.retry.*} configures it.
+ */
+public class RateLimitErrorHandler implements ResponseErrorHandler {
+
+    private final SpringAiRetryProperties retryProperties;
+
+    public RateLimitErrorHandler(SpringAiRetryProperties retryProperties) {
+        this.retryProperties = retryProperties;
+    }
+
+    @Override
+    public boolean hasError(ClientHttpResponse response) throws IOException {
+        return response.getStatusCode().isError();
+    }
+
+    @Override
+    public void handleError(URI url, HttpMethod method, ClientHttpResponse response) throws IOException {
+        HttpStatusCode status = response.getStatusCode();
+        String body = StreamUtils.copyToString(response.getBody(), StandardCharsets.UTF_8);
+        String message = "HTTP %s - %s".formatted(status.value(), body.isEmpty() ? "No response body available" : body);
+
+        if (status.value() == 429) {
+            throw new RateLimitException(message, retryAfter(response.getHeaders()));
+        }
+        if (retryProperties.getOnHttpCodes().contains(status.value())) {
+            throw new TransientAiException(message);
+        }
+        if (!retryProperties.isOnClientErrors() && status.is4xxClientError()) {
+            throw new NonTransientAiException(message);
+        }
+        if (retryProperties.getExcludeOnHttpCodes().contains(status.value())) {
+            throw new NonTransientAiException(message);
+        }
+        throw new TransientAiException(message);
+    }
+
+    static Duration retryAfter(HttpHeaders headers) {
+        String millis = headers.getFirst("retry-after-ms");
+        if (millis != null) {
+            try {
+                return Duration.ofMillis((long) Double.parseDouble(millis.trim()));
+            } catch (NumberFormatException ignored) {
+                // fall back to Retry-After
+            }
+        }
+        String value = headers.getFirst(HttpHeaders.RETRY_AFTER);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Duration.ofSeconds(Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            try {
+                Duration delay = Duration.between(ZonedDateTime.now(),
+                        ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME));
+                return delay.isNegative() ? Duration.ZERO : delay;
+            } catch (DateTimeParseException ignored) {
+                return null;
+            }
+        }
+    }
+}
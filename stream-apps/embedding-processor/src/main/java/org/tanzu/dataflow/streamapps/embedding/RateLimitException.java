@@ -0,0 +1,26 @@
+package org.tanzu.dataflow.streamapps.embedding;
+
+import java.time.Duration;
+
+import org.springframework.ai.retry.NonTransientAiException;
+
+/**
+ * Raised for an HTTP 429 from the embedding provider. It is non-transient so Spring AI's retry
+ * template hands it straight back to the {@link EmbeddingDispatcher}, which owns the back-off.
+ */
+public class RateLimitException extends NonTransientAiException {
+
+    private final Duration retryAfter;
+
+    public RateLimitException(String message, Duration retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * The delay requested by the provider, or {@code null} when the response carried none.
+     */
+    public Duration retryAfter() {
+        return retryAfter;
+    }
+}
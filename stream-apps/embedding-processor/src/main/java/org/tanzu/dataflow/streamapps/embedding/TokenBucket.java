@@ -0,0 +1,55 @@
+package org.tanzu.dataflow.streamapps.embedding;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket refilled continuously at a per-minute rate, holding at most one minute of quota.
+ * A request larger than the bucket is admitted once the bucket is full, so oversized inputs
+ * are throttled rather than rejected.
+ */
+public class TokenBucket {
+
+    private final long capacity;
+    private final double refillPerNano;
+    private final LongSupplier clock;
+    private double available;
+    private long lastRefill;
+
+    public TokenBucket(long perMinute) {
+        this(perMinute, System::nanoTime);
+    }
+
+    TokenBucket(long perMinute, LongSupplier clock) {
+        this.capacity = perMinute;
+        this.refillPerNano = perMinute / (double) TimeUnit.MINUTES.toNanos(1);
+        this.clock = clock;
+        this.available = perMinute;
+        this.lastRefill = clock.getAsLong();
+    }
+
+    /**
+     * Returns how long to wait, in nanoseconds, until {@code permits} can be taken; 0 if they can be taken now.
+     */
+    public synchronized long waitNanos(long permits) {
+        refill();
+        double wanted = Math.min(permits, capacity);
+        return available >= wanted ? 0 : (long) Math.ceil((wanted - available) / refillPerNano);
+    }
+
+    public synchronized void take(long permits) {
+        refill();
+        available -= Math.min(permits, capacity);
+    }
+
+    public synchronized double available() {
+        refill();
+        return available;
+    }
+
+    private void refill() {
+        long now = clock.getAsLong();
+        available = Math.min(capacity, available + (now - lastRefill) * refillPerNano);
+        lastRefill = now;
+    }
+}
@@ -1,20 +1,345 @@
 package org.tanzu.dataflow.streamapps.embedding;
 
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+import org.springframework.ai.retry.TransientAiException;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.config.BindingServiceProperties;
+import org.springframework.cloud.stream.config.ListenerContainerCustomizer;
 import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 @SpringBootTest
 @TestPropertySource(properties = {
         "spring.ai.openai.api-key=test-key",
-        "spring.ai.openai.embedding.options.model=text-embedding-3-small"
+        "spring.ai.openai.embedding.options.model=text-embedding-3-small",
+        "embedding.cache.enabled=true",
+        "embedding.cache.directory=target/embedding-cache"
 })
 class EmbeddingProcessorApplicationTests {
 
+    @Autowired
+    private EmbeddingConfiguration configuration;
+
+    @Autowired
+    private BindingServiceProperties bindingServiceProperties;
+
+    @Autowired
+    private ListenerContainerCustomizer<MessageListenerContainer> batchLingerCustomizer;
+
+    @Test
+    void batchLingerBoundsTheTotalTimeABatchIsCollected() {
+        SimpleMessageListenerContainer batching = new SimpleMessageListenerContainer();
+        batching.setConsumerBatchEnabled(true);
+        SimpleMessageListenerContainer single = new SimpleMessageListenerContainer();
+
+        batchLingerCustomizer.configure(batching, "chunks", "embedding");
+        batchLingerCustomizer.configure(single, "chunks", "embedding");
+
+        assertThat(ReflectionTestUtils.getField(batching, "batchReceiveTimeout")).isEqualTo(500L);
+        assertThat(ReflectionTestUtils.getField(single, "batchReceiveTimeout")).isEqualTo(0L);
+    }
+
     @Test
     void contextLoads() {
         // Verifies the application context starts correctly with test properties.
         // Full embedding tests require a live OpenAI API key.
     }
+
+    @Test
+    void singleMessageFunctionsConsumeWithDispatcherConcurrency() {
+        assertThat(bindingServiceProperties.getConsumerProperties("generateEmbedding-in-0").getConcurrency())
+                .isEqualTo(8);
+        assertThat(bindingServiceProperties.getConsumerProperties("generateEmbeddedText-in-0").getConcurrency())
+                .isEqualTo(8);
+    }
+
+    @Test
+    void partitionsBatchByInputCountAndTokenBudget() {
+        List<String> texts = List.of(
+                "a".repeat(40), "b".repeat(40), "c".repeat(40), "d".repeat(400), "e");
+
+        List<List<String>> requests = configuration.partition(texts, 2, 25);
+
+        assertThat(requests).extracting(List::size).containsExactly(2, 1, 1, 1);
+        assertThat(requests.get(2).getFirst()).hasSize(400);
+    }
+
+    @Test
+    void tokenBucketRefillsAtPerMinuteRate() {
+        AtomicLong clock = new AtomicLong();
+        TokenBucket bucket = new TokenBucket(60, clock::get);
+
+        assertThat(bucket.waitNanos(60)).isZero();
+        bucket.take(60);
+        assertThat(bucket.waitNanos(1)).isEqualTo(TimeUnit.SECONDS.toNanos(1));
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        assertThat(bucket.waitNanos(2)).isZero();
+        assertThat(bucket.waitNanos(500)).isEqualTo(TimeUnit.SECONDS.toNanos(58));
+    }
+
+    @Test
+    void dispatcherHalvesConcurrencyAndRetriesOnRateLimit() {
+        AtomicInteger calls = new AtomicInteger();
+        EmbeddingModel model = new EmbeddingModel() {
+            @Override
+            public EmbeddingResponse call(EmbeddingRequest request) {
+                if (calls.incrementAndGet() == 1) {
+                    throw new RateLimitException("HTTP 429 - slow down", Duration.ofMillis(10));
+                }
+                List<String> texts = request.getInstructions();
+                return new EmbeddingResponse(List.of(
+                        new Embedding(new float[] {texts.get(1).length()}, 1),
+                        new Embedding(new float[] {texts.get(0).length()}, 0)));
+            }
+
+            @Override
+            public float[] embed(Document document) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        EmbeddingDispatcher dispatcher = new EmbeddingDispatcher(model,
+                new EmbeddingProperties.Dispatcher(4, 0, 0, 0, 0), resilience(false, 30_000), registry);
+
+        float[][] embeddings = dispatcher.embed(List.of("a", "bbb"));
+
+        assertThat(embeddings[0]).containsExactly(1f);
+        assertThat(embeddings[1]).containsExactly(3f);
+        assertThat(calls).hasValue(2);
+        assertThat(dispatcher.concurrencyLimit()).isEqualTo(2);
+        assertThat(registry.counter("embedding.dispatcher.rate-limited").count()).isEqualTo(1);
+        dispatcher.close();
+    }
+
+    @Test
+    void embeddingCacheSurvivesRestartAndEvictsOldestDiskEntry(@TempDir Path directory) throws Exception {
+        EmbeddingProperties properties = new EmbeddingProperties(null, "text-embedding-3-small", 2, null, null,
+                new EmbeddingProperties.Cache(true, 1, 2, directory.toString()), null, null);
+
+        try (EmbeddingCache cache = new EmbeddingCache(properties, new SimpleMeterRegistry())) {
+            cache.put("Confidential  -  do not\ndistribute", new float[] {1f, 2f});
+            cache.put("second", new float[] {3f, 4f});
+            assertThat(cache.get("Confidential - do not distribute ")).containsExactly(1f, 2f);
+        }
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        try (EmbeddingCache cache = new EmbeddingCache(properties, registry)) {
+            assertThat(cache.get("Confidential - do not distribute")).containsExactly(1f, 2f);
+            cache.put("third", new float[] {5f, 6f});
+            cache.put("fourth", new float[] {7f, 8f});
+            assertThat(cache.get("second")).isNull();
+            assertThat(cache.get("third")).containsExactly(5f, 6f);
+            assertThat(registry.counter("embedding.cache.hits", "tier", "disk").count()).isEqualTo(2);
+            assertThat(registry.counter("embedding.cache.misses").count()).isEqualTo(1);
+        }
+
+        EmbeddingProperties otherModel = new EmbeddingProperties(null, "text-embedding-3-large", 2, null, null,
+                properties.cache(), null, null);
+        try (EmbeddingCache cache = new EmbeddingCache(otherModel, new SimpleMeterRegistry())) {
+            assertThat(cache.get("third")).isNull();
+        }
+
+        EmbeddingProperties otherProvider = new EmbeddingProperties("onnx", "text-embedding-3-small", 2, null, null,
+                properties.cache(), null, null);
+        try (EmbeddingCache cache = new EmbeddingCache(otherProvider, new SimpleMeterRegistry())) {
+            assertThat(cache.get("third")).isNull();
+        }
+    }
+
+    @Test
+    void onnxProviderRequiresModelAndTokenizerPaths() {
+        EmbeddingProperties withoutModel = new EmbeddingProperties("onnx", "all-MiniLM-L6-v2", 384, null, null, null,
+                null, null);
+        EmbeddingProperties withoutTokenizer = new EmbeddingProperties("onnx", "all-MiniLM-L6-v2", 384, null, null,
+                null, new EmbeddingProperties.Onnx("model.onnx", null, null, 1, 0, 0, 0, null), null);
+
+        assertThat(withoutModel.onnx().normalize()).isTrue();
+        assertThatThrownBy(() -> configuration.onnxEmbeddingModel(withoutModel, new SimpleMeterRegistry()))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("embedding.onnx.model-path");
+        assertThatThrownBy(() -> configuration.onnxEmbeddingModel(withoutTokenizer, new SimpleMeterRegistry()))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("embedding.onnx.tokenizer-path");
+    }
+
+    @Test
+    void embeddingCacheSparesRecentlyHitDiskEntries(@TempDir Path directory) throws Exception {
+        EmbeddingProperties properties = new EmbeddingProperties(null, "text-embedding-3-small", 2, null, null,
+                new EmbeddingProperties.Cache(true, 1, 3, directory.toString()), null, null);
+
+        try (EmbeddingCache cache = new EmbeddingCache(properties, new SimpleMeterRegistry())) {
+            cache.put("disclaimer", new float[] {1f, 1f});
+            cache.put("page 1", new float[] {2f, 2f});
+            cache.put("page 2", new float[] {3f, 3f});
+            assertThat(cache.get("disclaimer")).containsExactly(1f, 1f);
+            // Answered from the heap tier, which still marks the disk entry as recently used
+            assertThat(cache.get("disclaimer")).containsExactly(1f, 1f);
+
+            cache.put("page 3", new float[] {4f, 4f});
+            cache.put("page 4", new float[] {5f, 5f});
+
+            assertThat(cache.get("page 1")).isNull();
+            assertThat(cache.get("page 2")).isNull();
+            assertThat(cache.get("page 3")).containsExactly(4f, 4f);
+            assertThat(cache.get("disclaimer")).containsExactly(1f, 1f);
+        }
+    }
+
+    @Test
+    void embeddingCacheFallsBackToHeapWhenFileIsLocked(@TempDir Path directory) throws Exception {
+        EmbeddingProperties properties = new EmbeddingProperties(null, "text-embedding-3-small", 2, null, null,
+                new EmbeddingProperties.Cache(true, 1, 2, directory.toString()), null, null);
+
+        try (EmbeddingCache owner = new EmbeddingCache(properties, new SimpleMeterRegistry());
+             EmbeddingCache other = new EmbeddingCache(properties, new SimpleMeterRegistry())) {
+            owner.put("shared", new float[] {1f, 2f});
+            other.put("first", new float[] {3f, 4f});
+            other.put("second", new float[] {5f, 6f});
+
+            assertThat(other.get("shared")).isNull();
+            assertThat(other.get("first")).isNull();
+            assertThat(other.get("second")).containsExactly(5f, 6f);
+            assertThat(owner.get("shared")).containsExactly(1f, 2f);
+        }
+    }
+
+    @Test
+    void meanPoolsTokenEmbeddingsOverAttentionMask() {
+        float[][][] tokens = {{{1f, 2f}, {3f, 4f}, {100f, 100f}}};
+        long[][] attentionMask = {{1, 1, 0}};
+
+        assertThat(OnnxEmbeddingModel.pool(tokens, attentionMask, false)[0]).containsExactly(2f, 3f);
+        assertThat(OnnxEmbeddingModel.pool(new float[][] {{3f, 4f}}, attentionMask, true)[0])
+                .containsExactly(0.6f, 0.8f);
+    }
+
+    @Test
+    void hedgesSlowCall() {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        EmbeddingModel model = stubModel(request -> {
+            int call = calls.incrementAndGet();
+            if (call == 1) {
+                await(release);
+            }
+            return new float[] {call};
+        });
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        EmbeddingDispatcher dispatcher = new EmbeddingDispatcher(model,
+                new EmbeddingProperties.Dispatcher(4, 0, 0, 0, 0), resilience(true, 30_000), registry);
+        for (int i = 0; i < 20; i++) {
+            dispatcher.recordLatency(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+
+        try {
+            // The primary is held until the end, so only the hedge sent after min-hedge-delay-ms can answer.
+            assertThat(dispatcher.embed(List.of("slow primary"))[0]).containsExactly(2f);
+            assertThat(registry.counter("embedding.hedges").count()).isEqualTo(1);
+            assertThat(registry.find("embedding.attempt").tags("outcome", "success", "hedge", "true").timer().count())
+                    .isEqualTo(1);
+        } finally {
+            release.countDown();
+            dispatcher.close();
+        }
+    }
+
+    @Test
+    void failsCallsThatOutliveTheirDeadline() {
+        CountDownLatch release = new CountDownLatch(1);
+        EmbeddingModel model = stubModel(request -> {
+            await(release);
+            return new float[] {1f};
+        });
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        EmbeddingDispatcher dispatcher = new EmbeddingDispatcher(model,
+                new EmbeddingProperties.Dispatcher(4, 0, 0, 0, 0), resilience(true, 100), registry);
+        for (int i = 0; i < 20; i++) {
+            dispatcher.recordLatency(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+
+        try {
+            // Every attempt is held until after the deadline.
+            assertThatThrownBy(() -> dispatcher.embed(List.of("both slow")))
+                    .isInstanceOf(TransientAiException.class)
+                    .hasMessageContaining("deadline of 100 ms");
+            assertThat(registry.counter("embedding.deadline.exceeded").count()).isEqualTo(1);
+        } finally {
+            release.countDown();
+            dispatcher.close();
+        }
+    }
+
+    @Test
+    void circuitBreakerOpensOnFailureRateAndClosesAfterTrial() {
+        AtomicLong clock = new AtomicLong();
+        CircuitBreaker breaker = new CircuitBreaker(resilience(false, 30_000), new SimpleMeterRegistry(), clock::get);
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(breaker.tryAcquire()).isZero();
+            breaker.onSuccess();
+        }
+        for (int i = 0; i < 5; i++) {
+            assertThat(breaker.tryAcquire()).isZero();
+            breaker.onFailure();
+        }
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.tryAcquire()).isEqualTo(TimeUnit.SECONDS.toNanos(10));
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertThat(breaker.tryAcquire()).isZero();
+        assertThat(breaker.tryAcquire()).isPositive();
+        breaker.onSuccess();
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    private static EmbeddingProperties.Resilience resilience(boolean hedging, long deadlineMs) {
+        return new EmbeddingProperties.Resilience(deadlineMs, hedging, 0.95, 50, 10, 0.5, 10_000, "wait");
+    }
+
+    private static EmbeddingModel stubModel(Function<String, float[]> embed) {
+        return new EmbeddingModel() {
+            @Override
+            public EmbeddingResponse call(EmbeddingRequest request) {
+                return new EmbeddingResponse(List.of(new Embedding(embed.apply(request.getInstructions().getFirst()), 0)));
+            }
+
+            @Override
+            public float[] embed(Document document) {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
 }
@@ -0,0 +1,155 @@
+package org.tanzu.dataflow.streamapps.pgvectorsink;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import org.tanzu.dataflow.streamapps.common.Texts;
+
+/**
+ * Derives deterministic row ids for chunks and skips chunks that are already stored.
+ * <p>
+ * The id of a chunk is a name-based UUID over its source identifier (the header named by
+ * {@code pgvector.dedup.source-header}), its {@code chunk-index} and the SHA-256 of its text.
+ * Every write path upserts on that id, so redelivered messages and re-uploaded objects never
+ * produce duplicate rows. With {@code pgvector.dedup.enabled=true} a local LRU cache of
+ * recently stored ids, optionally backed by a database lookup, filters such chunks out before
+ * any embedding call or SQL is issued. Skips are counted in {@code pgvector.sink.dedup.skipped}.
+ * <p>
+ * A chunk without the source header cannot be told apart from the same text at the same index
+ * of another document, so it gets a random id and is never deduplicated.
+ */
+public class ChunkDeduplicator {
+
+    private static final Logger log = LoggerFactory.getLogger(ChunkDeduplicator.class);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final PgVectorSinkProperties properties;
+    private final MeterRegistry meterRegistry;
+    private final Map<UUID, Boolean> stored;
+    private final AtomicBoolean missingSourceWarned = new AtomicBoolean();
+
+    public ChunkDeduplicator(JdbcTemplate jdbcTemplate, PgVectorSinkProperties properties,
+            MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.properties = properties;
+        this.meterRegistry = meterRegistry;
+        int cacheSize = properties.dedup().cacheSize();
+        this.stored = new LinkedHashMap<>(Math.min(cacheSize, 1 << 16), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, Boolean> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    public ChunkKey keyFor(String text, Map<String, Object> headers) {
+        Object source = headers.get(properties.dedup().sourceHeader());
+        String contentHash = Texts.sha256(text);
+        if (source == null) {
+            if (missingSourceWarned.compareAndSet(false, true)) {
+                log.warn("Chunks without a {} header get random ids and are not deduplicated",
+                        properties.dedup().sourceHeader());
+            }
+            return new ChunkKey(UUID.randomUUID(), null, contentHash);
+        }
+        String name = source.toString() + '\u0000' + headers.get("chunk-index") + '\u0000' + contentHash;
+        return new ChunkKey(UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)), source.toString(),
+                contentHash);
+    }
+
+    /**
+     * Returns the items that still need to be written: duplicates within the list are always
+     * collapsed, and when deduplication is enabled items whose id is known to be stored are dropped.
+     */
+    public <T> List<T> removeStored(List<T> items, Function<T, UUID> idOf) {
+        List<T> unseen = new ArrayList<>(items.size());
+        Set<UUID> ids = new HashSet<>();
+        int cached = 0;
+        for (T item : items) {
+            UUID id = idOf.apply(item);
+            if (!ids.add(id)) continue;
+            if (!isDerived(id)) {
+                unseen.add(item);
+                continue;
+            }
+            if (properties.dedup().enabled() && isCached(id)) {
+                cached++;
+                continue;
+            }
+            unseen.add(item);
+        }
+        count("cache", cached);
+
+        List<UUID> derived = unseen.stream().map(idOf).filter(ChunkDeduplicator::isDerived).toList();
+        if (properties.dedup().enabled() && properties.dedup().checkDatabase() && !derived.isEmpty()) {
+            Set<UUID> existing = existingIds(derived);
+            if (!existing.isEmpty()) {
+                markStored(existing);
+                unseen.removeIf(item -> existing.contains(idOf.apply(item)));
+                count("database", existing.size());
+            }
+        }
+        return unseen;
+    }
+
+    public void markStored(Collection<UUID> ids) {
+        if (!properties.dedup().enabled()) return;
+        synchronized (stored) {
+            for (UUID id : ids) {
+                if (isDerived(id)) {
+                    stored.put(id, Boolean.TRUE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the id was derived from a source id by {@link #keyFor}: name-based UUIDs are
+     * version 3, the random fallback is version 4.
+     */
+    private static boolean isDerived(UUID id) {
+        return id.version() == 3;
+    }
+
+    private boolean isCached(UUID id) {
+        synchronized (stored) {
+            return stored.get(id) != null;
+        }
+    }
+
+    private Set<UUID> existingIds(List<UUID> ids) {
+        Set<UUID> existing = new HashSet<>();
+        jdbcTemplate.query(connection -> {
+            var statement = connection.prepareStatement(
+                    "SELECT id FROM " + properties.table() + " WHERE id = ANY(?)");
+            Array array = connection.createArrayOf("uuid", ids.toArray());
+            statement.setArray(1, array);
+            return statement;
+        }, rs -> {
+            existing.add(rs.getObject(1, UUID.class));
+        });
+        return existing;
+    }
+
+    private void count(String source, int skipped) {
+        if (skipped > 0) {
+            meterRegistry.counter("pgvector.sink.dedup.skipped", "source", source).increment(skipped);
+        }
+    }
+}
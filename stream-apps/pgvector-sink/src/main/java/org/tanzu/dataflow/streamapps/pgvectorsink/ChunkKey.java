@@ -0,0 +1,15 @@
+package org.tanzu.dataflow.streamapps.pgvectorsink;
+
+import java.util.UUID;
+
+/**
+ * Stable identity of a chunk: the row id is derived from the source identifier, the chunk
+ * index and the SHA-256 of the chunk text, so a redelivered or re-uploaded chunk maps to the
+ * row it was first stored in. Chunks without a source identifier get a random id.
+ */
+public record ChunkKey(
+        UUID id,
+        String sourceId,
+        String contentHash
+) {
+}
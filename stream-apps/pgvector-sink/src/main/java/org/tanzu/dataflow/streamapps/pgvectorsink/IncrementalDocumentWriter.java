@@ -0,0 +1,179 @@
+package org.tanzu.dataflow.streamapps.pgvectorsink;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Array;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import org.tanzu.dataflow.streamapps.common.ChunkedDocument;
+
+/**
+ * Re-ingests a new version of a document by diffing its chunk set against the rows already
+ * stored for the same {@code document-id}. Row ids are derived from the document id and the
+ * chunk's content hash, so an unchanged chunk keeps its row even when its position moves.
+ * Only new chunks are embedded and inserted; retained chunks get their position metadata
+ * refreshed and chunks no longer present are deleted, all in one transaction guarded by an
+ * advisory lock on the document id. Identical chunks of one document share a row, so
+ * {@code chunk-count} is the number of distinct chunks and {@code chunk-index} the position of
+ * the first occurrence.
+ * <p>
+ * The embedding model is only called outside the transaction. When another writer stored a
+ * different version between the unlocked read and the lock, the transaction is rolled back and
+ * the missing chunks are embedded before the next attempt; after {@value #MAX_ATTEMPTS} attempts
+ * the write fails with a {@link ConcurrencyFailureException} so the message is retried.
+ * <p>
+ * Counts are published as {@code pgvector.sink.incremental.chunks} tagged with
+ * {@code outcome} ({@code inserted}, {@code retained}, {@code deleted}).
+ */
+public class IncrementalDocumentWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(IncrementalDocumentWriter.class);
+
+    static final int MAX_ATTEMPTS = 3;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final EmbeddingModel embeddingModel;
+    private final PgVectorJdbcWriter rowWriter;
+    private final PgVectorSinkProperties properties;
+    private final MeterRegistry meterRegistry;
+
+    public IncrementalDocumentWriter(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate,
+            EmbeddingModel embeddingModel, PgVectorSinkProperties properties, MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.embeddingModel = embeddingModel;
+        this.rowWriter = new PgVectorJdbcWriter(jdbcTemplate, properties);
+        this.properties = properties;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * @return the number of chunks that were embedded and inserted
+     */
+    public int write(ChunkedDocument document, Map<String, Object> headers) {
+        Map<UUID, ChunkedDocument.Chunk> desired = new LinkedHashMap<>();
+        for (ChunkedDocument.Chunk chunk : document.chunks()) {
+            desired.putIfAbsent(chunkId(document.documentId(), chunk.hash()), chunk);
+        }
+
+        Map<UUID, float[]> embeddings = new HashMap<>();
+        for (int attempt = 1; ; attempt++) {
+            // Embed outside the transaction so no connection or lock is held during the model call.
+            embedMissing(desired, storedIds(document.documentId()), embeddings);
+            Integer inserted = transactionTemplate.execute(status -> {
+                jdbcTemplate.query("SELECT pg_advisory_xact_lock(hashtext(?))", rs -> { }, document.documentId());
+                Set<UUID> stored = storedIds(document.documentId());
+                if (desired.keySet().stream().anyMatch(id -> !stored.contains(id) && !embeddings.containsKey(id))) {
+                    // Another writer removed chunks since the unlocked read; embed them before retrying.
+                    status.setRollbackOnly();
+                    return null;
+                }
+                return apply(document, headers, desired, stored, embeddings);
+            });
+            if (inserted != null) {
+                return inserted;
+            }
+            if (attempt == MAX_ATTEMPTS) {
+                throw new ConcurrencyFailureException("Document " + document.documentId()
+                        + " kept changing during " + MAX_ATTEMPTS + " write attempts");
+            }
+        }
+    }
+
+    private int apply(ChunkedDocument document, Map<String, Object> headers,
+            Map<UUID, ChunkedDocument.Chunk> desired, Set<UUID> stored, Map<UUID, float[]> embeddings) {
+        List<VectorRow> inserted = new ArrayList<>();
+        List<Object[]> retained = new ArrayList<>();
+        for (Map.Entry<UUID, ChunkedDocument.Chunk> entry : desired.entrySet()) {
+            Map<String, Object> metadata = toMetadata(document, entry.getValue(), desired.size(), headers);
+            if (stored.contains(entry.getKey())) {
+                retained.add(new Object[] {VectorRowWriter.toJson(metadata), entry.getKey()});
+            } else {
+                inserted.add(new VectorRow(entry.getKey(), entry.getValue().text(), metadata,
+                        embeddings.get(entry.getKey())));
+            }
+        }
+        List<UUID> orphans = stored.stream().filter(id -> !desired.containsKey(id)).toList();
+
+        rowWriter.write(inserted);
+        jdbcTemplate.batchUpdate("UPDATE " + properties.table() + " SET metadata = ?::jsonb WHERE id = ?",
+                retained);
+        if (!orphans.isEmpty()) {
+            jdbcTemplate.update(connection -> {
+                var statement = connection.prepareStatement(
+                        "DELETE FROM " + properties.table() + " WHERE id = ANY(?)");
+                Array array = connection.createArrayOf("uuid", orphans.toArray());
+                statement.setArray(1, array);
+                return statement;
+            });
+        }
+
+        count("inserted", inserted.size());
+        count("retained", retained.size());
+        count("deleted", orphans.size());
+        log.debug("Document {} version {}: {} chunks inserted, {} retained, {} deleted",
+                document.documentId(), document.version(), inserted.size(), retained.size(), orphans.size());
+        return inserted.size();
+    }
+
+    static UUID chunkId(String documentId, String contentHash) {
+        return UUID.nameUUIDFromBytes((documentId + '\u0000' + contentHash).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void embedMissing(Map<UUID, ChunkedDocument.Chunk> desired, Set<UUID> stored,
+            Map<UUID, float[]> embeddings) {
+        List<UUID> ids = desired.keySet().stream()
+                .filter(id -> !stored.contains(id) && !embeddings.containsKey(id))
+                .toList();
+        if (ids.isEmpty()) return;
+
+        List<float[]> vectors = embeddingModel.embed(ids.stream().map(id -> desired.get(id).text()).toList());
+        for (int i = 0; i < ids.size(); i++) {
+            float[] vector = vectors.get(i);
+            if (vector.length != properties.dimensions()) {
+                throw new IllegalArgumentException("Embedding has " + vector.length
+                        + " dimensions but pgvector.dimensions=" + properties.dimensions());
+            }
+            embeddings.put(ids.get(i), vector);
+        }
+    }
+
+    private Set<UUID> storedIds(String documentId) {
+        return new HashSet<>(jdbcTemplate.queryForList("SELECT id FROM " + properties.table()
+                + " WHERE metadata->>'document-id' = ?", UUID.class, documentId));
+    }
+
+    private Map<String, Object> toMetadata(ChunkedDocument document, ChunkedDocument.Chunk chunk, int chunkCount,
+            Map<String, Object> headers) {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("document-id", document.documentId());
+        metadata.put("document-version", document.version());
+        metadata.put("content-hash", chunk.hash());
+        metadata.put("chunk-index", chunk.index());
+        metadata.put("chunk-count", chunkCount);
+        if (headers.containsKey("original-mime-type")) {
+            metadata.put("original-mime-type", headers.get("original-mime-type"));
+        }
+        return metadata;
+    }
+
+    private void count(String outcome, int chunks) {
+        meterRegistry.counter("pgvector.sink.incremental.chunks", "outcome", outcome).increment(chunks);
+    }
+}
@@ -0,0 +1,244 @@
+package org.tanzu.dataflow.streamapps.pgvectorsink;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+
+/**
+ * Bulk-loads rows into the PgVector table with {@code COPY ... FROM STDIN (FORMAT BINARY)}.
+ * Rows are encoded into a per-thread staging buffer that is reused across batches and
+ * flushed to the server whenever it fills, so a batch never needs to be materialized as a
+ * whole.
+ * <p>
+ * COPY cannot resolve conflicts, so rows are copied into a session-local temporary table and
+ * merged into the vector table with the same upsert as {@link PgVectorJdbcWriter}, in one
+ * transaction. A redelivered batch therefore updates its rows instead of failing.
+ * <p>
+ * The embedding is encoded in the binary format of the configured {@code pgvector.vector-type}
+ * ({@code vector}, {@code halfvec} or {@code bit}), plus a float4 copy for the
+ * {@code embedding_full} column when {@code pgvector.rerank-column} is enabled.
+ */
+public class PgVectorCopyWriter implements VectorRowWriter {
+
+    static final int BUFFER_BYTES = 1 << 20;
+
+    private static final String STAGING_TABLE = "pgvector_copy_staging";
+
+    private static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0};
+
+    private final DataSource dataSource;
+    private final JdbcTemplate jdbcTemplate;
+    private final PgVectorSinkProperties properties;
+    private final String createStagingSql;
+    final String copySql;
+    final String mergeSql;
+    private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(BUFFER_BYTES));
+    private volatile Boolean jsonbMetadata;
+
+    public PgVectorCopyWriter(DataSource dataSource, PgVectorSinkProperties properties) {
+        this.dataSource = dataSource;
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.properties = properties;
+        this.createStagingSql = "CREATE TEMP TABLE IF NOT EXISTS " + STAGING_TABLE
+                + " (LIKE " + properties.table() + " INCLUDING DEFAULTS) ON COMMIT DELETE ROWS";
+        String columns = properties.rerankColumn()
+                ? "id, content, metadata, embedding, embedding_full"
+                : "id, content, metadata, embedding";
+        this.copySql = "COPY " + STAGING_TABLE + " (" + columns + ") FROM STDIN (FORMAT BINARY)";
+        this.mergeSql = "INSERT INTO " + properties.table() + " (" + columns + ") SELECT " + columns
+                + " FROM " + STAGING_TABLE
+                + " ON CONFLICT (id) DO UPDATE SET content = EXCLUDED.content,"
+                + " metadata = EXCLUDED.metadata, embedding = EXCLUDED.embedding"
+                + (properties.rerankColumn() ? ", embedding_full = EXCLUDED.embedding_full" : "");
+    }
+
+    @Override
+    public String path() {
+        return "copy";
+    }
+
+    @Override
+    public void write(List<VectorRow> rows) {
+        if (rows.isEmpty()) return;
+        boolean jsonb = isJsonbMetadata();
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        boolean autoCommit = true;
+        try {
+            autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(createStagingSql);
+            }
+            CopyIn copy = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(copySql);
+            try {
+                copyRows(copy, rows, jsonb);
+                copy.endCopy();
+            } finally {
+                if (copy.isActive()) {
+                    copy.cancelCopy();
+                }
+            }
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate(mergeSql);
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            rollback(connection);
+            throw new IllegalStateException("COPY into " + properties.table() + " failed: " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            rollback(connection);
+            throw e;
+        } finally {
+            restoreAutoCommit(connection, autoCommit);
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+    }
+
+    private static void rollback(Connection connection) {
+        try {
+            connection.rollback();
+        } catch (SQLException ignored) {
+            // the original failure is more useful than the rollback one
+        }
+    }
+
+    private static void restoreAutoCommit(Connection connection, boolean autoCommit) {
+        try {
+            connection.setAutoCommit(autoCommit);
+        } catch (SQLException ignored) {
+            // the pool validates the connection before handing it out again
+        }
+    }
+
+    /**
+     * Streams {@code rows} to {@code copy} as a complete binary COPY: header, one tuple per row
+     * and the trailer. {@code jsonb} selects the binary encoding of the metadata column.
+     */
+    void copyRows(CopyIn copy, List<VectorRow> rows, boolean jsonb) throws SQLException {
+        ByteBuffer buffer = buffers.get().clear();
+        buffer.put(SIGNATURE).putInt(0).putInt(0);
+        for (VectorRow row : rows) {
+            encode(copy, buffer, row, jsonb);
+        }
+        ensure(copy, buffer, 2);
+        buffer.putShort((short) -1);
+        flush(copy, buffer);
+    }
+
+    private void encode(CopyIn copy, ByteBuffer buffer, VectorRow row, boolean jsonb) throws SQLException {
+        ensure(copy, buffer, 2 + 4 + 16);
+        buffer.putShort((short) (properties.rerankColumn() ? 5 : 4));
+        buffer.putInt(16)
+                .putLong(row.id().getMostSignificantBits())
+                .putLong(row.id().getLeastSignificantBits());
+
+        putBytes(copy, buffer, row.content().getBytes(StandardCharsets.UTF_8), false);
+        putBytes(copy, buffer, VectorRowWriter.toJson(row.metadata()).getBytes(StandardCharsets.UTF_8), jsonb);
+
+        float[] embedding = row.embedding();
+        switch (properties.vectorType()) {
+            case "HALFVEC" -> putHalfvec(copy, buffer, embedding);
+            case "BIT" -> putBit(copy, buffer, embedding);
+            default -> putVector(copy, buffer, embedding);
+        }
+        if (properties.rerankColumn()) {
+            putVector(copy, buffer, embedding);
+        }
+    }
+
+    /**
+     * {@code vector} binary format: int16 dimensions, int16 unused, float4 values.
+     */
+    private void putVector(CopyIn copy, ByteBuffer buffer, float[] embedding) throws SQLException {
+        ensure(copy, buffer, 4 + 4 + 4 * embedding.length);
+        buffer.putInt(4 + 4 * embedding.length)
+                .putShort((short) embedding.length)
+                .putShort((short) 0);
+        for (float value : embedding) {
+            buffer.putFloat(value);
+        }
+    }
+
+    /**
+     * {@code halfvec} binary format: int16 dimensions, int16 unused, float2 values.
+     */
+    private void putHalfvec(CopyIn copy, ByteBuffer buffer, float[] embedding) throws SQLException {
+        ensure(copy, buffer, 4 + 4 + 2 * embedding.length);
+        buffer.putInt(4 + 2 * embedding.length)
+                .putShort((short) embedding.length)
+                .putShort((short) 0);
+        for (float value : embedding) {
+            buffer.putShort(Float.floatToFloat16(value));
+        }
+    }
+
+    /**
+     * {@code bit} binary format: int32 bit length followed by the packed bits.
+     */
+    private void putBit(CopyIn copy, ByteBuffer buffer, float[] embedding) throws SQLException {
+        byte[] bits = VectorEncoding.packBits(embedding);
+        ensure(copy, buffer, 4 + 4 + bits.length);
+        buffer.putInt(4 + bits.length)
+                .putInt(embedding.length)
+                .put(bits);
+    }
+
+    /**
+     * Writes a length-prefixed field. The binary {@code jsonb} format is the JSON text
+     * preceded by a version byte; {@code text} and {@code json} are the raw UTF-8 bytes.
+     */
+    private void putBytes(CopyIn copy, ByteBuffer buffer, byte[] bytes, boolean jsonbVersion) throws SQLException {
+        int length = bytes.length + (jsonbVersion ? 1 : 0);
+        ensure(copy, buffer, 5);
+        buffer.putInt(length);
+        if (jsonbVersion) {
+            buffer.put((byte) 1);
+        }
+        if (bytes.length > buffer.capacity()) {
+            flush(copy, buffer);
+            copy.writeToCopy(bytes, 0, bytes.length);
+        } else {
+            ensure(copy, buffer, bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private void ensure(CopyIn copy, ByteBuffer buffer, int bytes) throws SQLException {
+        if (buffer.remaining() < bytes) {
+            flush(copy, buffer);
+        }
+    }
+
+    private void flush(CopyIn copy, ByteBuffer buffer) throws SQLException {
+        if (buffer.position() > 0) {
+            copy.writeToCopy(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Spring AI creates the metadata column as {@code json}, but tables created elsewhere
+     * often use {@code jsonb}; the two have different binary encodings.
+     */
+    private boolean isJsonbMetadata() {
+        if (jsonbMetadata == null) {
+            String type = jdbcTemplate.queryForObject(
+                    "SELECT format_type(atttypid, atttypmod) FROM pg_attribute"
+                            + " WHERE attrelid = ?::regclass AND attname = 'metadata'",
+                    String.class, properties.table());
+            jsonbMetadata = "jsonb".equals(type);
+        }
+        return jsonbMetadata;
+    }
+}
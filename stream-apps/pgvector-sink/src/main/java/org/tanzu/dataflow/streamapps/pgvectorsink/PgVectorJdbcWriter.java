@@ -0,0 +1,52 @@
+package org.tanzu.dataflow.streamapps.pgvectorsink;
+
+import java.util.List;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Writes rows that already carry an embedding straight to the PgVector table over JDBC,
+ * bypassing the {@code VectorStore} and therefore the {@code EmbeddingModel}.
+ * Uses the same upsert statement as Spring AI's {@code PgVectorStore}, so rows written here
+ * are indistinguishable from rows written through the vector store. Embeddings are converted
+ * to the configured {@code pgvector.vector-type} on the way in, and the full-precision copy is
+ * written to {@code embedding_full} when {@code pgvector.rerank-column} is enabled.
+ */
+public class PgVectorJdbcWriter implements VectorRowWriter {
+
+    private final JdbcTemplate jdbcTemplate;
+    private final PgVectorSinkProperties properties;
+    private final String upsertSql;
+
+    public PgVectorJdbcWriter(JdbcTemplate jdbcTemplate, PgVectorSinkProperties properties) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.properties = properties;
+        this.upsertSql = properties.rerankColumn()
+                ? "INSERT INTO " + properties.table()
+                        + " (id, content, metadata, embedding, embedding_full) VALUES (?, ?, ?::jsonb, ?, ?)"
+                        + " ON CONFLICT (id) DO UPDATE SET content = EXCLUDED.content, metadata = EXCLUDED.metadata,"
+                        + " embedding = EXCLUDED.embedding, embedding_full = EXCLUDED.embedding_full"
+                : "INSERT INTO " + properties.table()
+                        + " (id, content, metadata, embedding) VALUES (?, ?, ?::jsonb, ?)"
+                        + " ON CONFLICT (id) DO UPDATE SET content = EXCLUDED.content,"
+                        + " metadata = EXCLUDED.metadata, embedding = EXCLUDED.embedding";
+    }
+
+    @Override
+    public String path() {
+        return "insert";
+    }
+
+    @Override
+    public void write(List<VectorRow> rows) {
+        jdbcTemplate.batchUpdate(upsertSql, rows, rows.size(), (ps, row) -> {
+            ps.setObject(1, row.id());
+            ps.setString(2, row.content());
+            ps.setString(3, VectorRowWriter.toJson(row.metadata()));
+            ps.setObject(4, VectorEncoding.toParameter(row.embedding(), properties.vectorType()));
+            if (properties.rerankColumn()) {
+                ps.setObject(5, VectorEncoding.toParameter(row.embedding(), "VECTOR"));
+            }
+        });
+    }
+}
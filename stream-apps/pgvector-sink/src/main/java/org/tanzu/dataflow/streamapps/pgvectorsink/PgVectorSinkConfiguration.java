@@ -1,19 +1,36 @@
 package org.tanzu.dataflow.streamapps.pgvectorsink;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.function.Consumer;
 
+import javax.sql.DataSource;
+
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
 import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.cloud.stream.config.ListenerContainerCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.messaging.Message;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import org.tanzu.dataflow.streamapps.common.BatchConsumers;
+import org.tanzu.dataflow.streamapps.common.ChunkBatch;
+import org.tanzu.dataflow.streamapps.common.ChunkedDocument;
+import org.tanzu.dataflow.streamapps.common.EmbeddedText;
+import org.tanzu.dataflow.streamapps.common.Texts;
 
 /**
  * Spring Cloud Stream consumer that writes text documents to PgVector.
@@ -21,6 +38,32 @@ import org.springframework.messaging.Message;
  * {@link VectorStore} abstraction, which handles both embedding generation
  * and storage in a single operation.
  * <p>
+ * Six consumers are provided; select one with {@code spring.cloud.stream.function.definition}:
+ * <ul>
+ *   <li>{@code writeToVectorStore} (default) writes each chunk as it arrives.</li>
+ *   <li>{@code writeBatchToVectorStore} receives a batch of chunks assembled by the RabbitMQ
+ *   binder and writes it with as few {@code VectorStore.add} calls as the configured
+ *   {@link PgVectorSinkProperties.Batch} bounds allow. The broker messages are acknowledged
+ *   only after every write in the batch has returned; a failure rejects the whole batch.</li>
+ *   <li>{@code writeChunkBatchToVectorStore} receives the {@link ChunkBatch} messages of the chunker's
+ *   {@code chunkTextBatch} function and writes each like {@code writeBatchToVectorStore}, with the
+ *   batch headers and each chunk's {@code chunk-index} as metadata.</li>
+ *   <li>{@code writeEmbeddingToVectorStore} receives an {@link EmbeddedText} produced upstream by
+ *   the embedding-processor and stores its vector as-is over JDBC. The {@code EmbeddingModel}
+ *   is never called on this path.</li>
+ *   <li>{@code writeEmbeddingBatchToVectorStore} is the batching counterpart of
+ *   {@code writeEmbeddingToVectorStore}. With {@code pgvector.write-mode=COPY} each batch is
+ *   streamed with a binary {@code COPY}, the fastest way to backfill a large corpus.</li>
+ *   <li>{@code writeDocumentToVectorStore} receives a whole {@link ChunkedDocument} from the
+ *   chunker's {@code chunkDocument} function and re-ingests it incrementally through the
+ *   {@link IncrementalDocumentWriter}: only new or changed chunks are embedded, and chunks that
+ *   disappeared from the document are deleted in the same transaction.</li>
+ * </ul>
+ * Every path reports its throughput through {@link SinkMetrics} and notifies the
+ * {@link VectorIndexManager}, which defers the vector index build during bulk loads.
+ * Row ids are deterministic and every path upserts, so redeliveries are idempotent; the
+ * {@link ChunkDeduplicator} drops chunks already stored before they are embedded or written.
+ * <p>
  * Database credentials (PGVECTOR_URL, PGVECTOR_USERNAME, PGVECTOR_PASSWORD) and
  * embedding API key (EMBEDDING_API_KEY) are injected via CredHub service bindings
  * in VCAP_SERVICES at runtime.
@@ -31,30 +74,285 @@ public class PgVectorSinkConfiguration {
 
     private static final Logger log = LoggerFactory.getLogger(PgVectorSinkConfiguration.class);
 
+    private static final String VECTOR_STORE_PATH = "vector-store";
+
+    private static final String INCREMENTAL_PATH = "incremental";
+
+    /**
+     * Consumers that write through Spring AI's {@link VectorStore}.
+     */
+    private static final List<String> VECTOR_STORE_CONSUMERS =
+            List.of("writeToVectorStore", "writeBatchToVectorStore", "writeChunkBatchToVectorStore");
+
+    /**
+     * Delivers each batch of the batching consumers at most {@code pgvector.batch.linger-ms} after
+     * its first message; see {@link BatchConsumers#lingerCustomizer(long)}.
+     */
+    @Bean
+    public ListenerContainerCustomizer<MessageListenerContainer> batchLingerCustomizer(
+            PgVectorSinkProperties properties) {
+        return BatchConsumers.lingerCustomizer(properties.batch().lingerMs());
+    }
+
+    @Bean
+    public SinkMetrics sinkMetrics(MeterRegistry meterRegistry, PgVectorSinkProperties properties) {
+        return new SinkMetrics(meterRegistry, properties.vectorType());
+    }
+
+    @Bean
+    public VectorIndexManager vectorIndexManager(JdbcTemplate jdbcTemplate, PgVectorSinkProperties properties,
+            MeterRegistry meterRegistry) {
+        return new VectorIndexManager(jdbcTemplate, properties, meterRegistry);
+    }
+
     @Bean
-    public Consumer<Message<String>> writeToVectorStore(VectorStore vectorStore) {
+    public VectorStorageInitializer vectorStorageInitializer(JdbcTemplate jdbcTemplate,
+            PgVectorSinkProperties properties, VectorIndexManager vectorIndexManager, MeterRegistry meterRegistry,
+            @Value("${spring.cloud.stream.function.definition:}") String definition) {
+        checkVectorStoreSupported(properties, definition);
+        return new VectorStorageInitializer(jdbcTemplate, properties, vectorIndexManager, meterRegistry);
+    }
+
+    @Bean
+    public VectorIndexEndpoint vectorIndexEndpoint(VectorIndexManager vectorIndexManager) {
+        return new VectorIndexEndpoint(vectorIndexManager);
+    }
+
+    @Bean
+    public ChunkDeduplicator chunkDeduplicator(JdbcTemplate jdbcTemplate, PgVectorSinkProperties properties,
+            MeterRegistry meterRegistry) {
+        return new ChunkDeduplicator(jdbcTemplate, properties, meterRegistry);
+    }
+
+    @Bean
+    public Consumer<Message<String>> writeToVectorStore(VectorStore vectorStore, SinkMetrics metrics,
+            VectorIndexManager indexManager, ChunkDeduplicator deduplicator) {
         return message -> {
             String text = message.getPayload();
             log.debug("Writing document with {} characters to PgVector", text.length());
 
-            Map<String, Object> metadata = new HashMap<>();
-            if (message.getHeaders().containsKey("chunk-index")) {
-                metadata.put("chunk-index", message.getHeaders().get("chunk-index"));
+            Document document = toDocument(text, message.getHeaders(), deduplicator);
+            if (deduplicator.removeStored(List.of(document), PgVectorSinkConfiguration::idOf).isEmpty()) {
+                log.debug("Skipping document {}: already stored", document.getId());
+                return;
+            }
+            metrics.record(VECTOR_STORE_PATH, 1, () -> vectorStore.add(List.of(document)));
+            deduplicator.markStored(List.of(idOf(document)));
+            indexManager.recordWrite();
+            log.debug("Successfully wrote document to PgVector (embedding generated by VectorStore)");
+        };
+    }
+
+    @Bean
+    public Consumer<Message<List<String>>> writeBatchToVectorStore(
+            VectorStore vectorStore, PgVectorSinkProperties properties, SinkMetrics metrics,
+            VectorIndexManager indexManager, ChunkDeduplicator deduplicator) {
+        return message -> writeTexts(message.getPayload(),
+                BatchConsumers.batchedHeaders(message, message.getPayload().size()),
+                vectorStore, properties, metrics, indexManager, deduplicator);
+    }
+
+    @Bean
+    public Consumer<Message<ChunkBatch>> writeChunkBatchToVectorStore(
+            VectorStore vectorStore, PgVectorSinkProperties properties, SinkMetrics metrics,
+            VectorIndexManager indexManager, ChunkDeduplicator deduplicator) {
+        return message -> {
+            ChunkBatch batch = message.getPayload();
+            writeTexts(batch.chunks(), batch.chunkHeaders(message.getHeaders()),
+                    vectorStore, properties, metrics, indexManager, deduplicator);
+        };
+    }
+
+    /**
+     * Writes texts with their per-text headers through the {@link VectorStore}, in as few
+     * {@code add} calls as the {@link PgVectorSinkProperties.Batch} bounds allow.
+     */
+    private void writeTexts(List<String> texts, List<Map<String, Object>> headers, VectorStore vectorStore,
+            PgVectorSinkProperties properties, SinkMetrics metrics, VectorIndexManager indexManager,
+            ChunkDeduplicator deduplicator) {
+        List<Document> documents = new ArrayList<>(texts.size());
+        for (int i = 0; i < texts.size(); i++) {
+            documents.add(toDocument(texts.get(i), headers.get(i), deduplicator));
+        }
+        documents = deduplicator.removeStored(documents, PgVectorSinkConfiguration::idOf);
+        if (documents.isEmpty()) {
+            log.debug("Skipping batch of {} documents: all already stored", texts.size());
+            return;
+        }
+
+        List<List<Document>> batches = partition(documents,
+                properties.batch().maxMessages(), properties.batch().maxBytes());
+        for (List<Document> batch : batches) {
+            metrics.record(VECTOR_STORE_PATH, batch.size(), () -> vectorStore.add(batch));
+            deduplicator.markStored(batch.stream().map(PgVectorSinkConfiguration::idOf).toList());
+        }
+        indexManager.recordWrite();
+        log.debug("Wrote {} documents to PgVector in {} VectorStore calls", documents.size(), batches.size());
+    }
+
+    @Bean
+    public VectorRowWriter vectorRowWriter(
+            JdbcTemplate jdbcTemplate, DataSource dataSource, PgVectorSinkProperties properties) {
+        if ("COPY".equalsIgnoreCase(properties.writeMode())) {
+            return new PgVectorCopyWriter(dataSource, properties);
+        }
+        return new PgVectorJdbcWriter(jdbcTemplate, properties);
+    }
+
+    @Bean
+    public Consumer<Message<EmbeddedText>> writeEmbeddingToVectorStore(
+            VectorRowWriter writer, PgVectorSinkProperties properties, SinkMetrics metrics,
+            VectorIndexManager indexManager, ChunkDeduplicator deduplicator) {
+        return message -> {
+            EmbeddedText payload = message.getPayload();
+            log.debug("Writing document with {} characters and precomputed embedding to PgVector",
+                    payload.text().length());
+
+            List<VectorRow> rows = deduplicator.removeStored(
+                    List.of(toRow(payload, message.getHeaders(), properties, deduplicator)), VectorRow::id);
+            if (rows.isEmpty()) {
+                log.debug("Skipping precomputed embedding: already stored");
+                return;
             }
-            if (message.getHeaders().containsKey("chunk-count")) {
-                metadata.put("chunk-count", message.getHeaders().get("chunk-count"));
+            metrics.record(writer.path(), 1, () -> writer.write(rows));
+            deduplicator.markStored(List.of(rows.getFirst().id()));
+            indexManager.recordWrite();
+        };
+    }
+
+    @Bean
+    public Consumer<Message<List<EmbeddedText>>> writeEmbeddingBatchToVectorStore(
+            VectorRowWriter writer, PgVectorSinkProperties properties, SinkMetrics metrics,
+            VectorIndexManager indexManager, ChunkDeduplicator deduplicator) {
+        return message -> {
+            List<EmbeddedText> payloads = message.getPayload();
+            List<Map<String, Object>> headers = BatchConsumers.batchedHeaders(message, payloads.size());
+
+            List<VectorRow> rows = new ArrayList<>(payloads.size());
+            for (int i = 0; i < payloads.size(); i++) {
+                rows.add(toRow(payloads.get(i), headers.get(i), properties, deduplicator));
             }
-            if (message.getHeaders().containsKey("original-mime-type")) {
-                metadata.put("original-mime-type", message.getHeaders().get("original-mime-type"));
+            List<VectorRow> unseen = deduplicator.removeStored(rows, VectorRow::id);
+            if (unseen.isEmpty()) {
+                log.debug("Skipping batch of {} precomputed embeddings: all already stored", rows.size());
+                return;
             }
 
-            Document document = Document.builder()
-                    .text(text)
-                    .metadata(metadata)
-                    .build();
+            metrics.record(writer.path(), unseen.size(), () -> writer.write(unseen));
+            deduplicator.markStored(unseen.stream().map(VectorRow::id).toList());
+            indexManager.recordWrite();
+            log.debug("Wrote {} precomputed embeddings to PgVector via {}", unseen.size(), writer.path());
+        };
+    }
+
+    @Bean
+    public IncrementalDocumentWriter incrementalDocumentWriter(JdbcTemplate jdbcTemplate,
+            TransactionTemplate transactionTemplate, EmbeddingModel embeddingModel,
+            PgVectorSinkProperties properties, MeterRegistry meterRegistry) {
+        return new IncrementalDocumentWriter(jdbcTemplate, transactionTemplate, embeddingModel, properties,
+                meterRegistry);
+    }
 
-            vectorStore.add(List.of(document));
-            log.debug("Successfully wrote document to PgVector (embedding generated by VectorStore)");
+    @Bean
+    public Consumer<Message<ChunkedDocument>> writeDocumentToVectorStore(IncrementalDocumentWriter writer,
+            SinkMetrics metrics, VectorIndexManager indexManager) {
+        return message -> {
+            ChunkedDocument document = message.getPayload();
+            log.debug("Re-ingesting document {} with {} chunks", document.documentId(), document.chunks().size());
+
+            metrics.record(INCREMENTAL_PATH, document.chunks().size(),
+                    () -> writer.write(document, message.getHeaders()));
+            indexManager.recordWrite();
         };
     }
+
+    private VectorRow toRow(EmbeddedText payload, Map<String, Object> headers, PgVectorSinkProperties properties,
+            ChunkDeduplicator deduplicator) {
+        checkDimensions(payload.embedding(), properties);
+        ChunkKey key = deduplicator.keyFor(payload.text(), headers);
+        return new VectorRow(key.id(), payload.text(), toMetadata(headers, key), payload.embedding());
+    }
+
+    /**
+     * Spring AI writes float4 vectors: PostgreSQL casts them to {@code halfvec} on insert, but
+     * {@code bit} columns and the re-rank column need the JDBC paths. Checked once at startup
+     * against the consumers named in {@code definition}, so that a misconfigured sink fails to
+     * start instead of dead-lettering every message.
+     */
+    static void checkVectorStoreSupported(PgVectorSinkProperties properties, String definition) {
+        if (!"BIT".equals(properties.vectorType()) && !properties.rerankColumn()) {
+            return;
+        }
+        for (String function : definition.split("[;|]")) {
+            if (VECTOR_STORE_CONSUMERS.contains(function.strip())) {
+                throw new IllegalStateException("pgvector.vector-type=" + properties.vectorType()
+                        + (properties.rerankColumn() ? " with pgvector.rerank-column" : "") + " is not supported by "
+                        + function.strip() + "; use the precomputed-embedding or incremental consumers");
+            }
+        }
+    }
+
+    private void checkDimensions(float[] embedding, PgVectorSinkProperties properties) {
+        if (embedding == null || embedding.length != properties.dimensions()) {
+            throw new IllegalArgumentException("Embedding has " + (embedding == null ? 0 : embedding.length)
+                    + " dimensions but pgvector.dimensions=" + properties.dimensions());
+        }
+    }
+
+    private Document toDocument(String text, Map<String, Object> headers, ChunkDeduplicator deduplicator) {
+        ChunkKey key = deduplicator.keyFor(text, headers);
+        return Document.builder()
+                .id(key.id().toString())
+                .text(text)
+                .metadata(toMetadata(headers, key))
+                .build();
+    }
+
+    private static UUID idOf(Document document) {
+        return UUID.fromString(document.getId());
+    }
+
+    private Map<String, Object> toMetadata(Map<String, Object> headers, ChunkKey key) {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("content-hash", key.contentHash());
+        if (key.sourceId() != null) {
+            metadata.put("source-id", key.sourceId());
+        }
+        if (headers.containsKey("chunk-index")) {
+            metadata.put("chunk-index", headers.get("chunk-index"));
+        }
+        if (headers.containsKey("chunk-count")) {
+            metadata.put("chunk-count", headers.get("chunk-count"));
+        }
+        if (headers.containsKey("original-mime-type")) {
+            metadata.put("original-mime-type", headers.get("original-mime-type"));
+        }
+        return metadata;
+    }
+
+    /**
+     * Splits documents into consecutive batches holding at most {@code maxMessages} documents
+     * and at most {@code maxBytes} of UTF-8 text. A single document larger than
+     * {@code maxBytes} is written on its own rather than rejected.
+     */
+    List<List<Document>> partition(List<Document> documents, int maxMessages, long maxBytes) {
+        List<List<Document>> batches = new ArrayList<>();
+        List<Document> current = new ArrayList<>();
+        long currentBytes = 0;
+
+        for (Document document : documents) {
+            long bytes = Texts.utf8Length(document.getText());
+            if (!current.isEmpty() && (current.size() >= maxMessages || currentBytes + bytes > maxBytes)) {
+                batches.add(current);
+                current = new ArrayList<>();
+                currentBytes = 0;
+            }
+            current.add(document);
+            currentBytes += bytes;
+        }
+        if (!current.isEmpty()) {
+            batches.add(current);
+        }
+        return batches;
+    }
 }
@@ -7,12 +7,107 @@ public record PgVectorSinkProperties(
         String table,
         int dimensions,
         String indexType,
-        String distanceType
+        String distanceType,
+        String writeMode,
+        String vectorType,
+        boolean rerankColumn,
+        boolean initializeSchema,
+        Batch batch,
+        BulkLoad bulkLoad,
+        Dedup dedup
 ) {
     public PgVectorSinkProperties {
         if (table == null || table.isBlank()) table = "vector_store";
         if (dimensions <= 0) dimensions = 1536;
         if (indexType == null || indexType.isBlank()) indexType = "HNSW";
         if (distanceType == null || distanceType.isBlank()) distanceType = "COSINE_DISTANCE";
+        if (writeMode == null || writeMode.isBlank()) writeMode = "INSERT";
+        if (vectorType == null || vectorType.isBlank()) vectorType = "VECTOR";
+        vectorType = vectorType.toUpperCase();
+        if (batch == null) batch = new Batch(0, 0, 0);
+        if (bulkLoad == null) bulkLoad = new BulkLoad(false, 0, null, 0);
+        if (dedup == null) dedup = new Dedup(false, 0, false, null);
+    }
+
+    /**
+     * SQL type of the {@code embedding} column: {@code vector} (float4), {@code halfvec}
+     * (float2) or {@code bit} (binary-quantized, one bit per dimension).
+     */
+    public String columnType() {
+        return switch (vectorType) {
+            case "HALFVEC" -> "halfvec(" + dimensions + ")";
+            case "BIT" -> "bit(" + dimensions + ")";
+            default -> "vector(" + dimensions + ")";
+        };
+    }
+
+    /**
+     * Operator class of the vector index for the configured column type and distance.
+     * Binary-quantized vectors are always compared by Hamming distance.
+     */
+    public String indexOperatorClass() {
+        if ("BIT".equals(vectorType)) {
+            return "bit_hamming_ops";
+        }
+        String prefix = "HALFVEC".equals(vectorType) ? "halfvec" : "vector";
+        return switch (distanceType) {
+            case "EUCLIDEAN_DISTANCE" -> prefix + "_l2_ops";
+            case "NEGATIVE_INNER_PRODUCT" -> prefix + "_ip_ops";
+            default -> prefix + "_cosine_ops";
+        };
+    }
+
+    /**
+     * Bounds for the batching consumer ({@code writeBatchToVectorStore}).
+     * {@code maxMessages} and {@code lingerMs} are applied by the RabbitMQ binder when it
+     * assembles a delivery batch: a batch is delivered once it holds {@code maxMessages}, or
+     * {@code lingerMs} after its first message or since the last one, whichever comes first;
+     * {@code maxBytes} splits a delivery into several {@code VectorStore.add} calls when the
+     * accumulated text grows too large.
+     */
+    public record Batch(
+            int maxMessages,
+            long maxBytes,
+            long lingerMs
+    ) {
+        public Batch {
+            if (maxMessages <= 0) maxMessages = 100;
+            if (maxBytes <= 0) maxBytes = 1_048_576;
+            if (lingerMs <= 0) lingerMs = 1000;
+        }
+    }
+
+    /**
+     * Bulk-load lifecycle: when enabled the vector index is dropped at startup and rebuilt
+     * once ingest has been idle for {@code idleTimeoutMs}, with the given
+     * {@code maintenance_work_mem} and {@code max_parallel_maintenance_workers}.
+     */
+    public record BulkLoad(
+            boolean enabled,
+            long idleTimeoutMs,
+            String maintenanceWorkMem,
+            int parallelWorkers
+    ) {
+        public BulkLoad {
+            if (idleTimeoutMs <= 0) idleTimeoutMs = 60_000;
+            if (maintenanceWorkMem == null || maintenanceWorkMem.isBlank()) maintenanceWorkMem = "1GB";
+            if (parallelWorkers <= 0) parallelWorkers = 4;
+        }
+    }
+
+    /**
+     * Skipping of chunks that are already stored. {@code sourceHeader} names the message
+     * header identifying the source document; it is part of the deterministic row id.
+     */
+    public record Dedup(
+            boolean enabled,
+            int cacheSize,
+            boolean checkDatabase,
+            String sourceHeader
+    ) {
+        public Dedup {
+            if (cacheSize <= 0) cacheSize = 100_000;
+            if (sourceHeader == null || sourceHeader.isBlank()) sourceHeader = "file_remoteFile";
+        }
     }
 }
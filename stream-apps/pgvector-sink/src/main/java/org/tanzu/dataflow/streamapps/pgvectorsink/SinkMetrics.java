@@ -0,0 +1,28 @@
+package org.tanzu.dataflow.streamapps.pgvectorsink;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Publishes write throughput for every sink path under the same meter names so the paths
+ * can be compared side by side: {@code pgvector.sink.write} times each write call and
+ * {@code pgvector.sink.rows} counts the rows it stored, both tagged with {@code path} and with
+ * the {@code vector-type} of the embedding column.
+ */
+public class SinkMetrics {
+
+    private final MeterRegistry registry;
+    private final String vectorType;
+
+    public SinkMetrics(MeterRegistry registry, String vectorType) {
+        this.registry = registry;
+        this.vectorType = vectorType;
+    }
+
+    public void record(String path, int rows, Runnable write) {
+        Timer.Sample sample = Timer.start(registry);
+        write.run();
+        sample.stop(registry.timer("pgvector.sink.write", "path", path, "vector-type", vectorType));
+        registry.counter("pgvector.sink.rows", "path", path, "vector-type", vectorType).increment(rows);
+    }
+}
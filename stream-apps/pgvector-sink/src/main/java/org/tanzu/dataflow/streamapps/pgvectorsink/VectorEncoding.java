@@ -0,0 +1,48 @@
+package org.tanzu.dataflow.streamapps.pgvectorsink;
+
+import com.pgvector.PGbit;
+import com.pgvector.PGhalfvec;
+import com.pgvector.PGvector;
+
+/**
+ * Conversions from a float4 embedding to the column types supported by
+ * {@code pgvector.vector-type}. Binary quantization follows pgvector's
+ * {@code binary_quantize}: a dimension maps to 1 when its value is positive.
+ */
+final class VectorEncoding {
+
+    private VectorEncoding() {
+    }
+
+    /**
+     * JDBC parameter for the given column type.
+     */
+    static Object toParameter(float[] embedding, String vectorType) {
+        return switch (vectorType) {
+            case "HALFVEC" -> new PGhalfvec(embedding);
+            case "BIT" -> new PGbit(binaryQuantize(embedding));
+            default -> new PGvector(embedding);
+        };
+    }
+
+    static boolean[] binaryQuantize(float[] embedding) {
+        boolean[] bits = new boolean[embedding.length];
+        for (int i = 0; i < embedding.length; i++) {
+            bits[i] = embedding[i] > 0;
+        }
+        return bits;
+    }
+
+    /**
+     * Packs one bit per dimension, most significant bit first, as PostgreSQL stores {@code bit(n)}.
+     */
+    static byte[] packBits(float[] embedding) {
+        byte[] bits = new byte[(embedding.length + 7) / 8];
+        for (int i = 0; i < embedding.length; i++) {
+            if (embedding[i] > 0) {
+                bits[i >> 3] |= (byte) (0x80 >>> (i & 7));
+            }
+        }
+        return bits;
+    }
+}
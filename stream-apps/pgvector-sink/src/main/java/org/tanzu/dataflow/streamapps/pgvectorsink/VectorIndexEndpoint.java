@@ -0,0 +1,39 @@
+package org.tanzu.dataflow.streamapps.pgvectorsink;
+
+import java.util.Map;
+
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+
+/**
+ * Actuator endpoint controlling the bulk-load index lifecycle: read the state, trigger the
+ * rebuild explicitly at the end of a backfill, or drop the index to start another bulk load.
+ */
+@Endpoint(id = "pgvectorindex")
+public class VectorIndexEndpoint {
+
+    private final VectorIndexManager indexManager;
+
+    public VectorIndexEndpoint(VectorIndexManager indexManager) {
+        this.indexManager = indexManager;
+    }
+
+    @ReadOperation
+    public Map<String, Object> status() {
+        return Map.of("index", indexManager.indexName(), "pending", indexManager.isPending());
+    }
+
+    @WriteOperation
+    public Map<String, Object> rebuild() {
+        indexManager.rebuildIndex();
+        return status();
+    }
+
+    @DeleteOperation
+    public Map<String, Object> drop() {
+        indexManager.dropIndex();
+        return status();
+    }
+}
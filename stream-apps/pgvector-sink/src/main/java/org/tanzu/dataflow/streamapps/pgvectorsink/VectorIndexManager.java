@@ -0,0 +1,191 @@
+package org.tanzu.dataflow.streamapps.pgvectorsink;
+
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.context.SmartLifecycle;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Bulk-load lifecycle for the vector index. When {@code pgvector.bulk-load.enabled=true} the
+ * index is dropped at startup so that ingest does not pay for maintaining
+ * the HNSW graph on every insert. The index is rebuilt with {@code CREATE INDEX CONCURRENTLY},
+ * using the configured {@code maintenance_work_mem} and parallel maintenance workers, once no
+ * rows have been written for {@code idle-timeout-ms} or when {@link #rebuildIndex()} is invoked
+ * through the {@code pgvectorindex} actuator endpoint.
+ * <p>
+ * Publishes {@code pgvector.index.rebuild} (timer) and {@code pgvector.index.pending} (gauge,
+ * 1 while the index is missing).
+ */
+public class VectorIndexManager implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(VectorIndexManager.class);
+
+    private static final String DEFAULT_TABLE_NAME = "vector_store";
+    private static final String DEFAULT_INDEX_NAME = "spring_ai_vector_index";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final PgVectorSinkProperties properties;
+    private final MeterRegistry meterRegistry;
+    private final String indexName;
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private final AtomicLong lastWriteNanos = new AtomicLong(System.nanoTime());
+    private ScheduledExecutorService scheduler;
+    private volatile boolean running;
+
+    public VectorIndexManager(JdbcTemplate jdbcTemplate, PgVectorSinkProperties properties,
+            MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.properties = properties;
+        this.meterRegistry = meterRegistry;
+        this.indexName = DEFAULT_TABLE_NAME.equals(properties.table())
+                ? DEFAULT_INDEX_NAME : properties.table() + "_index";
+        meterRegistry.gauge("pgvector.index.pending", pending, p -> p.get() ? 1 : 0);
+    }
+
+    /**
+     * Called after every successful write; postpones the idle-triggered rebuild.
+     */
+    public void recordWrite() {
+        lastWriteNanos.set(System.nanoTime());
+    }
+
+    public boolean isPending() {
+        return pending.get();
+    }
+
+    public String indexName() {
+        return indexName;
+    }
+
+    /**
+     * Drops the vector index so that subsequent inserts skip index maintenance.
+     */
+    public synchronized void dropIndex() {
+        log.info("Bulk load: dropping vector index {} until ingest goes idle", indexName);
+        jdbcTemplate.execute("DROP INDEX CONCURRENTLY IF EXISTS " + indexName);
+        lastWriteNanos.set(System.nanoTime());
+        pending.set(true);
+    }
+
+    /**
+     * Creates the vector index with the operator class of the configured column type unless it
+     * exists. Blocks writes to the table while it builds; used at startup.
+     */
+    public synchronized void createIndex() {
+        log.info("Creating vector index {} on {} unless it exists", indexName, properties.table());
+        jdbcTemplate.execute(indexSql("CREATE INDEX IF NOT EXISTS "));
+        pending.set(false);
+    }
+
+    /**
+     * Builds the vector index if it is pending. Safe to call concurrently with ingest.
+     */
+    public synchronized void rebuildIndex() {
+        if (!pending.get()) return;
+        PgVectorSinkProperties.BulkLoad bulkLoad = properties.bulkLoad();
+        String createSql = indexSql("CREATE INDEX CONCURRENTLY IF NOT EXISTS ");
+        log.info("Bulk load: rebuilding vector index {} (maintenance_work_mem={}, parallel workers={})",
+                indexName, bulkLoad.maintenanceWorkMem(), bulkLoad.parallelWorkers());
+
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "success";
+        try {
+            jdbcTemplate.execute((Statement statement) -> {
+                statement.execute("SET maintenance_work_mem = '" + bulkLoad.maintenanceWorkMem() + "'");
+                statement.execute("SET max_parallel_maintenance_workers = " + bulkLoad.parallelWorkers());
+                try {
+                    statement.execute(createSql);
+                } finally {
+                    statement.execute("RESET maintenance_work_mem");
+                    statement.execute("RESET max_parallel_maintenance_workers");
+                }
+                return null;
+            });
+            pending.set(false);
+        } catch (RuntimeException e) {
+            outcome = "failure";
+            // A failed concurrent build leaves an INVALID index behind; remove it so the next attempt starts clean.
+            jdbcTemplate.execute("DROP INDEX CONCURRENTLY IF EXISTS " + indexName);
+            throw e;
+        } finally {
+            long nanos = sample.stop(meterRegistry.timer("pgvector.index.rebuild", "outcome", outcome));
+            log.info("Bulk load: index {} rebuild {} after {} ms", indexName, outcome,
+                    TimeUnit.NANOSECONDS.toMillis(nanos));
+        }
+    }
+
+    private String indexSql(String create) {
+        return create + indexName + " ON " + properties.table() + " USING " + properties.indexType().toLowerCase()
+                + " (embedding " + properties.indexOperatorClass() + ")";
+    }
+
+    /**
+     * Rebuilds the pending index once no write has been recorded for {@code idle-timeout-ms}
+     * before {@code nowNanos}.
+     */
+    void rebuildIfIdle(long nowNanos) {
+        long idleNanos = nowNanos - lastWriteNanos.get();
+        if (pending.get() && idleNanos >= TimeUnit.MILLISECONDS.toNanos(properties.bulkLoad().idleTimeoutMs())) {
+            try {
+                rebuildIndex();
+            } catch (RuntimeException e) {
+                log.error("Bulk load: index rebuild failed, will retry after the next idle period: {}",
+                        e.getMessage(), e);
+                recordWrite();
+            }
+        }
+    }
+
+    @Override
+    public void start() {
+        if ("NONE".equalsIgnoreCase(properties.indexType())) {
+            log.warn("Bulk load enabled but pgvector.index-type=NONE; no index will be built");
+        } else {
+            dropIndex();
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+                .name("pgvector-index").daemon().factory());
+        scheduler.scheduleWithFixedDelay(() -> rebuildIfIdle(System.nanoTime()), 1, 1, TimeUnit.SECONDS);
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (pending.get()) {
+            log.warn("Bulk load: stopping with vector index {} still pending; it is built on the next idle period",
+                    indexName);
+        }
+        running = false;
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return properties.bulkLoad().enabled();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Drop the index before the stream bindings start consuming.
+     */
+    @Override
+    public int getPhase() {
+        return Integer.MIN_VALUE + 1000;
+    }
+}
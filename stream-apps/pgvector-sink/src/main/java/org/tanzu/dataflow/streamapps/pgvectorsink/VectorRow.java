@@ -0,0 +1,15 @@
+package org.tanzu.dataflow.streamapps.pgvectorsink;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * One row of the PgVector table: the same columns Spring AI's {@code PgVectorStore} creates.
+ */
+public record VectorRow(
+        UUID id,
+        String content,
+        Map<String, Object> metadata,
+        float[] embedding
+) {
+}
@@ -0,0 +1,31 @@
+package org.tanzu.dataflow.streamapps.pgvectorsink;
+
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Writes rows that already carry an embedding to the PgVector table.
+ * The implementation is chosen by {@code pgvector.write-mode}.
+ */
+public interface VectorRowWriter {
+
+    ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    /**
+     * Short name of the write path, used as the {@code path} tag of the sink metrics.
+     */
+    String path();
+
+    void write(List<VectorRow> rows);
+
+    static String toJson(Map<String, Object> metadata) {
+        try {
+            return OBJECT_MAPPER.writeValueAsString(metadata);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Metadata is not serializable to JSON: " + e.getMessage(), e);
+        }
+    }
+}
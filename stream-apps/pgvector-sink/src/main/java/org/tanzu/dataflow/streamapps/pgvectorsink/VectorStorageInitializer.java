@@ -0,0 +1,106 @@
+package org.tanzu.dataflow.streamapps.pgvectorsink;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Creates and maintains the vector table in place of Spring AI's schema initialization, which
+ * always declares the {@code embedding} column as float4 {@code vector} and indexes it with
+ * {@code vector_*_ops}: on a table already converted to {@code halfvec} or {@code bit} that index
+ * statement fails and the application could not start again. With
+ * {@code pgvector.initialize-schema=true}, this creates the extensions, the table with the column
+ * type of {@code pgvector.vector-type}, the index on {@code metadata->>'document-id'} that the
+ * {@link IncrementalDocumentWriter} looks documents up by and, unless a bulk load defers it, the
+ * vector index with the matching operator class. An existing float4 {@code embedding} column is converted in place
+ * (existing rows are cast or binary-quantized), after first copying it to {@code embedding_full}
+ * when the full-precision re-rank column is enabled; the vector index is dropped before the
+ * conversion.
+ * <p>
+ * Publishes {@code pgvector.table.size} and {@code pgvector.index.size} (bytes, tagged with
+ * {@code vector-type}) so the footprint of each layout can be compared.
+ */
+public class VectorStorageInitializer implements InitializingBean {
+
+    private static final Logger log = LoggerFactory.getLogger(VectorStorageInitializer.class);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final PgVectorSinkProperties properties;
+    private final VectorIndexManager indexManager;
+    private final MeterRegistry meterRegistry;
+
+    public VectorStorageInitializer(JdbcTemplate jdbcTemplate, PgVectorSinkProperties properties,
+            VectorIndexManager indexManager, MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.properties = properties;
+        this.indexManager = indexManager;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        Gauge.builder("pgvector.table.size", this, s -> s.relationSize("pg_total_relation_size", properties.table()))
+                .baseUnit("bytes").tag("vector-type", properties.vectorType()).register(meterRegistry);
+        Gauge.builder("pgvector.index.size", this, s -> s.relationSize("pg_relation_size", indexManager.indexName()))
+                .baseUnit("bytes").tag("vector-type", properties.vectorType()).register(meterRegistry);
+
+        if (!properties.initializeSchema()) {
+            return;
+        }
+
+        String table = properties.table();
+        jdbcTemplate.execute("CREATE EXTENSION IF NOT EXISTS vector");
+        jdbcTemplate.execute("CREATE EXTENSION IF NOT EXISTS hstore");
+        jdbcTemplate.execute("CREATE EXTENSION IF NOT EXISTS \"uuid-ossp\"");
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + table + " (id uuid DEFAULT uuid_generate_v4() PRIMARY KEY,"
+                + " content text, metadata json, embedding " + properties.columnType() + ")");
+        // Concurrently, so that other instances keep writing while it builds on a populated table.
+        jdbcTemplate.execute("CREATE INDEX CONCURRENTLY IF NOT EXISTS " + table + "_document_id_idx ON " + table
+                + " ((metadata->>'document-id'))");
+        String current = columnType("embedding");
+
+        if (properties.rerankColumn()) {
+            String fullType = "vector(" + properties.dimensions() + ")";
+            jdbcTemplate.execute("ALTER TABLE " + table + " ADD COLUMN IF NOT EXISTS embedding_full " + fullType);
+            if (fullType.equals(current)) {
+                int copied = jdbcTemplate.update("UPDATE " + table
+                        + " SET embedding_full = embedding WHERE embedding_full IS NULL");
+                log.info("Copied {} full-precision embeddings to {}.embedding_full", copied, table);
+            }
+        }
+
+        if (!properties.columnType().equals(current)) {
+            String using = "BIT".equals(properties.vectorType())
+                    ? "binary_quantize(embedding)::" + properties.columnType()
+                    : "embedding::" + properties.columnType();
+            log.info("Converting {}.embedding from {} to {}", table, current, properties.columnType());
+            // The index must go before the type changes; the createIndex() below rebuilds it. Not a
+            // bulk-load drop, so the index manager's pending-rebuild state is left alone.
+            jdbcTemplate.execute("DROP INDEX IF EXISTS " + indexManager.indexName());
+            jdbcTemplate.execute("ALTER TABLE " + table + " ALTER COLUMN embedding TYPE "
+                    + properties.columnType() + " USING " + using);
+        }
+
+        if (!properties.bulkLoad().enabled() && !"NONE".equalsIgnoreCase(properties.indexType())) {
+            indexManager.createIndex();
+        }
+    }
+
+    private String columnType(String column) {
+        return jdbcTemplate.queryForObject("SELECT format_type(atttypid, atttypmod) FROM pg_attribute"
+                + " WHERE attrelid = ?::regclass AND attname = ?", String.class, properties.table(), column);
+    }
+
+    private double relationSize(String function, String relation) {
+        try {
+            Long bytes = jdbcTemplate.queryForObject("SELECT " + function + "(to_regclass(?))", Long.class, relation);
+            return bytes == null ? Double.NaN : bytes;
+        } catch (RuntimeException e) {
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package org.tanzu.dataflow.streamapps.pgvectorsink;
+
+import java.lang.reflect.Proxy;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import org.tanzu.dataflow.streamapps.common.ChunkedDocument;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class IncrementalDocumentWriterTests {
+
+    private final Table table = new Table();
+
+    private final RecordingEmbeddingModel embeddingModel = new RecordingEmbeddingModel();
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final IncrementalDocumentWriter writer = new IncrementalDocumentWriter(table,
+            new TransactionTemplate(new TableTransactionManager(table)), embeddingModel,
+            new PgVectorSinkProperties(null, 3, null, null, null, null, false, false, null, null, null), meterRegistry);
+
+    @Test
+    void embedsOnlyNewChunksAndDeletesRemovedOnes() {
+        assertThat(writer.write(document("v1", "alpha", "beta", "gamma"), Map.of())).isEqualTo(3);
+        UUID alpha = IncrementalDocumentWriter.chunkId("doc", "alpha");
+        UUID gamma = IncrementalDocumentWriter.chunkId("doc", "gamma");
+
+        assertThat(writer.write(document("v2", "beta", "alpha", "delta"), Map.of("original-mime-type", "text/plain")))
+                .isEqualTo(1);
+
+        assertThat(embeddingModel.calls).containsExactly(List.of("alpha", "beta", "gamma"), List.of("delta"));
+        assertThat(embeddingModel.inTransaction).containsOnly(false);
+        assertThat(table.contents()).containsExactlyInAnyOrder("alpha", "beta", "delta");
+        assertThat(table.rows).doesNotContainKey(gamma);
+        assertThat(table.rows.get(alpha).metadata())
+                .containsEntry("chunk-index", 1)
+                .containsEntry("chunk-count", 3)
+                .containsEntry("document-version", "v2")
+                .containsEntry("original-mime-type", "text/plain");
+        assertThat(meterRegistry.get("pgvector.sink.incremental.chunks").tag("outcome", "retained").counter().count())
+                .isEqualTo(2);
+        assertThat(meterRegistry.get("pgvector.sink.incremental.chunks").tag("outcome", "deleted").counter().count())
+                .isEqualTo(1);
+    }
+
+    @Test
+    void countsRepeatedChunksOnce() {
+        assertThat(writer.write(document("v1", "header", "body", "header"), Map.of())).isEqualTo(2);
+
+        assertThat(embeddingModel.calls).containsExactly(List.of("header", "body"));
+        assertThat(table.rows.values()).extracting(row -> row.metadata().get("chunk-count")).containsOnly(2);
+        assertThat(table.rows.get(IncrementalDocumentWriter.chunkId("doc", "header")).metadata())
+                .containsEntry("chunk-index", 0);
+    }
+
+    @Test
+    void embedsChunksRemovedByConcurrentWriterOutsideTheLock() {
+        writer.write(document("v1", "alpha", "beta"), Map.of());
+        embeddingModel.calls.clear();
+        UUID alpha = IncrementalDocumentWriter.chunkId("doc", "alpha");
+        table.afterUnlockedRead = rows -> {
+            rows.remove(alpha);
+            table.afterUnlockedRead = null;
+        };
+
+        assertThat(writer.write(document("v2", "alpha", "beta", "gamma"), Map.of())).isEqualTo(2);
+
+        assertThat(embeddingModel.calls).containsExactly(List.of("gamma"), List.of("alpha"));
+        assertThat(embeddingModel.inTransaction).containsOnly(false);
+        assertThat(table.contents()).containsExactlyInAnyOrder("alpha", "beta", "gamma");
+    }
+
+    @Test
+    void failsForRetryWhenDocumentKeepsChanging() {
+        writer.write(document("v1", "alpha", "beta", "gamma"), Map.of());
+        embeddingModel.calls.clear();
+        table.afterUnlockedRead = rows -> rows.remove(rows.keySet().iterator().next());
+
+        assertThatThrownBy(() -> writer.write(document("v2", "alpha", "beta", "gamma", "delta"), Map.of()))
+                .isInstanceOf(ConcurrencyFailureException.class);
+
+        assertThat(embeddingModel.calls).containsExactly(List.of("delta"), List.of("alpha"), List.of("beta"));
+        assertThat(embeddingModel.inTransaction).containsOnly(false);
+        assertThat(table.rows).isEmpty();
+    }
+
+    private static ChunkedDocument document(String version, String... texts) {
+        List<ChunkedDocument.Chunk> chunks = new ArrayList<>();
+        for (int i = 0; i < texts.length; i++) {
+            // The text doubles as its hash to keep row ids readable in the assertions.
+            chunks.add(new ChunkedDocument.Chunk(i, texts[i], texts[i]));
+        }
+        return new ChunkedDocument("doc", version, chunks);
+    }
+
+    private record Row(String content, Map<String, Object> metadata) {
+    }
+
+    /**
+     * JdbcTemplate serving the statements of {@link IncrementalDocumentWriter} from an in-memory table.
+     */
+    private static final class Table extends JdbcTemplate {
+
+        final Map<UUID, Row> rows = new LinkedHashMap<>();
+        /** Stands in for a concurrent writer committing between the unlocked read and the lock. */
+        Consumer<Map<UUID, Row>> afterUnlockedRead;
+
+        List<String> contents() {
+            return rows.values().stream().map(Row::content).toList();
+        }
+
+        @Override
+        public void query(String sql, RowCallbackHandler rch, Object... args) {
+            assertThat(sql).contains("pg_advisory_xact_lock");
+            assertThat(TransactionSynchronizationManager.isActualTransactionActive()).isTrue();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> List<T> queryForList(String sql, Class<T> elementType, Object... args) {
+            List<UUID> ids = rows.entrySet().stream()
+                    .filter(entry -> args[0].equals(entry.getValue().metadata().get("document-id")))
+                    .map(Map.Entry::getKey)
+                    .toList();
+            if (afterUnlockedRead != null && !TransactionSynchronizationManager.isActualTransactionActive()) {
+                afterUnlockedRead.accept(rows);
+            }
+            return (List<T>) ids;
+        }
+
+        @Override
+        public <T> int[][] batchUpdate(String sql, Collection<T> batchArgs, int batchSize,
+                ParameterizedPreparedStatementSetter<T> pss) {
+            assertThat(sql).startsWith("INSERT INTO vector_store");
+            for (T arg : batchArgs) {
+                VectorRow row = (VectorRow) arg;
+                assertThat(row.embedding()).hasSize(3);
+                rows.put(row.id(), new Row(row.content(), row.metadata()));
+            }
+            return new int[0][];
+        }
+
+        @Override
+        public int[] batchUpdate(String sql, List<Object[]> batchArgs) {
+            assertThat(sql).startsWith("UPDATE vector_store SET metadata");
+            for (Object[] args : batchArgs) {
+                try {
+                    Map<String, Object> metadata = VectorRowWriter.OBJECT_MAPPER.readValue((String) args[0],
+                            new TypeReference<>() { });
+                    rows.computeIfPresent((UUID) args[1], (id, row) -> new Row(row.content(), metadata));
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return new int[batchArgs.size()];
+        }
+
+        @Override
+        public int update(PreparedStatementCreator psc) {
+            List<Object> deleted = new ArrayList<>();
+            Connection connection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] {Connection.class}, (proxy, method, args) -> switch (method.getName()) {
+                        case "prepareStatement" -> {
+                            assertThat((String) args[0]).startsWith("DELETE FROM vector_store");
+                            yield Proxy.newProxyInstance(getClass().getClassLoader(),
+                                    new Class<?>[] {PreparedStatement.class}, (p, m, a) -> null);
+                        }
+                        case "createArrayOf" -> {
+                            deleted.addAll(List.of((Object[]) args[1]));
+                            yield Proxy.newProxyInstance(getClass().getClassLoader(),
+                                    new Class<?>[] {Array.class}, (p, m, a) -> null);
+                        }
+                        default -> throw new UnsupportedOperationException(method.getName());
+                    });
+            try {
+                psc.createPreparedStatement(connection);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+            deleted.forEach(rows::remove);
+            return deleted.size();
+        }
+    }
+
+    /**
+     * Restores the table on rollback.
+     */
+    private static final class TableTransactionManager extends AbstractPlatformTransactionManager {
+
+        private final Table table;
+        private Map<UUID, Row> snapshot;
+
+        TableTransactionManager(Table table) {
+            this.table = table;
+        }
+
+        @Override
+        protected Object doGetTransaction() {
+            return new Object();
+        }
+
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+            snapshot = new LinkedHashMap<>(table.rows);
+        }
+
+        @Override
+        protected void doCommit(DefaultTransactionStatus status) {
+            snapshot = null;
+        }
+
+        @Override
+        protected void doRollback(DefaultTransactionStatus status) {
+            table.rows.clear();
+            table.rows.putAll(snapshot);
+        }
+    }
+
+    private static final class RecordingEmbeddingModel implements EmbeddingModel {
+
+        final List<List<String>> calls = new ArrayList<>();
+        final List<Boolean> inTransaction = new ArrayList<>();
+
+        @Override
+        public List<float[]> embed(List<String> texts) {
+            calls.add(List.copyOf(texts));
+            inTransaction.add(TransactionSynchronizationManager.isActualTransactionActive());
+            return texts.stream().map(text -> new float[] {text.length(), 0, 1}).toList();
+        }
+
+        @Override
+        public EmbeddingResponse call(EmbeddingRequest request) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public float[] embed(Document document) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
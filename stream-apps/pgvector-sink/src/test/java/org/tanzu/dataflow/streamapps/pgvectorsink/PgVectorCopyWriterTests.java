@@ -0,0 +1,214 @@
+package org.tanzu.dataflow.streamapps.pgvectorsink;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.util.ByteStreamWriter;
+
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PgVectorCopyWriterTests {
+
+    private static final UUID ID = UUID.fromString("0f8fad5b-d9cb-469f-a165-70867728950e");
+
+    private static final float[] EMBEDDING = {0.5f, -1.25f, 0f, 3f, -0.1f, 0.2f, 0f, 0f, 7f};
+
+    @Test
+    void encodesFloat4VectorRowsWithJsonMetadata() throws Exception {
+        ByteBuffer copy = copy(writer("VECTOR", false), List.of(row("chunk")), false);
+
+        assertThat(copy.getShort()).isEqualTo((short) 4);
+        assertUuid(copy);
+        assertThat(text(copy)).isEqualTo("chunk");
+        assertThat(text(copy)).isEqualTo("{\"chunk-index\":0}");
+        assertVector(copy);
+        assertThat(copy.getShort()).isEqualTo((short) -1);
+        assertThat(copy.hasRemaining()).isFalse();
+    }
+
+    @Test
+    void prefixesJsonbMetadataWithVersionByte() throws Exception {
+        ByteBuffer copy = copy(writer("VECTOR", false), List.of(row("chunk")), true);
+
+        copy.getShort();
+        assertUuid(copy);
+        text(copy);
+        int length = copy.getInt();
+        assertThat(copy.get()).isEqualTo((byte) 1);
+        byte[] json = new byte[length - 1];
+        copy.get(json);
+        assertThat(new String(json, StandardCharsets.UTF_8)).isEqualTo("{\"chunk-index\":0}");
+    }
+
+    @Test
+    void encodesHalfvecRowsWithFullPrecisionRerankColumn() throws Exception {
+        ByteBuffer copy = copy(writer("HALFVEC", true), List.of(row("chunk")), false);
+
+        assertThat(copy.getShort()).isEqualTo((short) 5);
+        assertUuid(copy);
+        text(copy);
+        text(copy);
+        assertThat(copy.getInt()).isEqualTo(4 + 2 * EMBEDDING.length);
+        assertThat(copy.getShort()).isEqualTo((short) EMBEDDING.length);
+        assertThat(copy.getShort()).isZero();
+        for (float value : EMBEDDING) {
+            assertThat(Float.float16ToFloat(copy.getShort())).isEqualTo(Float.float16ToFloat(Float.floatToFloat16(value)));
+        }
+        assertVector(copy);
+        assertThat(copy.getShort()).isEqualTo((short) -1);
+    }
+
+    @Test
+    void encodesBinaryQuantizedBitRows() throws Exception {
+        ByteBuffer copy = copy(writer("BIT", false), List.of(row("chunk")), false);
+
+        copy.getShort();
+        assertUuid(copy);
+        text(copy);
+        text(copy);
+        assertThat(copy.getInt()).isEqualTo(4 + 2);
+        assertThat(copy.getInt()).isEqualTo(EMBEDDING.length);
+        assertThat(copy.get()).isEqualTo((byte) 0b1001_0100);
+        assertThat(copy.get()).isEqualTo((byte) 0b1000_0000);
+        assertThat(copy.getShort()).isEqualTo((short) -1);
+    }
+
+    @Test
+    void streamsRowsLargerThanTheStagingBuffer() throws Exception {
+        String large = "x".repeat(PgVectorCopyWriter.BUFFER_BYTES + 10);
+        ByteBuffer copy = copy(writer("VECTOR", false), List.of(row(large), row("next")), false);
+
+        copy.getShort();
+        assertUuid(copy);
+        assertThat(text(copy)).isEqualTo(large);
+        text(copy);
+        assertVector(copy);
+        copy.getShort();
+        assertUuid(copy);
+        assertThat(text(copy)).isEqualTo("next");
+        text(copy);
+        assertVector(copy);
+        assertThat(copy.getShort()).isEqualTo((short) -1);
+    }
+
+    @Test
+    void mergesStagedRowsWithUpsert() {
+        PgVectorCopyWriter writer = writer("HALFVEC", true);
+
+        assertThat(writer.copySql).isEqualTo("COPY pgvector_copy_staging"
+                + " (id, content, metadata, embedding, embedding_full) FROM STDIN (FORMAT BINARY)");
+        assertThat(writer.mergeSql).isEqualTo("INSERT INTO vector_store"
+                + " (id, content, metadata, embedding, embedding_full)"
+                + " SELECT id, content, metadata, embedding, embedding_full FROM pgvector_copy_staging"
+                + " ON CONFLICT (id) DO UPDATE SET content = EXCLUDED.content,"
+                + " metadata = EXCLUDED.metadata, embedding = EXCLUDED.embedding,"
+                + " embedding_full = EXCLUDED.embedding_full");
+    }
+
+    private static PgVectorCopyWriter writer(String vectorType, boolean rerankColumn) {
+        PgVectorSinkProperties properties = new PgVectorSinkProperties(null, EMBEDDING.length, null, null, "COPY",
+                vectorType, rerankColumn, false, null, null, null);
+        return new PgVectorCopyWriter(new DriverManagerDataSource("jdbc:postgresql://localhost/none"), properties);
+    }
+
+    private static VectorRow row(String content) {
+        return new VectorRow(ID, content, Map.of("chunk-index", 0), EMBEDDING);
+    }
+
+    /**
+     * Runs the encoder and returns the produced stream positioned after the COPY header.
+     */
+    private static ByteBuffer copy(PgVectorCopyWriter writer, List<VectorRow> rows, boolean jsonb) throws Exception {
+        RecordingCopyIn copy = new RecordingCopyIn();
+        writer.copyRows(copy, rows, jsonb);
+        ByteBuffer buffer = ByteBuffer.wrap(copy.bytes.toByteArray());
+
+        byte[] signature = new byte[11];
+        buffer.get(signature);
+        assertThat(signature).containsExactly('P', 'G', 'C', 'O', 'P', 'Y', '\n', 0xFF, '\r', '\n', 0);
+        assertThat(buffer.getInt()).isZero();
+        assertThat(buffer.getInt()).isZero();
+        return buffer;
+    }
+
+    private static void assertUuid(ByteBuffer copy) {
+        assertThat(copy.getInt()).isEqualTo(16);
+        assertThat(new UUID(copy.getLong(), copy.getLong())).isEqualTo(ID);
+    }
+
+    private static void assertVector(ByteBuffer copy) {
+        assertThat(copy.getInt()).isEqualTo(4 + 4 * EMBEDDING.length);
+        assertThat(copy.getShort()).isEqualTo((short) EMBEDDING.length);
+        assertThat(copy.getShort()).isZero();
+        for (float value : EMBEDDING) {
+            assertThat(copy.getFloat()).isEqualTo(value);
+        }
+    }
+
+    private static String text(ByteBuffer copy) {
+        byte[] bytes = new byte[copy.getInt()];
+        copy.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class RecordingCopyIn implements CopyIn {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        @Override
+        public void writeToCopy(byte[] buf, int off, int siz) {
+            bytes.write(buf, off, siz);
+        }
+
+        @Override
+        public void writeToCopy(ByteStreamWriter from) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void flushCopy() {
+        }
+
+        @Override
+        public long endCopy() {
+            return 0;
+        }
+
+        @Override
+        public int getFieldCount() {
+            return 0;
+        }
+
+        @Override
+        public int getFormat() {
+            return 1;
+        }
+
+        @Override
+        public int getFieldFormat(int field) {
+            return 1;
+        }
+
+        @Override
+        public boolean isActive() {
+            return true;
+        }
+
+        @Override
+        public void cancelCopy() {
+        }
+
+        @Override
+        public long getHandledRowCount() {
+            return 0;
+        }
+    }
+}
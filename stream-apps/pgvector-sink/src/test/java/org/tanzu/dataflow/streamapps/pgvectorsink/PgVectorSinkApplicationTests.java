@@ -1,9 +1,26 @@
 package org.tanzu.dataflow.streamapps.pgvectorsink;
 
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
 import org.junit.jupiter.api.Test;
 
+import org.springframework.ai.document.Document;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.config.ListenerContainerCustomizer;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import org.tanzu.dataflow.streamapps.common.EmbeddedText;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 @SpringBootTest
 @TestPropertySource(properties = {
@@ -11,13 +28,119 @@ import org.springframework.test.context.TestPropertySource;
         "spring.datasource.username=test",
         "spring.datasource.password=test",
         "spring.ai.vectorstore.pgvector.initialize-schema=false",
+        "pgvector.initialize-schema=false",
         "spring.ai.openai.api-key=test-key"
 })
 class PgVectorSinkApplicationTests {
 
+    @Autowired
+    private PgVectorSinkConfiguration configuration;
+
+    @Autowired
+    private Consumer<Message<EmbeddedText>> writeEmbeddingToVectorStore;
+
+    @Autowired
+    private ChunkDeduplicator deduplicator;
+
+    @Autowired
+    private ListenerContainerCustomizer<MessageListenerContainer> batchLingerCustomizer;
+
+    @Test
+    void batchLingerBoundsTheTotalTimeABatchIsCollected() {
+        SimpleMessageListenerContainer batching = new SimpleMessageListenerContainer();
+        batching.setConsumerBatchEnabled(true);
+        SimpleMessageListenerContainer single = new SimpleMessageListenerContainer();
+
+        batchLingerCustomizer.configure(batching, "embeddings", "pgvector");
+        batchLingerCustomizer.configure(single, "embeddings", "pgvector");
+
+        assertThat(ReflectionTestUtils.getField(batching, "batchReceiveTimeout")).isEqualTo(1000L);
+        assertThat(ReflectionTestUtils.getField(single, "batchReceiveTimeout")).isEqualTo(0L);
+    }
+
     @Test
     void contextLoads() {
         // Verifies the application context starts correctly with test properties.
         // Full integration tests require a running PostgreSQL instance with pgvector.
     }
+
+    @Test
+    void partitionsBatchByMessageCountAndBytes() {
+        List<Document> documents = List.of(
+                Document.builder().text("a".repeat(40)).build(),
+                Document.builder().text("b".repeat(40)).build(),
+                Document.builder().text("c".repeat(40)).build(),
+                Document.builder().text("d".repeat(200)).build(),
+                Document.builder().text("e").build());
+
+        List<List<Document>> batches = configuration.partition(documents, 2, 100);
+
+        assertThat(batches).extracting(List::size).containsExactly(2, 1, 1, 1);
+        assertThat(batches.get(2).getFirst().getText()).hasSize(200);
+    }
+
+    @Test
+    void rejectsPrecomputedEmbeddingWithWrongDimensions() {
+        Message<EmbeddedText> message = MessageBuilder
+                .withPayload(new EmbeddedText("chunk", new float[768]))
+                .build();
+
+        assertThatThrownBy(() -> writeEmbeddingToVectorStore.accept(message))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("pgvector.dimensions=1536");
+    }
+
+    @Test
+    void rejectsBitVectorsOrRerankColumnWithVectorStoreConsumersAtStartup() {
+        PgVectorSinkProperties bit = new PgVectorSinkProperties(null, 3, null, null, null, "BIT", false, false,
+                null, null, null);
+        PgVectorSinkProperties rerank = new PgVectorSinkProperties(null, 3, null, null, null, "HALFVEC", true, false,
+                null, null, null);
+
+        assertThatThrownBy(() -> PgVectorSinkConfiguration.checkVectorStoreSupported(bit, "writeBatchToVectorStore"))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("pgvector.vector-type=BIT");
+        assertThatThrownBy(() -> PgVectorSinkConfiguration.checkVectorStoreSupported(rerank, "writeToVectorStore"))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("pgvector.rerank-column");
+        PgVectorSinkConfiguration.checkVectorStoreSupported(bit, "writeEmbeddingBatchToVectorStore");
+        PgVectorSinkConfiguration.checkVectorStoreSupported(rerank, "writeDocumentToVectorStore");
+    }
+
+    @Test
+    void derivesStableChunkIdsAndSkipsStoredChunks() {
+        Map<String, Object> first = Map.of("file_remoteFile", "docs/a.pdf", "chunk-index", 0);
+        Map<String, Object> second = Map.of("file_remoteFile", "docs/a.pdf", "chunk-index", 1);
+
+        ChunkKey key = deduplicator.keyFor("same text", first);
+        assertThat(deduplicator.keyFor("same text", first)).isEqualTo(key);
+        assertThat(deduplicator.keyFor("same text", second).id()).isNotEqualTo(key.id());
+        assertThat(deduplicator.keyFor("other text", first).id()).isNotEqualTo(key.id());
+
+        ChunkKey other = deduplicator.keyFor("same text", second);
+        deduplicator.markStored(List.of(key.id()));
+
+        assertThat(deduplicator.removeStored(List.of(key, other, other), ChunkKey::id)).containsExactly(other);
+    }
+
+    @Test
+    void neverMergesChunksWithoutSourceHeader() {
+        Map<String, Object> headers = Map.of("chunk-index", 0);
+
+        ChunkKey first = deduplicator.keyFor("Confidential - do not distribute", headers);
+        ChunkKey second = deduplicator.keyFor("Confidential - do not distribute", headers);
+        assertThat(second.id()).isNotEqualTo(first.id());
+        assertThat(first.sourceId()).isNull();
+
+        deduplicator.markStored(List.of(first.id()));
+
+        assertThat(deduplicator.removeStored(List.of(first, second), ChunkKey::id)).containsExactly(first, second);
+    }
+
+    @Test
+    void binaryQuantizesMostSignificantBitFirst() {
+        float[] embedding = {0.5f, -0.1f, 0f, 0.2f, -3f, -3f, -3f, 1f, 0.7f};
+
+        assertThat(VectorEncoding.packBits(embedding)).containsExactly((byte) 0b1001_0001, (byte) 0b1000_0000);
+    }
 }
@@ -0,0 +1,157 @@
+package org.tanzu.dataflow.streamapps.pgvectorsink;
+
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.StatementCallback;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class VectorIndexManagerTests {
+
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(60_000);
+
+    private final RecordingJdbcTemplate jdbcTemplate = new RecordingJdbcTemplate();
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final VectorIndexManager manager = new VectorIndexManager(jdbcTemplate,
+            new PgVectorSinkProperties(null, 0, null, null, null, "HALFVEC", false, false, null,
+                    new PgVectorSinkProperties.BulkLoad(true, 60_000, "2GB", 6), null),
+            meterRegistry);
+
+    @Test
+    void rebuildsConcurrentlyOnceIngestIsIdle() {
+        manager.rebuildIfIdle(System.nanoTime() + IDLE_NANOS);
+        assertThat(jdbcTemplate.statements).isEmpty();
+
+        manager.dropIndex();
+        assertThat(jdbcTemplate.statements).containsExactly("DROP INDEX CONCURRENTLY IF EXISTS spring_ai_vector_index");
+        assertThat(meterRegistry.get("pgvector.index.pending").gauge().value()).isEqualTo(1);
+        jdbcTemplate.statements.clear();
+
+        manager.recordWrite();
+        long lastWrite = System.nanoTime();
+        manager.rebuildIfIdle(lastWrite);
+        assertThat(jdbcTemplate.statements).isEmpty();
+
+        manager.rebuildIfIdle(lastWrite + IDLE_NANOS);
+        assertThat(jdbcTemplate.statements).containsExactly(
+                "SET maintenance_work_mem = '2GB'",
+                "SET max_parallel_maintenance_workers = 6",
+                "CREATE INDEX CONCURRENTLY IF NOT EXISTS spring_ai_vector_index ON vector_store"
+                        + " USING hnsw (embedding halfvec_cosine_ops)",
+                "RESET maintenance_work_mem",
+                "RESET max_parallel_maintenance_workers");
+        assertThat(jdbcTemplate.inTransaction).containsOnly(false);
+        assertThat(manager.isPending()).isFalse();
+        assertThat(meterRegistry.get("pgvector.index.rebuild").tag("outcome", "success").timer().count()).isEqualTo(1);
+
+        jdbcTemplate.statements.clear();
+        manager.rebuildIfIdle(System.nanoTime() + 2 * IDLE_NANOS);
+        assertThat(jdbcTemplate.statements).isEmpty();
+    }
+
+    @Test
+    void dropsInvalidIndexAndWaitsForNextIdlePeriodAfterFailedBuild() {
+        manager.dropIndex();
+        jdbcTemplate.failOn = "CREATE INDEX";
+        jdbcTemplate.statements.clear();
+
+        long now = System.nanoTime() + IDLE_NANOS;
+        manager.rebuildIfIdle(now);
+
+        assertThat(jdbcTemplate.statements).endsWith(
+                "RESET max_parallel_maintenance_workers",
+                "DROP INDEX CONCURRENTLY IF EXISTS spring_ai_vector_index");
+        assertThat(manager.isPending()).isTrue();
+        assertThat(meterRegistry.get("pgvector.index.rebuild").tag("outcome", "failure").timer().count()).isEqualTo(1);
+
+        jdbcTemplate.failOn = null;
+        jdbcTemplate.statements.clear();
+        manager.rebuildIfIdle(now);
+        assertThat(jdbcTemplate.statements).isEmpty();
+
+        manager.rebuildIfIdle(System.nanoTime() + IDLE_NANOS);
+        assertThat(jdbcTemplate.statements).contains("CREATE INDEX CONCURRENTLY IF NOT EXISTS spring_ai_vector_index"
+                + " ON vector_store USING hnsw (embedding halfvec_cosine_ops)");
+        assertThat(manager.isPending()).isFalse();
+    }
+
+    @Test
+    void endpointReportsDropsAndRebuildsIndex() {
+        VectorIndexEndpoint endpoint = new VectorIndexEndpoint(manager);
+
+        assertThat(endpoint.status()).isEqualTo(Map.of("index", "spring_ai_vector_index", "pending", false));
+        assertThat(endpoint.rebuild()).containsEntry("pending", false);
+        assertThat(jdbcTemplate.statements).isEmpty();
+
+        assertThat(endpoint.drop()).containsEntry("pending", true);
+        assertThat(endpoint.rebuild()).containsEntry("pending", false);
+        assertThat(jdbcTemplate.statements).hasSize(6);
+    }
+
+    @Test
+    void namesIndexAfterCustomTable() {
+        VectorIndexManager custom = new VectorIndexManager(jdbcTemplate,
+                new PgVectorSinkProperties("docs", 0, null, "EUCLIDEAN_DISTANCE", null, null, false, false, null, null, null),
+                new SimpleMeterRegistry());
+
+        custom.dropIndex();
+        custom.rebuildIndex();
+
+        assertThat(jdbcTemplate.statements).contains("DROP INDEX CONCURRENTLY IF EXISTS docs_index",
+                "CREATE INDEX CONCURRENTLY IF NOT EXISTS docs_index ON docs USING hnsw (embedding vector_l2_ops)");
+    }
+
+    /**
+     * Records the SQL it is given instead of running it, and whether a transaction was active.
+     */
+    private static final class RecordingJdbcTemplate extends JdbcTemplate {
+
+        final List<String> statements = new ArrayList<>();
+        final List<Boolean> inTransaction = new ArrayList<>();
+        String failOn;
+
+        @Override
+        public void execute(String sql) {
+            record(sql);
+        }
+
+        @Override
+        public <T> T execute(StatementCallback<T> action) {
+            Statement statement = (Statement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] {Statement.class}, (proxy, method, args) -> {
+                        if (method.getName().equals("execute")) {
+                            record((String) args[0]);
+                            return false;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    });
+            try {
+                return action.doInStatement(statement);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void record(String sql) {
+            statements.add(sql);
+            inTransaction.add(TransactionSynchronizationManager.isActualTransactionActive());
+            if (failOn != null && sql.startsWith(failOn)) {
+                throw new DataAccessResourceFailureException("index build failed");
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.tanzu.dataflow.streamapps.pgvectorsink;
+
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.StatementCallback;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class VectorStorageInitializerTests {
+
+    private final SchemaJdbcTemplate jdbcTemplate = new SchemaJdbcTemplate();
+
+    @Test
+    void createsHalfvecTableAndIndexOnFirstStart() {
+        jdbcTemplate.embeddingType = "halfvec(3)";
+
+        initializer("HALFVEC", false).afterPropertiesSet();
+
+        assertThat(jdbcTemplate.statements).containsExactly(
+                "CREATE EXTENSION IF NOT EXISTS vector",
+                "CREATE EXTENSION IF NOT EXISTS hstore",
+                "CREATE EXTENSION IF NOT EXISTS \"uuid-ossp\"",
+                "CREATE TABLE IF NOT EXISTS vector_store (id uuid DEFAULT uuid_generate_v4() PRIMARY KEY,"
+                        + " content text, metadata json, embedding halfvec(3))",
+                "CREATE INDEX CONCURRENTLY IF NOT EXISTS vector_store_document_id_idx ON vector_store"
+                        + " ((metadata->>'document-id'))",
+                "CREATE INDEX IF NOT EXISTS spring_ai_vector_index ON vector_store"
+                        + " USING hnsw (embedding halfvec_cosine_ops)");
+    }
+
+    @Test
+    void convertsFloat4TableAndRecreatesIndexWithMatchingOperatorClass() {
+        jdbcTemplate.embeddingType = "vector(3)";
+        PgVectorSinkProperties properties = properties("BIT", false);
+        VectorIndexManager indexManager = new VectorIndexManager(jdbcTemplate, properties, new SimpleMeterRegistry());
+
+        new VectorStorageInitializer(jdbcTemplate, properties, indexManager, new SimpleMeterRegistry())
+                .afterPropertiesSet();
+
+        assertThat(indexManager.isPending()).isFalse();
+        assertThat(jdbcTemplate.statements).endsWith(
+                "DROP INDEX IF EXISTS spring_ai_vector_index",
+                "ALTER TABLE vector_store ALTER COLUMN embedding TYPE bit(3)"
+                        + " USING binary_quantize(embedding)::bit(3)",
+                "CREATE INDEX IF NOT EXISTS spring_ai_vector_index ON vector_store"
+                        + " USING hnsw (embedding bit_hamming_ops)");
+    }
+
+    @Test
+    void restartsAfterBulkLoadLeftIndexDropped() {
+        jdbcTemplate.embeddingType = "halfvec(3)";
+        PgVectorSinkProperties properties = properties("HALFVEC", true);
+        VectorIndexManager indexManager = new VectorIndexManager(jdbcTemplate, properties, new SimpleMeterRegistry());
+
+        new VectorStorageInitializer(jdbcTemplate, properties, indexManager, new SimpleMeterRegistry())
+                .afterPropertiesSet();
+        indexManager.dropIndex();
+        indexManager.rebuildIndex();
+
+        assertThat(jdbcTemplate.statements).noneMatch(sql -> sql.contains("vector_cosine_ops"));
+        assertThat(jdbcTemplate.statements).noneMatch(sql -> sql.startsWith("ALTER TABLE"));
+        assertThat(jdbcTemplate.statements).containsSubsequence(
+                "CREATE TABLE IF NOT EXISTS vector_store (id uuid DEFAULT uuid_generate_v4() PRIMARY KEY,"
+                        + " content text, metadata json, embedding halfvec(3))",
+                "DROP INDEX CONCURRENTLY IF EXISTS spring_ai_vector_index",
+                "CREATE INDEX CONCURRENTLY IF NOT EXISTS spring_ai_vector_index ON vector_store"
+                        + " USING hnsw (embedding halfvec_cosine_ops)");
+        assertThat(indexManager.isPending()).isFalse();
+    }
+
+    @Test
+    void leavesSchemaAloneWhenNotInitializing() {
+        PgVectorSinkProperties properties = new PgVectorSinkProperties(null, 3, null, null, null, "HALFVEC", false,
+                false, null, null, null);
+
+        new VectorStorageInitializer(jdbcTemplate, properties,
+                new VectorIndexManager(jdbcTemplate, properties, new SimpleMeterRegistry()), new SimpleMeterRegistry())
+                .afterPropertiesSet();
+
+        assertThat(jdbcTemplate.statements).isEmpty();
+    }
+
+    private VectorStorageInitializer initializer(String vectorType, boolean bulkLoad) {
+        PgVectorSinkProperties properties = properties(vectorType, bulkLoad);
+        return new VectorStorageInitializer(jdbcTemplate, properties,
+                new VectorIndexManager(jdbcTemplate, properties, new SimpleMeterRegistry()), new SimpleMeterRegistry());
+    }
+
+    private static PgVectorSinkProperties properties(String vectorType, boolean bulkLoad) {
+        return new PgVectorSinkProperties(null, 3, null, null, null, vectorType, false, true, null,
+                new PgVectorSinkProperties.BulkLoad(bulkLoad, 0, null, 0), null);
+    }
+
+    /**
+     * Records the schema and index statements it is given (leaving out session settings) and reports {@link #embeddingType} as the type of
+     * the existing {@code embedding} column.
+     */
+    private static final class SchemaJdbcTemplate extends JdbcTemplate {
+
+        final List<String> statements = new ArrayList<>();
+        String embeddingType;
+
+        @Override
+        public void execute(String sql) {
+            statements.add(sql);
+        }
+
+        @Override
+        public <T> T execute(StatementCallback<T> action) {
+            Statement statement = (Statement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] {Statement.class}, (proxy, method, args) -> {
+                        if (method.getName().equals("execute")) {
+                            String sql = (String) args[0];
+                            if (sql.startsWith("CREATE INDEX")) {
+                                statements.add(sql);
+                            }
+                            return false;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    });
+            try {
+                return action.doInStatement(statement);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T queryForObject(String sql, Class<T> requiredType, Object... args) {
+            assertThat(sql).startsWith("SELECT format_type");
+            return (T) embeddingType;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.tanzu.dataflow.streamapps.common;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.cloud.stream.config.ListenerContainerCustomizer;
+import org.springframework.messaging.Message;
+
+/**
+ * Support for functions whose input binding has {@code batch-mode} enabled on the RabbitMQ binder.
+ */
+public final class BatchConsumers {
+
+    /**
+     * Header carrying the per-message headers of a batch delivered by the RabbitMQ binder
+     * when {@code batch-mode} is enabled.
+     */
+    public static final String BATCHED_HEADERS = "amqp_batchedHeaders";
+
+    private BatchConsumers() {
+    }
+
+    /**
+     * Delivers each batch at most {@code lingerMs} after its first message. The binder's
+     * {@code receive-timeout} only bounds the wait between two messages, so a steady trickle would
+     * otherwise hold a batch until the configured batch size arrives. Containers that do not batch
+     * are left alone.
+     */
+    public static ListenerContainerCustomizer<MessageListenerContainer> lingerCustomizer(long lingerMs) {
+        return (container, destination, group) -> {
+            if (container instanceof SimpleMessageListenerContainer simple && simple.isConsumerBatchEnabled()) {
+                simple.setBatchReceiveTimeout(lingerMs);
+            }
+        };
+    }
+
+    /**
+     * Returns the headers of each of the {@code size} messages in a batch, or the batch message's
+     * own headers for every element when the binder did not supply per-message headers.
+     */
+    @SuppressWarnings("unchecked")
+    public static List<Map<String, Object>> batchedHeaders(Message<?> message, int size) {
+        Object batched = message.getHeaders().get(BATCHED_HEADERS);
+        if (batched instanceof List<?> list && list.size() == size) {
+            return (List<Map<String, Object>>) list;
+        }
+        return Collections.nCopies(size, message.getHeaders());
+    }
+}
@@ -0,0 +1,30 @@
+package org.tanzu.dataflow.streamapps.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+/**
+ * Storage for claim-checked payloads. Every app of a stream must see the same store, since one app
+ * writes a blob and the next one reads it by reference.
+ */
+public interface BlobStore {
+
+    /**
+     * Stores {@code data} and returns the reference under which it can be read.
+     */
+    String put(byte[] data) throws IOException;
+
+    /**
+     * Returns the blob stored under {@code reference} as a read-only buffer, which implementations
+     * may memory-map rather than read onto the heap.
+     */
+    ByteBuffer get(String reference) throws IOException;
+
+    /**
+     * Deletes the blobs stored before {@code cutoff}.
+     *
+     * @return number of blobs deleted
+     */
+    int purge(Instant cutoff) throws IOException;
+}
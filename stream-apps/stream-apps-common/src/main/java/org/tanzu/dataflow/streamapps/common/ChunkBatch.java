@@ -0,0 +1,34 @@
+package org.tanzu.dataflow.streamapps.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Consecutive chunks of one document sent as a single message by the text-chunker's
+ * {@code chunkTextBatch} function, instead of one message per chunk. The document-level headers
+ * travel once, on the batch message; chunk {@code i} of the batch is chunk {@code firstIndex + i}
+ * of the document.
+ */
+public record ChunkBatch(
+        int firstIndex,
+        List<String> chunks
+) {
+
+    public static final String CHUNK_INDEX_HEADER = "chunk-index";
+
+    /**
+     * The headers each chunk would have carried as a message of its own: the batch headers plus its
+     * {@value #CHUNK_INDEX_HEADER}.
+     */
+    public List<Map<String, Object>> chunkHeaders(Map<String, Object> batchHeaders) {
+        List<Map<String, Object>> headers = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            Map<String, Object> chunkHeaders = new HashMap<>(batchHeaders);
+            chunkHeaders.put(CHUNK_INDEX_HEADER, firstIndex + i);
+            headers.add(chunkHeaders);
+        }
+        return headers;
+    }
+}
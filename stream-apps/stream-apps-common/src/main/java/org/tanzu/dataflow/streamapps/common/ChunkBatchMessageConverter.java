@@ -0,0 +1,103 @@
+package org.tanzu.dataflow.streamapps.common;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.AbstractMessageConverter;
+import org.springframework.messaging.converter.MessageConversionException;
+import org.springframework.util.MimeType;
+
+/**
+ * Converts a {@link ChunkBatch} to and from the framed {@code application/x-chunk-batch} content
+ * type: little-endian int32 first chunk index and chunk count, the int32 end offset of each chunk
+ * in the text section, then the UTF-8 text of all chunks back to back. Consumers slice each chunk
+ * out of the text section by its offsets, without any per-chunk framing or headers. A frame whose
+ * count or offsets do not fit its length is rejected.
+ * <p>
+ * Opt in on the producer with e.g.
+ * {@code spring.cloud.stream.bindings.chunkTextBatch-out-0.content-type=application/x-chunk-batch};
+ * the content type travels with the message, so consumers need no configuration.
+ */
+public class ChunkBatchMessageConverter extends AbstractMessageConverter {
+
+    public static final MimeType CHUNK_BATCH = new MimeType("application", "x-chunk-batch");
+
+    public ChunkBatchMessageConverter() {
+        super(CHUNK_BATCH);
+        setStrictContentTypeMatch(true);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return clazz == ChunkBatch.class;
+    }
+
+    @Override
+    protected Object convertFromInternal(Message<?> message, Class<?> targetClass, Object conversionHint) {
+        if (!(message.getPayload() instanceof byte[] bytes)) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            int firstIndex = buffer.getInt();
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / Integer.BYTES) {
+                throw new MessageConversionException("Chunk batch declares " + count + " chunks but carries "
+                        + buffer.remaining() + " bytes");
+            }
+            int[] ends = new int[count];
+            for (int i = 0; i < count; i++) {
+                ends[i] = buffer.getInt();
+                if (ends[i] < (i > 0 ? ends[i - 1] : 0)) {
+                    throw new MessageConversionException("Chunk batch offset " + ends[i] + " of chunk " + i
+                            + " is before the end of the previous chunk");
+                }
+            }
+            int text = buffer.position();
+            if (count > 0 && text + ends[count - 1] != bytes.length) {
+                throw new MessageConversionException("Chunk batch declares " + ends[count - 1]
+                        + " bytes of text but carries " + (bytes.length - text));
+            }
+
+            List<String> chunks = new ArrayList<>(count);
+            int start = 0;
+            for (int end : ends) {
+                chunks.add(new String(bytes, text + start, end - start, StandardCharsets.UTF_8));
+                start = end;
+            }
+            return new ChunkBatch(firstIndex, chunks);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new MessageConversionException("Truncated or malformed chunk batch", e);
+        }
+    }
+
+    @Override
+    protected Object convertToInternal(Object payload, MessageHeaders headers, Object conversionHint) {
+        ChunkBatch batch = (ChunkBatch) payload;
+        List<byte[]> texts = new ArrayList<>(batch.chunks().size());
+        int textLength = 0;
+        for (String chunk : batch.chunks()) {
+            byte[] text = chunk.getBytes(StandardCharsets.UTF_8);
+            texts.add(text);
+            textLength += text.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(2 * Integer.BYTES + texts.size() * Integer.BYTES + textLength)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(batch.firstIndex()).putInt(texts.size());
+        int end = 0;
+        for (byte[] text : texts) {
+            buffer.putInt(end += text.length);
+        }
+        for (byte[] text : texts) {
+            buffer.put(text);
+        }
+        return buffer.array();
+    }
+}
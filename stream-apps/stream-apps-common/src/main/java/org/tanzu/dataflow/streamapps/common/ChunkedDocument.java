@@ -0,0 +1,31 @@
+package org.tanzu.dataflow.streamapps.common;
+
+import java.util.List;
+
+/**
+ * All chunks of one version of a document, emitted as a single message by the {@code chunkDocument}
+ * function of the text-chunker-processor so that the pgvector-sink can diff the new chunk set
+ * against the stored one in one transaction.
+ *
+ * @param documentId stable identifier of the document across versions
+ * @param version    SHA-256 of the full document text
+ * @param chunks     chunks in document order
+ */
+public record ChunkedDocument(
+        String documentId,
+        String version,
+        List<Chunk> chunks
+) {
+
+    /**
+     * @param index position of the chunk in the document
+     * @param text  chunk text
+     * @param hash  SHA-256 of the chunk text
+     */
+    public record Chunk(
+            int index,
+            String text,
+            String hash
+    ) {
+    }
+}
@@ -0,0 +1,142 @@
+package org.tanzu.dataflow.streamapps.common;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+/**
+ * Claim-check transport for large payloads. A payload of {@code claim-check.threshold} bytes or
+ * more is written to the {@link BlobStore} and the message travels with an empty payload and a
+ * {@value #REFERENCE_HEADER} header instead; smaller payloads stay inline. The receiving app
+ * resolves the reference only when its function runs, reading the blob through the store's
+ * (memory-mapped) buffer.
+ * <p>
+ * Blobs are not deleted on receipt, since a failed message may be redelivered; they are purged
+ * once older than {@code claim-check.retention-ms}.
+ */
+public class ClaimCheck {
+
+    private static final Logger log = LoggerFactory.getLogger(ClaimCheck.class);
+
+    public static final String REFERENCE_HEADER = "claim-check";
+    public static final String LENGTH_HEADER = "claim-check-length";
+
+    private static final long PURGE_INTERVAL_MS = 60_000;
+
+    private final BlobStore store;
+    private final ClaimCheckProperties properties;
+    private final AtomicLong lastPurge = new AtomicLong();
+
+    public ClaimCheck(BlobStore store, ClaimCheckProperties properties) {
+        this.store = store;
+        this.properties = properties;
+    }
+
+    /**
+     * Returns {@code message} with its payload moved to the blob store if it reaches the threshold.
+     */
+    public Message<byte[]> checkIn(Message<byte[]> message) {
+        byte[] payload = message.getPayload();
+        if (!properties.enabled() || payload.length < properties.threshold()) {
+            return message;
+        }
+        return MessageBuilder.withPayload(new byte[0])
+                .copyHeaders(message.getHeaders())
+                .setHeader(REFERENCE_HEADER, store(payload))
+                .setHeader(LENGTH_HEADER, payload.length)
+                .build();
+    }
+
+    /**
+     * Returns {@code message} with its text moved to the blob store, as UTF-8, if that reaches the
+     * threshold.
+     */
+    public Message<String> checkInText(Message<String> message) {
+        String text = message.getPayload();
+        // UTF-8 takes at least one and at most three bytes per char
+        if (!properties.enabled() || (long) text.length() * 3 < properties.threshold()) {
+            return message;
+        }
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        if (payload.length < properties.threshold()) {
+            return message;
+        }
+        return MessageBuilder.withPayload("")
+                .copyHeaders(message.getHeaders())
+                .setHeader(REFERENCE_HEADER, store(payload))
+                .setHeader(LENGTH_HEADER, payload.length)
+                .build();
+    }
+
+    /**
+     * The payload of {@code message}, read from the blob store if it was claim-checked.
+     */
+    public ByteBuffer payload(Message<byte[]> message) {
+        Object reference = message.getHeaders().get(REFERENCE_HEADER);
+        return reference != null ? load(reference.toString()) : ByteBuffer.wrap(message.getPayload());
+    }
+
+    /**
+     * Returns {@code message} with its text read back from the blob store if it was claim-checked,
+     * and without the claim-check headers, so that they are not copied onto derived messages.
+     */
+    public Message<String> resolveText(Message<String> message) {
+        Object reference = message.getHeaders().get(REFERENCE_HEADER);
+        if (reference == null) {
+            return message;
+        }
+        // Decoded straight from the mapped blob, without an intermediate byte[] copy on the heap.
+        String text = StandardCharsets.UTF_8.decode(load(reference.toString())).toString();
+        return MessageBuilder.withPayload(text)
+                .copyHeaders(message.getHeaders())
+                .removeHeaders(REFERENCE_HEADER, LENGTH_HEADER)
+                .build();
+    }
+
+    /**
+     * {@code function} applied to claim-checked text messages after {@link #resolveText resolving} them.
+     */
+    public <R> Function<Message<String>, R> resolvingText(Function<Message<String>, R> function) {
+        return message -> function.apply(resolveText(message));
+    }
+
+    private String store(byte[] payload) {
+        try {
+            String reference = store.put(payload);
+            log.debug("Claim-checked {} bytes as {}", payload.length, reference);
+            purgeExpired();
+            return reference;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to store claim-checked payload", e);
+        }
+    }
+
+    private ByteBuffer load(String reference) {
+        try {
+            return store.get(reference);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read claim-checked payload " + reference, e);
+        }
+    }
+
+    private void purgeExpired() throws IOException {
+        long now = System.currentTimeMillis();
+        long last = lastPurge.get();
+        if (now - last >= PURGE_INTERVAL_MS && lastPurge.compareAndSet(last, now)) {
+            int purged = store.purge(Instant.ofEpochMilli(now - properties.retentionMs()));
+            if (purged > 0) {
+                log.info("Purged {} claim-checked payloads older than {} ms", purged, properties.retentionMs());
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.tanzu.dataflow.streamapps.common;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * @param enabled     whether payloads at or above {@code threshold} are sent by reference; claim
+ *                    checks received from upstream are resolved either way
+ * @param threshold   payload size in bytes from which a payload goes to the blob store
+ * @param directory   directory of the file-system blob store, shared by all apps of the stream
+ * @param retentionMs age after which stored blobs are deleted
+ */
+@ConfigurationProperties(prefix = "claim-check")
+public record ClaimCheckProperties(
+        boolean enabled,
+        long threshold,
+        String directory,
+        long retentionMs
+) {
+    public ClaimCheckProperties {
+        if (threshold <= 0) threshold = 1_048_576;
+        if (directory == null || directory.isBlank()) directory = System.getProperty("java.io.tmpdir") + "/claim-check";
+        if (retentionMs <= 0) retentionMs = 86_400_000;
+    }
+}
@@ -0,0 +1,12 @@
+package org.tanzu.dataflow.streamapps.common;
+
+/**
+ * Text chunk together with its embedding. Emitted by the embedding-processor's
+ * {@code generateEmbeddedText} function so that the pgvector-sink can store the vector
+ * without calling the embedding model again.
+ */
+public record EmbeddedText(
+        String text,
+        float[] embedding
+) {
+}
@@ -0,0 +1,73 @@
+package org.tanzu.dataflow.streamapps.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * {@link BlobStore} keeping one file per blob in a directory, which has to be a volume shared by
+ * the apps of the stream. Blobs are written under a temporary name and renamed when complete, so a
+ * reader never sees a partial file, and are read by memory-mapping the file.
+ */
+public class FileSystemBlobStore implements BlobStore {
+
+    private static final Pattern REFERENCE = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+
+    private final Path directory;
+
+    public FileSystemBlobStore(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public String put(byte[] data) throws IOException {
+        Files.createDirectories(directory);
+        String reference = UUID.randomUUID().toString();
+        Path partial = directory.resolve(reference + ".part");
+        Files.write(partial, data);
+        Files.move(partial, directory.resolve(reference), StandardCopyOption.ATOMIC_MOVE);
+        return reference;
+    }
+
+    @Override
+    public ByteBuffer get(String reference) throws IOException {
+        if (!REFERENCE.matcher(reference).matches()) {
+            throw new IllegalArgumentException("Not a blob reference: '" + reference + "'");
+        }
+        try (FileChannel channel = FileChannel.open(directory.resolve(reference), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Blob " + reference + " is larger than 2 GB");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    @Override
+    public int purge(Instant cutoff) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        int deleted = 0;
+        try (DirectoryStream<Path> blobs = Files.newDirectoryStream(directory)) {
+            for (Path blob : blobs) {
+                try {
+                    if (Files.getLastModifiedTime(blob).toInstant().isBefore(cutoff) && Files.deleteIfExists(blob)) {
+                        deleted++;
+                    }
+                } catch (NoSuchFileException e) {
+                    // purged concurrently by another instance
+                }
+            }
+        }
+        return deleted;
+    }
+}
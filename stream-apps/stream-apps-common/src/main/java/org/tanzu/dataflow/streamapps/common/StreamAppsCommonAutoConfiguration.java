@@ -0,0 +1,45 @@
+package org.tanzu.dataflow.streamapps.common;
+
+import java.nio.file.Path;
+
+import org.springframework.boot.autoconfigure.AutoConfiguration;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+
+/**
+ * Registers the shared message converters in every stream app that depends on this module.
+ * Spring Cloud Stream adds {@code MessageConverter} beans to its converter chain, so a binding
+ * opts in simply by declaring the converter's content type.
+ * <p>
+ * Also provides the {@link ClaimCheck} transport, backed by a {@link FileSystemBlobStore} unless
+ * the app declares a {@link BlobStore} bean of its own.
+ */
+@AutoConfiguration
+@EnableConfigurationProperties(ClaimCheckProperties.class)
+public class StreamAppsCommonAutoConfiguration {
+
+    @Bean
+    @ConditionalOnMissingBean
+    public VectorMessageConverter vectorMessageConverter() {
+        return new VectorMessageConverter();
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public ChunkBatchMessageConverter chunkBatchMessageConverter() {
+        return new ChunkBatchMessageConverter();
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public BlobStore blobStore(ClaimCheckProperties properties) {
+        return new FileSystemBlobStore(Path.of(properties.directory()));
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public ClaimCheck claimCheck(BlobStore blobStore, ClaimCheckProperties properties) {
+        return new ClaimCheck(blobStore, properties);
+    }
+}
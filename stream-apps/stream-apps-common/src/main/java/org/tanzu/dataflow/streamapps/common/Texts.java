@@ -0,0 +1,50 @@
+package org.tanzu.dataflow.streamapps.common;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Text helpers shared by the stream apps: the SHA-256 content hashes that identify documents,
+ * chunks and cache entries, and the UTF-8 size of a text without encoding it.
+ */
+public final class Texts {
+
+    private Texts() {
+    }
+
+    /**
+     * @return the lowercase hex SHA-256 of the UTF-8 bytes of {@code text}
+     */
+    public static String sha256(String text) {
+        return HexFormat.of().formatHex(sha256().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return a new SHA-256 digest, for keys hashed from several parts
+     */
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * @return the number of bytes {@code text} occupies in UTF-8, or 0 for null
+     */
+    public static long utf8Length(String text) {
+        if (text == null) return 0;
+        long bytes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) bytes += 1;
+            else if (c < 0x800) bytes += 2;
+            else if (Character.isHighSurrogate(c)) { bytes += 4; i++; }
+            else bytes += 3;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,123 @@
+package org.tanzu.dataflow.streamapps.common;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.AbstractMessageConverter;
+import org.springframework.messaging.converter.MessageConversionException;
+import org.springframework.util.MimeType;
+
+/**
+ * Converts embedding payloads to and from the compact {@code application/x-vector} content type,
+ * instead of the JSON text the default converters produce (about 20KB for a 1536-dimension vector).
+ * <p>
+ * A {@code float[]} is written as little-endian float32, or as IEEE 754 half precision when the
+ * content type carries {@code encoding=float16}, e.g.
+ * {@code spring.cloud.stream.bindings.generateEmbedding-out-0.content-type=application/x-vector;encoding=float16}.
+ * An {@link EmbeddedText} is written as a little-endian int32 byte count, the UTF-8 text and then
+ * the vector. The content type travels with the message, so consumers need no configuration.
+ * <p>
+ * The dimension count and model travel in the {@value #DIMENSIONS_HEADER} and {@value #MODEL_HEADER}
+ * headers; a decoded vector whose length disagrees with {@value #DIMENSIONS_HEADER} is rejected, as
+ * is a truncated or malformed payload.
+ */
+public class VectorMessageConverter extends AbstractMessageConverter {
+
+    public static final MimeType VECTOR = new MimeType("application", "x-vector");
+    public static final String ENCODING_PARAMETER = "encoding";
+    public static final String FLOAT16 = "float16";
+    public static final String DIMENSIONS_HEADER = "embedding-dimensions";
+    public static final String MODEL_HEADER = "embedding-model";
+
+    public VectorMessageConverter() {
+        super(VECTOR);
+        setStrictContentTypeMatch(true);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return clazz == float[].class || clazz == EmbeddedText.class;
+    }
+
+    @Override
+    protected Object convertFromInternal(Message<?> message, Class<?> targetClass, Object conversionHint) {
+        if (!(message.getPayload() instanceof byte[] bytes)) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        boolean half = isFloat16(message.getHeaders());
+        if (targetClass == float[].class) {
+            return readVector(buffer, half, message.getHeaders());
+        }
+        try {
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new MessageConversionException("Embedded text declares " + length
+                        + " bytes of text but carries " + buffer.remaining() + " bytes");
+            }
+            String text = new String(bytes, buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return new EmbeddedText(text, readVector(buffer, half, message.getHeaders()));
+        } catch (BufferUnderflowException e) {
+            throw new MessageConversionException("Truncated or malformed embedded text", e);
+        }
+    }
+
+    @Override
+    protected Object convertToInternal(Object payload, MessageHeaders headers, Object conversionHint) {
+        boolean half = isFloat16(headers);
+        if (payload instanceof float[] embedding) {
+            ByteBuffer buffer = ByteBuffer.allocate(embedding.length * (half ? 2 : 4)).order(ByteOrder.LITTLE_ENDIAN);
+            writeVector(buffer, embedding, half);
+            return buffer.array();
+        }
+        EmbeddedText embeddedText = (EmbeddedText) payload;
+        byte[] text = embeddedText.text().getBytes(StandardCharsets.UTF_8);
+        float[] embedding = embeddedText.embedding();
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + text.length + embedding.length * (half ? 2 : 4))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(text.length).put(text);
+        writeVector(buffer, embedding, half);
+        return buffer.array();
+    }
+
+    private boolean isFloat16(MessageHeaders headers) {
+        MimeType mimeType = getMimeType(headers);
+        return mimeType != null && FLOAT16.equalsIgnoreCase(mimeType.getParameter(ENCODING_PARAMETER));
+    }
+
+    private static void writeVector(ByteBuffer buffer, float[] embedding, boolean half) {
+        if (half) {
+            for (float value : embedding) {
+                buffer.putShort(Float.floatToFloat16(value));
+            }
+        } else {
+            buffer.asFloatBuffer().put(embedding);
+        }
+    }
+
+    private static float[] readVector(ByteBuffer buffer, boolean half, MessageHeaders headers) {
+        if (buffer.remaining() % (half ? 2 : 4) != 0) {
+            throw new MessageConversionException("Vector of " + buffer.remaining() + " bytes is not a whole number of "
+                    + (half ? "float16" : "float32") + " values");
+        }
+        float[] embedding = new float[buffer.remaining() / (half ? 2 : 4)];
+        if (half) {
+            for (int i = 0; i < embedding.length; i++) {
+                embedding[i] = Float.float16ToFloat(buffer.getShort());
+            }
+        } else {
+            buffer.asFloatBuffer().get(embedding);
+        }
+        Object dimensions = headers.get(DIMENSIONS_HEADER);
+        if (dimensions != null && Integer.parseInt(dimensions.toString()) != embedding.length) {
+            throw new MessageConversionException("Vector has " + embedding.length + " dimensions but "
+                    + DIMENSIONS_HEADER + " is " + dimensions);
+        }
+        return embedding;
+    }
+}
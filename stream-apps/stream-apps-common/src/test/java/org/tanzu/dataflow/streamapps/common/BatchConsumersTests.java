@@ -0,0 +1,46 @@
+package org.tanzu.dataflow.streamapps.common;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BatchConsumersTests {
+
+    @Test
+    void lingerCustomizerOnlyBoundsBatchingContainers() {
+        SimpleMessageListenerContainer batching = new SimpleMessageListenerContainer();
+        batching.setConsumerBatchEnabled(true);
+        SimpleMessageListenerContainer single = new SimpleMessageListenerContainer();
+
+        BatchConsumers.lingerCustomizer(250).configure(batching, "chunks", "sink");
+        BatchConsumers.lingerCustomizer(250).configure(single, "chunks", "sink");
+
+        assertThat(ReflectionTestUtils.getField(batching, "batchReceiveTimeout")).isEqualTo(250L);
+        assertThat(ReflectionTestUtils.getField(single, "batchReceiveTimeout")).isEqualTo(0L);
+    }
+
+    @Test
+    void batchedHeadersFallBackToTheBatchMessageHeaders() {
+        List<Map<String, Object>> perMessage = List.of(Map.of("chunk-index", 0), Map.of("chunk-index", 1));
+        Message<List<String>> batched = MessageBuilder.withPayload(List.of("a", "b"))
+                .setHeader(BatchConsumers.BATCHED_HEADERS, perMessage)
+                .build();
+        Message<List<String>> plain = MessageBuilder.withPayload(List.of("a", "b"))
+                .setHeader("chunk-index", 7)
+                .build();
+
+        assertThat(BatchConsumers.batchedHeaders(batched, 2)).isEqualTo(perMessage);
+        assertThat(BatchConsumers.batchedHeaders(batched, 3)).hasSize(3).allSatisfy(headers ->
+                assertThat(headers).doesNotContainKey("chunk-index"));
+        assertThat(BatchConsumers.batchedHeaders(plain, 2)).hasSize(2).allSatisfy(headers ->
+                assertThat(headers).containsEntry("chunk-index", 7));
+    }
+}
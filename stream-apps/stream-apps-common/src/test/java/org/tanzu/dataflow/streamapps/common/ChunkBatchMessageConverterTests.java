@@ -0,0 +1,81 @@
+package org.tanzu.dataflow.streamapps.common;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MessageConversionException;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeType;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ChunkBatchMessageConverterTests {
+
+    private final ChunkBatchMessageConverter converter = new ChunkBatchMessageConverter();
+
+    @Test
+    void roundTripsChunksWithOneOffsetPerChunk() {
+        ChunkBatch batch = new ChunkBatch(200, List.of("first chunk", "", "Zürich 👍", "last"));
+
+        Message<?> message = converter.toMessage(batch, headers(ChunkBatchMessageConverter.CHUNK_BATCH));
+        byte[] bytes = (byte[]) message.getPayload();
+
+        assertThat(bytes).hasSize(8 + 4 * 4 + 11 + 0 + 12 + 4);
+        assertThat(converter.fromMessage(message, ChunkBatch.class)).isEqualTo(batch);
+    }
+
+    @Test
+    void rejectsTruncatedBatch() {
+        Message<?> message = converter.toMessage(new ChunkBatch(0, List.of("one", "two")),
+                headers(ChunkBatchMessageConverter.CHUNK_BATCH));
+        byte[] bytes = (byte[]) message.getPayload();
+        Message<byte[]> truncated = MessageBuilder.withPayload(Arrays.copyOf(bytes, bytes.length - 1))
+                .copyHeaders(message.getHeaders())
+                .build();
+
+        assertThatThrownBy(() -> converter.fromMessage(truncated, ChunkBatch.class))
+                .isInstanceOf(MessageConversionException.class);
+    }
+
+    @Test
+    void rejectsMalformedCountOrOffsets() {
+        for (byte[] payload : new byte[][] {
+                {0, 0, 0, 0, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f, 1, 0, 0, 0},
+                {0, 0, 0, 0, -1, -1, -1, -1},
+                {0, 0, 0, 0, 2, 0, 0, 0, 2, 0, 0, 0, 1, 0, 0, 0, 'a', 'b'},
+                {0, 0, 0, 0, 1, 0, 0, 0, -1, -1, -1, -1}}) {
+            Message<byte[]> malformed = MessageBuilder.withPayload(payload)
+                    .setHeader(MessageHeaders.CONTENT_TYPE, ChunkBatchMessageConverter.CHUNK_BATCH)
+                    .build();
+
+            assertThatThrownBy(() -> converter.fromMessage(malformed, ChunkBatch.class))
+                    .isInstanceOf(MessageConversionException.class);
+        }
+    }
+
+    @Test
+    void derivesPerChunkHeaders() {
+        ChunkBatch batch = new ChunkBatch(5, List.of("a", "b"));
+
+        List<Map<String, Object>> headers = batch.chunkHeaders(Map.of("file_remoteFile", "docs/a.pdf", "chunk-count", 7));
+
+        assertThat(headers).extracting(h -> h.get(ChunkBatch.CHUNK_INDEX_HEADER)).containsExactly(5, 6);
+        assertThat(headers).allSatisfy(h -> assertThat(h).containsEntry("file_remoteFile", "docs/a.pdf"));
+    }
+
+    @Test
+    void ignoresOtherContentTypes() {
+        assertThat(converter.toMessage(new ChunkBatch(0, List.of("a")), headers(MimeType.valueOf("application/json"))))
+                .isNull();
+    }
+
+    private static MessageHeaders headers(MimeType contentType) {
+        return new MessageHeaders(Map.of(MessageHeaders.CONTENT_TYPE, contentType));
+    }
+}
@@ -0,0 +1,86 @@
+package org.tanzu.dataflow.streamapps.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ClaimCheckTests {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void sendsLargeTextByReferenceAndResolvesIt() {
+        ClaimCheck claimCheck = claimCheck(true, 64);
+        String text = "Zürich 👍 ".repeat(20);
+
+        Message<String> checked = claimCheck.checkInText(MessageBuilder.withPayload(text)
+                .setHeader("source", "doc-1")
+                .build());
+
+        assertThat(checked.getPayload()).isEmpty();
+        assertThat(checked.getHeaders())
+                .containsKey(ClaimCheck.REFERENCE_HEADER)
+                .containsEntry(ClaimCheck.LENGTH_HEADER, text.getBytes(StandardCharsets.UTF_8).length);
+
+        Message<String> resolved = claimCheck.resolveText(checked);
+        assertThat(resolved.getPayload()).isEqualTo(text);
+        assertThat(resolved.getHeaders())
+                .containsEntry("source", "doc-1")
+                .doesNotContainKeys(ClaimCheck.REFERENCE_HEADER, ClaimCheck.LENGTH_HEADER);
+    }
+
+    @Test
+    void keepsSmallPayloadsInline() {
+        ClaimCheck claimCheck = claimCheck(true, 64);
+        Message<String> text = MessageBuilder.withPayload("short").build();
+        Message<byte[]> bytes = MessageBuilder.withPayload(new byte[63]).build();
+
+        assertThat(claimCheck.checkInText(text)).isSameAs(text);
+        assertThat(claimCheck.checkIn(bytes)).isSameAs(bytes);
+        assertThat(claimCheck.resolveText(text)).isSameAs(text);
+        assertThat(claimCheck.payload(bytes).remaining()).isEqualTo(63);
+    }
+
+    @Test
+    void resolvesReferencesEvenWhenDisabled() {
+        byte[] payload = new byte[100];
+        payload[99] = 7;
+        Message<byte[]> checked = claimCheck(true, 64).checkIn(MessageBuilder.withPayload(payload).build());
+        ClaimCheck disabled = claimCheck(false, 64);
+
+        assertThat(checked.getPayload()).isEmpty();
+        assertThat(disabled.checkIn(MessageBuilder.withPayload(payload).build()).getPayload()).isSameAs(payload);
+        ByteBuffer resolved = disabled.payload(checked);
+        assertThat(resolved.remaining()).isEqualTo(100);
+        assertThat(resolved.get(99)).isEqualTo((byte) 7);
+    }
+
+    @Test
+    void fileSystemStorePurgesOldBlobsAndRejectsPaths() throws Exception {
+        FileSystemBlobStore store = new FileSystemBlobStore(directory);
+        String reference = store.put(new byte[] {1, 2, 3});
+
+        assertThat(store.get(reference).remaining()).isEqualTo(3);
+        assertThatThrownBy(() -> store.get("../" + reference)).isInstanceOf(IllegalArgumentException.class);
+        assertThat(store.purge(Instant.now().minusSeconds(60))).isZero();
+        assertThat(store.purge(Instant.now().plusSeconds(60))).isEqualTo(1);
+        assertThat(Files.list(directory)).isEmpty();
+    }
+
+    private ClaimCheck claimCheck(boolean enabled, long threshold) {
+        return new ClaimCheck(new FileSystemBlobStore(directory),
+                new ClaimCheckProperties(enabled, threshold, directory.toString(), 0));
+    }
+}
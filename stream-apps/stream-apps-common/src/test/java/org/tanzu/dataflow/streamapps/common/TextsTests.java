@@ -0,0 +1,28 @@
+package org.tanzu.dataflow.streamapps.common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TextsTests {
+
+    @Test
+    void hashesUtf8BytesAsLowercaseHex() {
+        assertThat(Texts.sha256("abc"))
+                .isEqualTo("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad");
+        assertThat(Texts.sha256("Zürich")).isEqualTo(
+                HexFormat.of().formatHex(Texts.sha256().digest("Zürich".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    void countsUtf8BytesWithoutEncoding() {
+        String text = "ascii, Zürich, 東京 and 👍";
+
+        assertThat(Texts.utf8Length(text)).isEqualTo(text.getBytes(StandardCharsets.UTF_8).length);
+        assertThat(Texts.utf8Length("")).isZero();
+        assertThat(Texts.utf8Length(null)).isZero();
+    }
+}
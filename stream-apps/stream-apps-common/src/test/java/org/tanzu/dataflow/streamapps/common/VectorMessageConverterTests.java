@@ -0,0 +1,105 @@
+package org.tanzu.dataflow.streamapps.common;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MessageConversionException;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeType;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+class VectorMessageConverterTests {
+
+    private final VectorMessageConverter converter = new VectorMessageConverter();
+
+    @Test
+    void roundTripsFloat32VectorInAQuarterOfTheJsonSize() throws Exception {
+        float[] embedding = randomVector(1536);
+        MessageHeaders headers = headers(VectorMessageConverter.VECTOR, 1536);
+
+        Message<?> message = converter.toMessage(embedding, headers);
+        byte[] bytes = (byte[]) message.getPayload();
+
+        assertThat(bytes).hasSize(1536 * 4);
+        assertThat(bytes.length * 3).isLessThan(new ObjectMapper().writeValueAsBytes(embedding).length);
+        assertThat((float[]) converter.fromMessage(message, float[].class)).containsExactly(embedding);
+    }
+
+    @Test
+    void roundTripsEmbeddedTextAsFloat16() {
+        float[] embedding = randomVector(8);
+        MimeType float16 = new MimeType(VectorMessageConverter.VECTOR,
+                Map.of(VectorMessageConverter.ENCODING_PARAMETER, VectorMessageConverter.FLOAT16));
+
+        Message<?> message = converter.toMessage(new EmbeddedText("héllo", embedding), headers(float16, 8));
+        EmbeddedText decoded = (EmbeddedText) converter.fromMessage(message, EmbeddedText.class);
+
+        assertThat((byte[]) message.getPayload()).hasSize(4 + 6 + 8 * 2);
+        assertThat(decoded.text()).isEqualTo("héllo");
+        for (int i = 0; i < embedding.length; i++) {
+            assertThat(decoded.embedding()[i]).isCloseTo(embedding[i], within(1e-3f));
+        }
+    }
+
+    @Test
+    void rejectsVectorThatDisagreesWithDimensionsHeader() {
+        Message<byte[]> message = MessageBuilder.withPayload(new byte[12])
+                .setHeader(MessageHeaders.CONTENT_TYPE, VectorMessageConverter.VECTOR)
+                .setHeader(VectorMessageConverter.DIMENSIONS_HEADER, 4)
+                .build();
+
+        assertThatThrownBy(() -> converter.fromMessage(message, float[].class))
+                .isInstanceOf(MessageConversionException.class)
+                .hasMessageContaining("3 dimensions");
+    }
+
+    @Test
+    void rejectsTruncatedOrMalformedEmbeddedText() {
+        Message<?> message = converter.toMessage(new EmbeddedText("hello", new float[] {1f, 2f}),
+                headers(VectorMessageConverter.VECTOR, 2));
+        byte[] bytes = (byte[]) message.getPayload();
+
+        for (byte[] payload : new byte[][] {
+                Arrays.copyOf(bytes, 2),
+                Arrays.copyOf(bytes, bytes.length - 1),
+                {-1, -1, -1, -1, 'x'},
+                {(byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f, 'x'}}) {
+            Message<byte[]> malformed = MessageBuilder.withPayload(payload)
+                    .setHeader(MessageHeaders.CONTENT_TYPE, VectorMessageConverter.VECTOR)
+                    .build();
+
+            assertThatThrownBy(() -> converter.fromMessage(malformed, EmbeddedText.class))
+                    .isInstanceOf(MessageConversionException.class);
+        }
+    }
+
+    @Test
+    void ignoresOtherContentTypes() {
+        assertThat(converter.toMessage(new float[] {1f}, headers(MimeType.valueOf("application/json"), 1))).isNull();
+    }
+
+    private static MessageHeaders headers(MimeType contentType, int dimensions) {
+        return new MessageHeaders(Map.of(
+                MessageHeaders.CONTENT_TYPE, contentType,
+                VectorMessageConverter.DIMENSIONS_HEADER, dimensions,
+                VectorMessageConverter.MODEL_HEADER, "text-embedding-3-small"));
+    }
+
+    private static float[] randomVector(int dimensions) {
+        Random random = new Random(42);
+        float[] embedding = new float[dimensions];
+        for (int i = 0; i < dimensions; i++) {
+            embedding[i] = (float) random.nextGaussian() / 40;
+        }
+        return embedding;
+    }
+}
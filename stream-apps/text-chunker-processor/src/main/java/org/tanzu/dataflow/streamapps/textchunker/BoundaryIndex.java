@@ -0,0 +1,119 @@
+package org.tanzu.dataflow.streamapps.textchunker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Start offsets of every occurrence of each separator in a text, one ascending array per separator
+ * level (overlapping occurrences included), collected in a single forward pass over the text rather
+ * than one search per separator.
+ */
+public class BoundaryIndex {
+
+    private final String[] separators;
+    private final int[][] offsets;
+
+    private BoundaryIndex(String[] separators, int[][] offsets) {
+        this.separators = separators;
+        this.offsets = offsets;
+    }
+
+    public static BoundaryIndex of(String text, List<String> separators) {
+        return new Scanner(separators).scan(text, 0, text.length());
+    }
+
+    /**
+     * Same index, scanned as consecutive regions of {@code regionSize} characters on {@code pool}.
+     * An occurrence belongs to the region it starts in, so the region arrays concatenate in order.
+     */
+    public static BoundaryIndex of(String text, List<String> separators, ForkJoinPool pool, int regionSize) {
+        Scanner scanner = new Scanner(separators);
+        List<ForkJoinTask<BoundaryIndex>> regions = new ArrayList<>();
+        for (int from = 0; from < text.length(); from += regionSize) {
+            int regionFrom = from;
+            int regionTo = (int) Math.min(text.length(), (long) from + regionSize);
+            regions.add(pool.submit(() -> scanner.scan(text, regionFrom, regionTo)));
+        }
+
+        String[] levels = scanner.levels;
+        int[][] offsets = new int[levels.length][];
+        List<BoundaryIndex> scanned = regions.stream().map(ForkJoinTask::join).toList();
+        for (int level = 0; level < levels.length; level++) {
+            int total = 0;
+            for (BoundaryIndex region : scanned) {
+                total += region.offsets[level].length;
+            }
+            offsets[level] = new int[total];
+            int pos = 0;
+            for (BoundaryIndex region : scanned) {
+                System.arraycopy(region.offsets[level], 0, offsets[level], pos, region.offsets[level].length);
+                pos += region.offsets[level].length;
+            }
+        }
+        return new BoundaryIndex(levels, offsets);
+    }
+
+    private static final class Scanner {
+
+        private final String[] levels;
+        /** Levels whose separator starts with a given ASCII character, as a bit mask; others are checked per level. */
+        private final int[] asciiLevels = new int[128];
+        private int otherLevels;
+
+        Scanner(List<String> separators) {
+            this.levels = separators.toArray(String[]::new);
+            if (levels.length > Integer.SIZE) {
+                throw new IllegalArgumentException("At most " + Integer.SIZE + " separators are supported, got " + levels.length);
+            }
+            for (int level = 0; level < levels.length; level++) {
+                char first = levels[level].charAt(0);
+                if (first < 128) {
+                    asciiLevels[first] |= 1 << level;
+                } else {
+                    otherLevels |= 1 << level;
+                }
+            }
+        }
+
+        /** Occurrences starting in {@code [from, to)}; they may extend past {@code to}. */
+        BoundaryIndex scan(String text, int from, int to) {
+            int[][] offsets = new int[levels.length][16];
+            int[] counts = new int[levels.length];
+            for (int pos = from; pos < to; pos++) {
+                char c = text.charAt(pos);
+                int candidates = c < 128 ? asciiLevels[c] : otherLevels;
+                while (candidates != 0) {
+                    int level = Integer.numberOfTrailingZeros(candidates);
+                    candidates &= candidates - 1;
+                    String separator = levels[level];
+                    if (separator.length() == 1 ? separator.charAt(0) == c : text.startsWith(separator, pos)) {
+                        if (counts[level] == offsets[level].length) {
+                            offsets[level] = Arrays.copyOf(offsets[level], counts[level] * 2);
+                        }
+                        offsets[level][counts[level]++] = pos;
+                    }
+                }
+            }
+
+            for (int level = 0; level < levels.length; level++) {
+                offsets[level] = Arrays.copyOf(offsets[level], counts[level]);
+            }
+            return new BoundaryIndex(levels, offsets);
+        }
+    }
+
+    public int levels() {
+        return separators.length;
+    }
+
+    public String separator(int level) {
+        return separators[level];
+    }
+
+    public int[] offsets(int level) {
+        return offsets[level];
+    }
+}
@@ -0,0 +1,290 @@
+package org.tanzu.dataflow.streamapps.textchunker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Detects near-duplicate chunks (repeated legal footers, cover pages, tables of contents) by the
+ * MinHash signatures of their lower-cased word shingles.
+ * <p>
+ * Two chunks are near-duplicates when the share of equal MinHash values, an estimate of the Jaccard
+ * similarity of their shingle sets, reaches {@code threshold}. Signatures are indexed LSH-style: the
+ * {@value #HASHES} values are split into bands sized so that pairs around the threshold share a band
+ * with high probability, and only chunks sharing a band are compared. Each document is checked against
+ * its own earlier chunks and, with {@code recentDocuments > 0}, against the indexes of that many most
+ * recently closed other documents (a re-ingested document never matches its own earlier pass); older
+ * indexes are dropped, and one document indexes at most
+ * {@value #MAX_SIGNATURES_PER_DOCUMENT} signatures, so memory stays bounded.
+ * <p>
+ * Publishes {@code chunker.dedup.suppressed} (counter, tagged {@code scope=document|recent} and
+ * {@code action=drop|tag}).
+ */
+public class NearDuplicateFilter {
+
+    static final int HASHES = 64;
+    static final int MAX_SIGNATURES_PER_DOCUMENT = 50_000;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    /** Odd multipliers and offsets of the {@value #HASHES} hash permutations {@code x * a + b}. */
+    private static final long[] MULTIPLIERS = new long[HASHES];
+    private static final long[] OFFSETS = new long[HASHES];
+
+    static {
+        long seed = 0x2545f4914f6cdd1dL;
+        for (int i = 0; i < HASHES; i++) {
+            MULTIPLIERS[i] = (seed = mix(seed + 0x9e3779b97f4a7c15L)) | 1;
+            OFFSETS[i] = seed = mix(seed + 0x9e3779b97f4a7c15L);
+        }
+    }
+
+    private final TextChunkerProperties.Dedup properties;
+    private final int rows;
+    private final Deque<SignatureIndex> recent = new ArrayDeque<>();
+    private final Counter suppressedInDocument;
+    private final Counter suppressedAcrossDocuments;
+
+    public NearDuplicateFilter(TextChunkerProperties.Dedup properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.rows = rowsPerBand(properties.threshold());
+        this.suppressedInDocument = meterRegistry.counter("chunker.dedup.suppressed",
+                "scope", "document", "action", properties.action());
+        this.suppressedAcrossDocuments = meterRegistry.counter("chunker.dedup.suppressed",
+                "scope", "recent", "action", properties.action());
+    }
+
+    /**
+     * Largest band size whose LSH threshold {@code (1/bands)^(1/rows)} stays at or below
+     * {@code threshold}, so that near-duplicates are rarely missed.
+     */
+    static int rowsPerBand(double threshold) {
+        int rows = 1;
+        for (int candidate = 2; candidate < HASHES; candidate *= 2) {
+            if (Math.pow(1.0 / (HASHES / candidate), 1.0 / candidate) <= threshold) {
+                rows = candidate;
+            }
+        }
+        return rows;
+    }
+
+    public boolean enabled() {
+        return properties.enabled();
+    }
+
+    public boolean drops() {
+        return properties.action().equals("drop");
+    }
+
+    /**
+     * Starts checking the chunks of one document; {@link Document#close()} it after its last chunk.
+     */
+    public Document open(String documentId) {
+        return new Document(documentId);
+    }
+
+    /**
+     * The earlier chunk a checked chunk nearly duplicates.
+     *
+     * @param documentId document of the earlier chunk
+     * @param chunkIndex position of the earlier chunk among the checked chunks of its document
+     * @param similarity estimated Jaccard similarity of the two chunks' shingles
+     */
+    public record Match(String documentId, int chunkIndex, double similarity) {
+
+        /** Header value identifying the earlier chunk, {@code <documentId>#<chunkIndex>}. */
+        public String reference() {
+            return documentId + "#" + chunkIndex;
+        }
+    }
+
+    /**
+     * Near-duplicate state of one document being chunked. Not thread-safe.
+     */
+    public class Document {
+
+        private final String documentId;
+        private final SignatureIndex index;
+        private int checked;
+
+        private Document(String documentId) {
+            this.documentId = documentId;
+            this.index = new SignatureIndex(documentId);
+        }
+
+        /**
+         * Returns the earlier chunk {@code chunk} nearly duplicates, or {@code null} if it is new (or
+         * the filter is disabled); new chunks are indexed for the following checks.
+         */
+        public Match check(String chunk) {
+            if (!properties.enabled()) {
+                return null;
+            }
+            int chunkIndex = checked++;
+            int[] signature = minHash(chunk, properties.shingleSize());
+            if (signature == null) {
+                return null;
+            }
+
+            Match match = index.find(signature);
+            if (match != null) {
+                suppressedInDocument.increment();
+                return match;
+            }
+            if (properties.recentDocuments() > 0) {
+                synchronized (recent) {
+                    for (SignatureIndex other : recent) {
+                        if (other.documentId.equals(documentId)) {
+                            continue;
+                        }
+                        match = other.find(signature);
+                        if (match != null) {
+                            suppressedAcrossDocuments.increment();
+                            return match;
+                        }
+                    }
+                }
+            }
+            index.add(signature, documentId, chunkIndex);
+            return null;
+        }
+
+        /**
+         * Makes this document's chunks visible to later documents, replacing the index of an earlier
+         * pass over the same document and evicting the oldest document beyond {@code recentDocuments}.
+         */
+        public void close() {
+            if (!properties.enabled() || properties.recentDocuments() == 0) {
+                return;
+            }
+            synchronized (recent) {
+                recent.removeIf(other -> other.documentId.equals(documentId));
+                recent.addFirst(index);
+                while (recent.size() > properties.recentDocuments()) {
+                    recent.removeLast();
+                }
+            }
+        }
+    }
+
+    /**
+     * MinHash signature of the lower-cased word {@code shingleSize}-grams of {@code text} (of its
+     * single words if it has fewer), or {@code null} if the text has no words.
+     */
+    static int[] minHash(String text, int shingleSize) {
+        long[] words = new long[16];
+        int count = 0;
+        long hash = FNV_OFFSET;
+        boolean inWord = false;
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                hash = (hash ^ Character.toLowerCase(c)) * FNV_PRIME;
+                inWord = true;
+            } else if (inWord) {
+                if (count == words.length) {
+                    words = Arrays.copyOf(words, count * 2);
+                }
+                words[count++] = hash;
+                hash = FNV_OFFSET;
+                inWord = false;
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+
+        int n = Math.min(shingleSize, count);
+        long[] minimums = new long[HASHES];
+        Arrays.fill(minimums, Long.MAX_VALUE);
+        for (int start = 0; start + n <= count; start++) {
+            long shingle = 0;
+            for (int i = start; i < start + n; i++) {
+                shingle = mix(shingle * 31 + words[i]);
+            }
+            for (int h = 0; h < HASHES; h++) {
+                minimums[h] = Math.min(minimums[h], shingle * MULTIPLIERS[h] + OFFSETS[h]);
+            }
+        }
+
+        int[] signature = new int[HASHES];
+        for (int h = 0; h < HASHES; h++) {
+            signature[h] = (int) (minimums[h] >>> 32);
+        }
+        return signature;
+    }
+
+    static double similarity(int[] a, int[] b) {
+        int equal = 0;
+        for (int h = 0; h < HASHES; h++) {
+            if (a[h] == b[h]) equal++;
+        }
+        return (double) equal / HASHES;
+    }
+
+    /** SplitMix64 finalizer. */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private record Entry(int[] signature, String documentId, int chunkIndex) {
+    }
+
+    /**
+     * Signatures of one document, bucketed by band.
+     */
+    private class SignatureIndex {
+
+        private final String documentId;
+        private final Map<Long, List<Entry>> buckets = new HashMap<>();
+        private int size;
+
+        SignatureIndex(String documentId) {
+            this.documentId = documentId;
+        }
+
+        Match find(int[] signature) {
+            for (int band = 0; band < HASHES / rows; band++) {
+                List<Entry> bucket = buckets.get(bandKey(signature, band));
+                if (bucket == null) {
+                    continue;
+                }
+                for (Entry entry : bucket) {
+                    double similarity = similarity(entry.signature(), signature);
+                    if (similarity >= properties.threshold()) {
+                        return new Match(entry.documentId(), entry.chunkIndex(), similarity);
+                    }
+                }
+            }
+            return null;
+        }
+
+        void add(int[] signature, String documentId, int chunkIndex) {
+            if (size == MAX_SIGNATURES_PER_DOCUMENT) {
+                return;
+            }
+            size++;
+            Entry entry = new Entry(signature, documentId, chunkIndex);
+            for (int band = 0; band < HASHES / rows; band++) {
+                buckets.computeIfAbsent(bandKey(signature, band), key -> new ArrayList<>(1)).add(entry);
+            }
+        }
+
+        private long bandKey(int[] signature, int band) {
+            long key = band;
+            for (int h = band * rows; h < (band + 1) * rows; h++) {
+                key = mix(key * 31 + signature[h]);
+            }
+            return key;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.tanzu.dataflow.streamapps.textchunker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Character chunking of large documents on a {@link ForkJoinPool}, producing exactly the chunks of
+ * the sequential {@link TextChunkerConfiguration#splitIntoChunks} walk.
+ * <p>
+ * The text is cut into regions of about {@code regionSize} characters, each starting right after an
+ * occurrence of the top-level separator where there is one, and the separator index and the window
+ * walk of every region run as independent tasks. The regions are then stitched in order: the walk
+ * carried over from the previous region continues sequentially until it reaches a window start the
+ * region's own walk also passed through, and from there the region's chunks are taken as they are,
+ * since the chunks that follow depend only on the window start. Separator breaks make walks meet
+ * within a window or two; on text without separators, where hard cuts keep them apart, the carried
+ * walk simply chunks the region itself and the result degrades to sequential speed, never to
+ * different chunks.
+ */
+public class ParallelChunker {
+
+    private final int size;
+    private final int overlap;
+    private final List<String> separators;
+    private final int regionSize;
+    private final ForkJoinPool pool;
+
+    public ParallelChunker(TextChunkerProperties properties, ForkJoinPool pool) {
+        this.size = properties.size();
+        this.overlap = properties.overlap();
+        this.separators = properties.separators();
+        this.regionSize = properties.parallel().regionSize();
+        this.pool = pool;
+    }
+
+    public List<String> split(String text) {
+        if (text == null || text.isEmpty()) {
+            return List.of();
+        }
+
+        BoundaryIndex index = BoundaryIndex.of(text, separators, pool, regionSize);
+        int[] bounds = regionBounds(text.length(), index.offsets(0), index.separator(0).length());
+        List<ForkJoinTask<Region>> tasks = new ArrayList<>(bounds.length - 1);
+        for (int k = 0; k + 1 < bounds.length; k++) {
+            int from = bounds[k];
+            int to = bounds[k + 1];
+            tasks.add(pool.submit(() -> Region.walk(new WindowWalk(text, index, size, overlap, from), to)));
+        }
+
+        List<String> chunks = new ArrayList<>(text.length() / Math.max(1, size - overlap) + 1);
+        Region first = tasks.getFirst().join();
+        first.addChunks(0, chunks);
+        WindowWalk carried = first.walk;
+        for (int k = 1; k < tasks.size() && !carried.done(); k++) {
+            Region region = tasks.get(k).join();
+            int j = 0;
+            while (!carried.done() && carried.start() < bounds[k + 1]) {
+                while (j < region.count && region.starts[j] < carried.start()) j++;
+                if (j < region.count && region.starts[j] == carried.start()) {
+                    region.addChunks(j, chunks);
+                    carried = region.walk;
+                    break;
+                }
+                String chunk = carried.next();
+                if (chunk != null) {
+                    chunks.add(chunk);
+                }
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Region start offsets plus the text length: every {@code regionSize} characters, moved back to
+     * just after the last top-level separator occurrence within half a region when there is one.
+     */
+    private int[] regionBounds(int length, int[] separatorOffsets, int separatorLength) {
+        int[] bounds = new int[(int) ((length + (long) regionSize - 1) / regionSize) + 1];
+        int count = 1;
+        for (long target = regionSize; target < length; target += regionSize) {
+            int bound = (int) target;
+            int found = Arrays.binarySearch(separatorOffsets, bound - separatorLength);
+            int occurrence = found >= 0 ? found : -found - 2;
+            if (occurrence >= 0) {
+                int afterSeparator = separatorOffsets[occurrence] + separatorLength;
+                if (afterSeparator > target - regionSize / 2 && afterSeparator > bounds[count - 1]) {
+                    bound = afterSeparator;
+                }
+            }
+            bounds[count++] = bound;
+        }
+        bounds[count++] = length;
+        return Arrays.copyOf(bounds, count);
+    }
+
+    /**
+     * The windows one walk closed in a region: their start offsets and chunks ({@code null} for
+     * whitespace-only windows), and the walk itself, left at the first start past the region.
+     */
+    private static final class Region {
+
+        private final WindowWalk walk;
+        private int[] starts = new int[16];
+        private String[] chunks = new String[16];
+        private int count;
+
+        private Region(WindowWalk walk) {
+            this.walk = walk;
+        }
+
+        static Region walk(WindowWalk walk, int to) {
+            Region region = new Region(walk);
+            while (!walk.done() && walk.start() < to) {
+                if (region.count == region.starts.length) {
+                    region.starts = Arrays.copyOf(region.starts, region.count * 2);
+                    region.chunks = Arrays.copyOf(region.chunks, region.count * 2);
+                }
+                region.starts[region.count] = walk.start();
+                region.chunks[region.count++] = walk.next();
+            }
+            return region;
+        }
+
+        void addChunks(int from, List<String> target) {
+            for (int i = from; i < count; i++) {
+                if (chunks[i] != null) {
+                    target.add(chunks[i]);
+                }
+            }
+        }
+    }
+}
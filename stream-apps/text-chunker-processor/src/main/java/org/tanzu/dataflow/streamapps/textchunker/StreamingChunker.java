@@ -0,0 +1,145 @@
+package org.tanzu.dataflow.streamapps.textchunker;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Incremental form of {@link TextChunkerConfiguration#splitIntoChunks}: text is appended piece by
+ * piece and every chunk is handed to the sink as soon as its window closes, producing exactly the
+ * chunks the batch splitter would produce for the concatenated text.
+ * <p>
+ * A window starting at {@code start} is closed once more than {@code size} plus the longest
+ * separator's length characters from {@code start} have been seen, which is enough to know the
+ * window is not the last one and to see every separator the batch splitter could break at. Text
+ * before the current window start is discarded after each {@link #append}, so memory is bounded by
+ * one window plus the appended piece, regardless of document size.
+ * <p>
+ * Not thread-safe; one instance chunks one document.
+ */
+public class StreamingChunker {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final int size;
+    private final int overlap;
+    private final String[] separators;
+    private final int maxSeparatorLength;
+    private final Consumer<String> sink;
+    private final StringBuilder buffer = new StringBuilder();
+
+    /** Absolute offset of {@code buffer.charAt(0)} in the document. */
+    private long base;
+    /** Absolute start offset of the next window. */
+    private long start;
+    private int chunkCount;
+    private boolean finished;
+
+    public StreamingChunker(TextChunkerProperties properties, Consumer<String> sink) {
+        this.size = properties.size();
+        this.overlap = properties.overlap();
+        this.separators = properties.separators().toArray(String[]::new);
+        this.maxSeparatorLength = Arrays.stream(separators).mapToInt(String::length).max().orElse(0);
+        this.sink = sink;
+    }
+
+    /**
+     * Chunks everything {@code reader} produces, without ever holding the whole text.
+     *
+     * @return number of chunks emitted
+     */
+    public static int chunk(Reader reader, TextChunkerProperties properties, Consumer<String> sink)
+            throws IOException {
+        StreamingChunker chunker = new StreamingChunker(properties, sink);
+        char[] read = new char[READ_BUFFER_SIZE];
+        for (int n = reader.read(read); n >= 0; n = reader.read(read)) {
+            chunker.append(read, n);
+        }
+        chunker.finish();
+        return chunker.chunkCount();
+    }
+
+    public void append(CharSequence text) {
+        checkOpen();
+        buffer.append(text);
+        drain(false);
+    }
+
+    private void append(char[] text, int length) {
+        checkOpen();
+        buffer.append(text, 0, length);
+        drain(false);
+    }
+
+    /**
+     * Closes the remaining windows; the text seen so far is the whole document.
+     */
+    public void finish() {
+        checkOpen();
+        drain(true);
+        finished = true;
+        buffer.setLength(0);
+        buffer.trimToSize();
+    }
+
+    public int chunkCount() {
+        return chunkCount;
+    }
+
+    private void checkOpen() {
+        if (finished) {
+            throw new IllegalStateException("Chunker already finished");
+        }
+    }
+
+    private void drain(boolean last) {
+        long length = base + buffer.length();
+        while (last || length - start > (long) size + maxSeparatorLength) {
+            long end = Math.min(start + size, length);
+
+            if (end < length) {
+                int window = (int) (end - base);
+                for (String separator : separators) {
+                    int pos = lastOccurrence(separator, window, (int) (start - base));
+                    if (pos >= 0 && base + pos + separator.length() - overlap > start) {
+                        end = base + pos + separator.length();
+                        break;
+                    }
+                }
+            }
+
+            int from = (int) (start - base);
+            int to = (int) (end - base);
+            while (from < to && buffer.charAt(from) <= ' ') from++;
+            while (to > from && buffer.charAt(to - 1) <= ' ') to--;
+            if (from < to) {
+                chunkCount++;
+                sink.accept(buffer.substring(from, to));
+            }
+
+            if (end == length) break;
+            start = end - overlap > start ? end - overlap : end;
+        }
+
+        if (start > base) {
+            buffer.delete(0, (int) (start - base));
+            base = start;
+        }
+    }
+
+    /**
+     * Last occurrence of {@code separator} in the buffer starting in {@code (after, at]}, or -1.
+     * Unlike {@code lastIndexOf}, the search stops at the window start instead of the buffer start.
+     */
+    private int lastOccurrence(String separator, int at, int after) {
+        for (int pos = Math.min(at, buffer.length() - separator.length()); pos > after; pos--) {
+            int i = 0;
+            while (i < separator.length() && buffer.charAt(pos + i) == separator.charAt(i)) i++;
+            if (i == separator.length()) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+}
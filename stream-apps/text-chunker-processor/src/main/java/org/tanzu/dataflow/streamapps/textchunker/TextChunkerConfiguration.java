@@ -1,22 +1,67 @@
 package org.tanzu.dataflow.streamapps.textchunker;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Function;
 
+import io.micrometer.core.instrument.MeterRegistry;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.cloud.stream.binder.ConsumerProperties;
+import org.springframework.cloud.stream.config.BindingServiceProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.support.MessageBuilder;
 
+import org.tanzu.dataflow.streamapps.common.ChunkBatch;
+import org.tanzu.dataflow.streamapps.common.ChunkedDocument;
+import org.tanzu.dataflow.streamapps.common.ClaimCheck;
+import org.tanzu.dataflow.streamapps.common.Texts;
+
 /**
  * Spring Cloud Stream function that splits text into overlapping chunks.
  * Accepts a text payload and emits multiple chunk messages.
  * Each chunk preserves the original message headers plus chunk metadata.
+ * <p>
+ * {@code chunkDocument} is an alternative function for incremental re-ingestion: it emits one
+ * {@link ChunkedDocument} per input carrying every chunk with its content hash, the document id
+ * (taken from the {@code chunker.document-id-header} header) and a version hash of the whole text.
+ * <p>
+ * {@code chunkSegments} is the streaming variant of {@code chunkText} for very large documents. Each
+ * input is one segment of a document, in order, marked with {@code segment-index} and
+ * {@code segment-last} headers; chunks are emitted as soon as their window closes, and only the
+ * unfinished window is kept per document. The final chunk of a document carries {@code chunk-last}
+ * and {@code chunk-count}. A message without segment headers is treated as a whole document.
+ * Segments must carry the {@code chunker.document-id-header}, and because the per-document state
+ * lives in this instance's memory, every segment of a document has to reach the same consumer: the
+ * input binding must run with concurrency 1, and several instances only with a partitioned binding
+ * keyed by the document id. Both are checked at startup.
+ * <p>
+ * With {@code chunker.unit=tokens}, {@code chunkText} and {@code chunkDocument} measure size and
+ * overlap in tokens of the embedding model's encoding through {@link TokenChunker}.
+ * <p>
+ * With {@code chunker.dedup.enabled=true}, every function passes its chunks through the
+ * {@link NearDuplicateFilter}: near-duplicates are dropped (remaining chunks are renumbered) or, with
+ * {@code chunker.dedup.action=tag}, emitted with a {@code near-duplicate-of} header naming the earlier
+ * chunk as {@code <document-id>#<index>}.
+ * <p>
+ * {@code chunkTextBatch} emits the same chunks as {@code chunkText}, packed into a few
+ * {@link ChunkBatch} messages per document that carry the input headers and {@code chunk-count}
+ * once, bounded by {@code chunker.batch.*}.
+ * <p>
+ * Every function resolves claim-checked input text (see {@link ClaimCheck}) before chunking it.
  */
 @Configuration
 @EnableConfigurationProperties(TextChunkerProperties.class)
@@ -24,60 +69,362 @@ public class TextChunkerConfiguration {
 
     private static final Logger log = LoggerFactory.getLogger(TextChunkerConfiguration.class);
 
+    static final String SEGMENT_INDEX_HEADER = "segment-index";
+    static final String SEGMENT_LAST_HEADER = "segment-last";
+    static final String NEAR_DUPLICATE_HEADER = "near-duplicate-of";
+
+    @Bean
+    @ConditionalOnProperty(name = "chunker.unit", havingValue = "tokens")
+    public TokenChunker tokenChunker(TextChunkerProperties properties) {
+        TokenChunker chunker = new TokenChunker(properties);
+        log.info("Chunking by {} tokens (overlap {}) of encoding {}",
+                properties.size(), properties.overlap(), chunker.encodingName());
+        return chunker;
+    }
+
     @Bean
-    public Function<Message<String>, List<Message<String>>> chunkText(TextChunkerProperties properties) {
-        return message -> {
+    public NearDuplicateFilter nearDuplicateFilter(TextChunkerProperties properties, MeterRegistry meterRegistry) {
+        return new NearDuplicateFilter(properties.dedup(), meterRegistry);
+    }
+
+    @Bean
+    public Function<Message<String>, List<Message<String>>> chunkText(TextChunkerProperties properties,
+                                                                      ObjectProvider<TokenChunker> tokenChunker,
+                                                                      NearDuplicateFilter nearDuplicates,
+                                                                      ClaimCheck claimCheck) {
+        Function<String, List<String>> splitter = splitter(properties, tokenChunker);
+        return claimCheck.resolvingText(message -> {
             String text = message.getPayload();
-            List<String> chunks = splitIntoChunks(text, properties);
-            log.debug("Split {} characters into {} chunks (size={}, overlap={})",
-                    text.length(), chunks.size(), properties.size(), properties.overlap());
+            List<String> chunks = splitter.apply(text);
+
+            NearDuplicateFilter.Document document = nearDuplicates.open(documentId(message, properties));
+            List<String> kept = new ArrayList<>(chunks.size());
+            List<NearDuplicateFilter.Match> matches = new ArrayList<>(chunks.size());
+            for (String chunk : chunks) {
+                NearDuplicateFilter.Match match = document.check(chunk);
+                if (match == null || !nearDuplicates.drops()) {
+                    kept.add(chunk);
+                    matches.add(match);
+                }
+            }
+            document.close();
+            log.debug("Split {} characters into {} chunks, {} kept (size={}, overlap={} {})", text.length(),
+                    chunks.size(), kept.size(), properties.size(), properties.overlap(), properties.unit());
 
-            List<Message<String>> messages = new ArrayList<>(chunks.size());
-            for (int i = 0; i < chunks.size(); i++) {
-                messages.add(MessageBuilder.withPayload(chunks.get(i))
+            List<Message<String>> messages = new ArrayList<>(kept.size());
+            for (int i = 0; i < kept.size(); i++) {
+                MessageBuilder<String> builder = MessageBuilder.withPayload(kept.get(i))
                         .copyHeaders(message.getHeaders())
                         .setHeader("chunk-index", i)
-                        .setHeader("chunk-count", chunks.size())
+                        .setHeader("chunk-count", kept.size());
+                if (matches.get(i) != null) {
+                    builder.setHeader(NEAR_DUPLICATE_HEADER, matches.get(i).reference());
+                }
+                messages.add(builder.build());
+            }
+            return messages;
+        });
+    }
+
+    @Bean
+    public Function<Message<String>, List<Message<ChunkBatch>>> chunkTextBatch(TextChunkerProperties properties,
+                                                                               ObjectProvider<TokenChunker> tokenChunker,
+                                                                               NearDuplicateFilter nearDuplicates,
+                                                                               ClaimCheck claimCheck) {
+        Function<String, List<String>> splitter = splitter(properties, tokenChunker);
+        return claimCheck.resolvingText(message -> {
+            String text = message.getPayload();
+            List<String> chunks = splitter.apply(text);
+
+            // A batch has no per-chunk headers, so tagged near-duplicates are kept unmarked.
+            NearDuplicateFilter.Document document = nearDuplicates.open(documentId(message, properties));
+            List<String> kept = new ArrayList<>(chunks.size());
+            for (String chunk : chunks) {
+                if (document.check(chunk) == null || !nearDuplicates.drops()) {
+                    kept.add(chunk);
+                }
+            }
+            document.close();
+
+            List<Message<ChunkBatch>> messages = new ArrayList<>();
+            for (int from = 0; from < kept.size(); ) {
+                int to = batchEnd(kept, from, properties.batch());
+                messages.add(MessageBuilder.withPayload(new ChunkBatch(from, List.copyOf(kept.subList(from, to))))
+                        .copyHeaders(message.getHeaders())
+                        .setHeader("chunk-count", kept.size())
                         .build());
+                from = to;
             }
+            log.debug("Split {} characters into {} chunks, {} kept, in {} batches", text.length(), chunks.size(),
+                    kept.size(), messages.size());
             return messages;
+        });
+    }
+
+    /**
+     * End of the batch starting at {@code from}: at most {@code maxChunks} chunks and
+     * {@code maxBytes} of UTF-8 text, but always at least one chunk.
+     */
+    private static int batchEnd(List<String> chunks, int from, TextChunkerProperties.Batch batch) {
+        int to = from;
+        long bytes = 0;
+        while (to < chunks.size() && to - from < batch.maxChunks()) {
+            bytes += Texts.utf8Length(chunks.get(to));
+            if (to > from && bytes > batch.maxBytes()) {
+                break;
+            }
+            to++;
+        }
+        return to;
+    }
+
+    @Bean
+    public Function<Message<String>, Message<ChunkedDocument>> chunkDocument(TextChunkerProperties properties,
+                                                                             ObjectProvider<TokenChunker> tokenChunker,
+                                                                             NearDuplicateFilter nearDuplicates,
+                                                                             ClaimCheck claimCheck) {
+        Function<String, List<String>> splitter = splitter(properties, tokenChunker);
+        return claimCheck.resolvingText(message -> {
+            String text = message.getPayload();
+            List<String> chunks = splitter.apply(text);
+
+            String version = Texts.sha256(text);
+            Object idHeader = message.getHeaders().get(properties.documentIdHeader());
+            String documentId = idHeader != null ? idHeader.toString() : version;
+            if (idHeader == null) {
+                log.warn("No {} header; using the content hash as document id, so older versions cannot be replaced",
+                        properties.documentIdHeader());
+            }
+
+            // ChunkedDocument has no per-chunk headers, so tagged near-duplicates are kept unmarked.
+            NearDuplicateFilter.Document document = nearDuplicates.open(documentId);
+            List<ChunkedDocument.Chunk> documentChunks = new ArrayList<>(chunks.size());
+            for (String chunk : chunks) {
+                if (document.check(chunk) == null || !nearDuplicates.drops()) {
+                    documentChunks.add(new ChunkedDocument.Chunk(documentChunks.size(), chunk, Texts.sha256(chunk)));
+                }
+            }
+            document.close();
+            log.debug("Split document {} ({} characters) into {} chunks, {} kept", documentId, text.length(),
+                    chunks.size(), documentChunks.size());
+
+            return MessageBuilder.withPayload(new ChunkedDocument(documentId, version, documentChunks))
+                    .copyHeaders(message.getHeaders())
+                    .setHeader("document-id", documentId)
+                    .setHeader("document-version", version)
+                    .setHeader("chunk-count", documentChunks.size())
+                    .build();
+        });
+    }
+
+    @Bean
+    public Function<Message<String>, List<Message<String>>> chunkSegments(TextChunkerProperties properties,
+                                                                          NearDuplicateFilter nearDuplicates,
+                                                                          ClaimCheck claimCheck,
+                                                                          BindingServiceProperties bindings,
+                                                                          @Value("${spring.cloud.stream.function.definition:}")
+                                                                          String definition) {
+        if (Arrays.asList(definition.split("[;|]")).contains("chunkSegments")) {
+            requireSegmentAffinity(bindings.getConsumerProperties("chunkSegments-in-0"));
+        }
+        if (properties.unit().equals("tokens")) {
+            log.warn("chunkSegments measures chunker.size and chunker.overlap in characters; chunker.unit=tokens is ignored");
+        }
+        int maxOpenDocuments = properties.streaming().maxOpenDocuments();
+        Map<String, SegmentedDocument> open = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SegmentedDocument> eldest) {
+                if (size() <= maxOpenDocuments) {
+                    return false;
+                }
+                if (eldest.getValue().finished) {
+                    return true;
+                }
+                log.warn("Dropping unfinished document {} after segment {}; more than {} documents open",
+                        eldest.getKey(), eldest.getValue().nextSegment - 1, maxOpenDocuments);
+                return true;
+            }
         };
+
+        return claimCheck.resolvingText(message -> {
+            Object indexHeader = message.getHeaders().get(SEGMENT_INDEX_HEADER);
+            Object lastHeader = message.getHeaders().get(SEGMENT_LAST_HEADER);
+            int segment = indexHeader != null ? Integer.parseInt(indexHeader.toString()) : 0;
+            boolean last = lastHeader == null || Boolean.parseBoolean(lastHeader.toString());
+            String documentId = documentId(message, properties);
+            if ((indexHeader != null || lastHeader != null) && documentId.isEmpty()) {
+                throw new IllegalArgumentException("Segment " + segment + " has no " + properties.documentIdHeader()
+                        + " header; segments of different documents cannot be told apart");
+            }
+
+            SegmentedDocument document;
+            synchronized (open) {
+                document = open.get(documentId);
+                if (segment == 0 && (document == null || !document.isRedelivery(0, message.getPayload()))) {
+                    document = new SegmentedDocument(properties, nearDuplicates.open(documentId), nearDuplicates.drops());
+                    open.put(documentId, document);
+                }
+                if (document == null) {
+                    throw new IllegalStateException("Segment " + segment + " of document '" + documentId
+                            + "' arrived out of order; expected 0");
+                }
+            }
+            return document.accept(message, documentId, segment, last);
+        });
     }
 
     /**
-     * Splits text into overlapping chunks, preferring to break at the configured
-     * separator boundary when possible.
+     * Fails unless every segment of a document reaches the same {@code chunkSegments} consumer: a
+     * single listener thread, and either a single instance or a partitioned binding (which the
+     * producer must key by the document id header).
      */
-    List<String> splitIntoChunks(String text, TextChunkerProperties properties) {
-        if (text == null || text.isEmpty()) {
-            return List.of();
+    static void requireSegmentAffinity(ConsumerProperties consumer) {
+        if (consumer.getConcurrency() > 1) {
+            throw new IllegalStateException("chunkSegments keeps per-document state in memory and needs"
+                    + " chunkSegments-in-0 concurrency 1, got " + consumer.getConcurrency());
+        }
+        if (consumer.getInstanceCount() > 1 && !consumer.isPartitioned()) {
+            throw new IllegalStateException("chunkSegments with " + consumer.getInstanceCount() + " instances needs"
+                    + " a partitioned chunkSegments-in-0 binding keyed by the document id header");
+        }
+    }
+
+    /**
+     * Chunking state of one document between its segments. The most recent chunk is held back so
+     * that it can be marked as the last one when the final segment arrives.
+     * <p>
+     * The chunks of the latest segment are kept, with a digest of its text, until the next segment
+     * arrives: a redelivery of that segment (after a failed send or a binder retry) gets the same
+     * chunks again instead of failing as out of order. A finished document stays open for the same
+     * reason until it is the least recently used one past {@code chunker.streaming.max-open-documents}.
+     */
+    private static final class SegmentedDocument {
+
+        private final List<String> closed = new ArrayList<>();
+        private final StreamingChunker chunker;
+        private final NearDuplicateFilter.Document nearDuplicates;
+        private final boolean dropNearDuplicates;
+        private int nextSegment;
+        private int nextChunk;
+        private String pending;
+        private NearDuplicateFilter.Match pendingMatch;
+        private String lastDigest;
+        private List<Message<String>> lastMessages;
+        private volatile boolean finished;
+
+        SegmentedDocument(TextChunkerProperties properties, NearDuplicateFilter.Document nearDuplicates,
+                          boolean dropNearDuplicates) {
+            this.chunker = new StreamingChunker(properties, closed::add);
+            this.nearDuplicates = nearDuplicates;
+            this.dropNearDuplicates = dropNearDuplicates;
         }
 
-        int size = properties.size();
-        int overlap = properties.overlap();
-        String separator = properties.separator();
-        List<String> chunks = new ArrayList<>();
+        synchronized boolean isRedelivery(int segment, String text) {
+            return segment == nextSegment - 1 && Texts.sha256(text).equals(lastDigest);
+        }
 
-        int start = 0;
-        while (start < text.length()) {
-            int end = Math.min(start + size, text.length());
+        synchronized List<Message<String>> accept(Message<String> segment, String documentId, int index,
+                                                  boolean last) {
+            if (isRedelivery(index, segment.getPayload())) {
+                log.debug("Segment {} of document '{}' redelivered; emitting its chunks again", index, documentId);
+                return lastMessages;
+            }
+            if (finished || index != nextSegment) {
+                throw new IllegalStateException("Segment " + index + " of document '" + documentId
+                        + "' arrived out of order; expected " + nextSegment);
+            }
+            chunker.append(segment.getPayload());
+            if (last) {
+                chunker.finish();
+            }
 
-            if (end < text.length()) {
-                int separatorPos = text.lastIndexOf(separator, end);
-                if (separatorPos > start) {
-                    end = separatorPos + separator.length();
+            List<Message<String>> messages = new ArrayList<>(closed.size() + 1);
+            for (String chunk : closed) {
+                NearDuplicateFilter.Match match = nearDuplicates.check(chunk);
+                if (match != null && dropNearDuplicates) {
+                    continue;
                 }
+                if (pending != null) {
+                    messages.add(chunkMessage(segment, pending, pendingMatch, false));
+                }
+                pending = chunk;
+                pendingMatch = match;
+            }
+            closed.clear();
+            if (last) {
+                nearDuplicates.close();
+                if (pending != null) {
+                    messages.add(chunkMessage(segment, pending, pendingMatch, true));
+                    pending = null;
+                }
+            }
+            nextSegment++;
+            lastDigest = Texts.sha256(segment.getPayload());
+            lastMessages = List.copyOf(messages);
+            finished = last;
+            return messages;
+        }
+
+        private Message<String> chunkMessage(Message<String> segment, String chunk, NearDuplicateFilter.Match match,
+                                             boolean last) {
+            MessageBuilder<String> builder = MessageBuilder.withPayload(chunk)
+                    .copyHeaders(segment.getHeaders())
+                    .removeHeaders(SEGMENT_INDEX_HEADER, SEGMENT_LAST_HEADER)
+                    .setHeader("chunk-index", nextChunk++);
+            if (match != null) {
+                builder.setHeader(NEAR_DUPLICATE_HEADER, match.reference());
+            }
+            if (last) {
+                builder.setHeader("chunk-count", nextChunk).setHeader("chunk-last", true);
             }
+            return builder.build();
+        }
+    }
 
-            chunks.add(text.substring(start, end).trim());
-            start = end - overlap;
+    private static String documentId(Message<?> message, TextChunkerProperties properties) {
+        return Objects.toString(message.getHeaders().get(properties.documentIdHeader()), "");
+    }
 
-            if (start >= text.length()) break;
-            if (end == text.length()) break;
+    private Function<String, List<String>> splitter(TextChunkerProperties properties,
+                                                    ObjectProvider<TokenChunker> tokenChunker) {
+        TokenChunker tokens = tokenChunker.getIfAvailable();
+        return tokens != null ? tokens::split : text -> splitIntoChunks(text, properties);
+    }
+
+    /**
+     * Splits text into overlapping chunks, preferring to break at the configured separators:
+     * {@code separator} first, then each of {@code fallbackSeparators} in turn (as shipped: line,
+     * sentence, then word), and only cutting at {@code size} when the window holds none of them.
+     * <p>
+     * A {@link BoundaryIndex} of all separator offsets is built in one forward pass and consumed by
+     * one forward-only cursor per level, so the whole split is linear in the text length. Each chunk
+     * is trimmed by index and materialized with a single {@code substring}. A break at a separator is
+     * only taken when the next window, moved back by {@code overlap}, still starts after the current
+     * one; otherwise the next level is tried, and a hard cut drops the overlap if even that would
+     * not advance.
+     * <p>
+     * Texts of at least {@code chunker.parallel.threshold} characters are split by a
+     * {@link ParallelChunker} on the common fork/join pool, with the same result.
+     */
+    List<String> splitIntoChunks(String text, TextChunkerProperties properties) {
+        if (text == null || text.isEmpty()) {
+            return List.of();
+        }
+        if (text.length() >= properties.parallel().threshold() && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            return new ParallelChunker(properties, ForkJoinPool.commonPool()).split(text);
         }
 
-        return chunks.stream()
-                .filter(chunk -> !chunk.isEmpty())
-                .toList();
+        int size = properties.size();
+        int overlap = properties.overlap();
+        int step = size > overlap ? size - overlap : size;
+        List<String> chunks = new ArrayList<>(text.length() / step + 1);
+        WindowWalk walk = new WindowWalk(text, BoundaryIndex.of(text, properties.separators()), size, overlap, 0);
+        while (!walk.done()) {
+            String chunk = walk.next();
+            if (chunk != null) {
+                chunks.add(chunk);
+            }
+        }
+        return chunks;
     }
 }
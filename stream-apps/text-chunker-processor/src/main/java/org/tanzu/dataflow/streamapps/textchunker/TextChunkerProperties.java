@@ -1,16 +1,125 @@
 package org.tanzu.dataflow.streamapps.textchunker;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
 @ConfigurationProperties(prefix = "chunker")
 public record TextChunkerProperties(
         int size,
         int overlap,
-        String separator
+        String unit,
+        String tokenizer,
+        String separator,
+        List<String> fallbackSeparators,
+        String documentIdHeader,
+        Streaming streaming,
+        Dedup dedup,
+        Parallel parallel,
+        Batch batch
 ) {
     public TextChunkerProperties {
         if (size <= 0) size = 1000;
         if (overlap < 0) overlap = 200;
+        if (unit == null || unit.isBlank()) unit = "characters";
+        unit = unit.toLowerCase();
+        if (tokenizer == null || tokenizer.isBlank()) tokenizer = "text-embedding-3-small";
         if (separator == null || separator.isEmpty()) separator = "\n\n";
+        if (fallbackSeparators == null) fallbackSeparators = List.of();
+        fallbackSeparators = fallbackSeparators.stream().filter(s -> !s.isEmpty()).toList();
+        if (documentIdHeader == null || documentIdHeader.isBlank()) documentIdHeader = "file_remoteFile";
+        if (streaming == null) streaming = new Streaming(0);
+        if (dedup == null) dedup = new Dedup(false, null, 0, 0, 0);
+        if (parallel == null) parallel = new Parallel(0, 0);
+        if (batch == null) batch = new Batch(0, 0);
+    }
+
+    /**
+     * Separator hierarchy tried in order for each window: {@code separator} first, then
+     * {@code fallbackSeparators} when the window holds no usable occurrence of it. Without
+     * {@code fallbackSeparators} a window that holds no {@code separator} is cut at {@code size};
+     * the shipped {@code application.properties} sets line, sentence and word fallbacks.
+     */
+    public List<String> separators() {
+        List<String> separators = new ArrayList<>(fallbackSeparators.size() + 1);
+        separators.add(separator);
+        separators.addAll(fallbackSeparators);
+        return separators;
+    }
+
+    /**
+     * Settings for {@code chunkSegments}.
+     *
+     * @param maxOpenDocuments documents whose final segment has not arrived yet that are kept at once;
+     *                         the least recently updated one is dropped beyond this
+     */
+    public record Streaming(
+            int maxOpenDocuments
+    ) {
+        public Streaming {
+            if (maxOpenDocuments <= 0) maxOpenDocuments = 64;
+        }
+    }
+
+    /**
+     * Near-duplicate chunk suppression (see {@link NearDuplicateFilter}). {@code action} is
+     * {@code drop} (the chunk is not emitted) or {@code tag} (it is emitted with a
+     * {@code near-duplicate-of} header); {@code chunkDocument} only drops.
+     *
+     * @param threshold       estimated Jaccard similarity of word shingles from which two chunks are
+     *                        near-duplicates (0-1]
+     * @param shingleSize     words per shingle
+     * @param recentDocuments recently chunked documents whose chunks are also checked; 0 checks each
+     *                        document only against itself
+     */
+    public record Dedup(
+            boolean enabled,
+            String action,
+            double threshold,
+            int shingleSize,
+            int recentDocuments
+    ) {
+        public Dedup {
+            if (action == null || action.isBlank()) action = "drop";
+            action = action.toLowerCase();
+            if (threshold <= 0 || threshold > 1) threshold = 0.8;
+            if (shingleSize <= 0) shingleSize = 3;
+            if (recentDocuments < 0) recentDocuments = 0;
+        }
+    }
+
+    /**
+     * Parallel character chunking of large documents (see {@link ParallelChunker}); the chunks are
+     * the same as with sequential chunking.
+     *
+     * @param threshold  text length in characters from which a document is chunked in parallel
+     * @param regionSize characters per parallel task
+     */
+    public record Parallel(
+            int threshold,
+            int regionSize
+    ) {
+        public Parallel {
+            if (threshold <= 0) threshold = 1_048_576;
+            if (regionSize <= 0) regionSize = 262_144;
+        }
+    }
+
+    /**
+     * Bounds of the {@code ChunkBatch} messages emitted by {@code chunkTextBatch}: a document's
+     * chunks are packed into as few batches as these allow.
+     *
+     * @param maxChunks chunks per batch
+     * @param maxBytes  UTF-8 bytes of chunk text per batch; a larger single chunk gets a batch of its own
+     */
+    public record Batch(
+            int maxChunks,
+            long maxBytes
+    ) {
+        public Batch {
+            if (maxChunks <= 0) maxChunks = 100;
+            if (maxBytes <= 0) maxBytes = 1_048_576;
+        }
     }
 }
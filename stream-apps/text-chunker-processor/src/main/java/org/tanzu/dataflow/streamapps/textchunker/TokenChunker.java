@@ -0,0 +1,215 @@
+package org.tanzu.dataflow.streamapps.textchunker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingRegistry;
+
+/**
+ * Splits text into overlapping chunks whose size and overlap are measured in BPE tokens of the
+ * embedding model ({@code chunker.unit=tokens}). The encoding is resolved from
+ * {@code chunker.tokenizer}, either a model name such as {@code text-embedding-3-small} or an
+ * encoding name such as {@code cl100k_base}; the merge tables ship inside the jtokkit jar.
+ * <p>
+ * The text is cut into pieces at every start of a whitespace run, which is where the tokenizer's own
+ * pre-tokenization splits words, and each piece is counted through a cache of piece counts (natural
+ * text repeats few distinct words), so a document is tokenized once, mostly by cache hits, and
+ * windows are measured with prefix sums instead of re-tokenizing. Chunks start and end on piece
+ * boundaries; as in character mode, the last boundary in the window whose whitespace touches a
+ * separator is preferred, trying the separator hierarchy in order. Counting pieces separately can
+ * only over-count by a token where the tokenizer would have merged punctuation with the following
+ * newline, so chunks stay within {@code size}.
+ */
+public class TokenChunker {
+
+    private static final EncodingRegistry REGISTRY = Encodings.newLazyEncodingRegistry();
+
+    /** Longest piece counted in one go; longer runs without whitespace are cut into pieces of this length. */
+    static final int MAX_PIECE_LENGTH = 64;
+
+    private static final int PIECE_CACHE_SIZE = 1 << 16;
+
+    private final Encoding encoding;
+    private final int size;
+    private final int overlap;
+    private final List<String> separators;
+    private final Piece[] pieceCache = new Piece[PIECE_CACHE_SIZE];
+
+    public TokenChunker(TextChunkerProperties properties) {
+        this.encoding = REGISTRY.getEncodingForModel(properties.tokenizer())
+                .or(() -> REGISTRY.getEncoding(properties.tokenizer()))
+                .orElseThrow(() -> new IllegalArgumentException("Unknown tokenizer '" + properties.tokenizer()
+                        + "'; set chunker.tokenizer to an OpenAI model name or an encoding such as cl100k_base"));
+        this.size = properties.size();
+        this.overlap = properties.overlap();
+        this.separators = properties.separators();
+    }
+
+    public String encodingName() {
+        return encoding.getName();
+    }
+
+    /**
+     * Token count of {@code text} as summed over its pieces, the measure chunks are cut by.
+     */
+    public int countTokens(String text) {
+        int count = 0;
+        for (int from = 0; from < text.length(); ) {
+            int to = pieceEnd(text, from);
+            count += pieceTokens(text, from, to);
+            from = to;
+        }
+        return count;
+    }
+
+    public List<String> split(String text) {
+        if (text == null || text.isEmpty()) {
+            return List.of();
+        }
+
+        // Piece boundaries (character offsets) and the token count before each boundary.
+        int[] bounds = new int[text.length() / 4 + 2];
+        int[] tokens = new int[bounds.length];
+        int pieces = 0;
+        for (int from = 0; from < text.length(); ) {
+            int to = pieceEnd(text, from);
+            if (pieces + 1 == bounds.length) {
+                bounds = Arrays.copyOf(bounds, bounds.length * 2);
+                tokens = Arrays.copyOf(tokens, bounds.length);
+            }
+            bounds[pieces + 1] = to;
+            tokens[pieces + 1] = tokens[pieces] + pieceTokens(text, from, to);
+            pieces++;
+            from = to;
+        }
+        BoundaryIndex index = BoundaryIndex.of(text, separators);
+        int[][] breaks = new int[index.levels()][];
+        for (int level = 0; level < breaks.length; level++) {
+            breaks[level] = preferredBreaks(text, bounds, pieces, index.offsets(level), index.separator(level).length());
+        }
+        int[] cursors = new int[breaks.length];
+        Arrays.fill(cursors, -1);
+
+        List<String> chunks = new ArrayList<>(tokens[pieces] / Math.max(1, size - overlap) + 1);
+        int start = 0;
+        int window = 0;
+        int next = 0;
+        while (true) {
+            // The first piece loses its leading whitespace to trimming, which changes how it tokenizes.
+            int budget = size + tokens[start + 1] - tokens[start] - leadingPieceTokens(text, bounds[start], bounds[start + 1]);
+            window = Math.max(window, start + 1);
+            while (window < pieces && tokens[window + 1] - tokens[start] <= budget) {
+                window++;
+            }
+            while (window > start + 1 && tokens[window] - tokens[start] > budget) {
+                window--;
+            }
+            int end = window;
+
+            if (end < pieces) {
+                for (int level = 0; level < breaks.length; level++) {
+                    int[] levelBreaks = breaks[level];
+                    int cursor = cursors[level];
+                    while (cursor + 1 < levelBreaks.length && levelBreaks[cursor + 1] <= window) {
+                        cursor++;
+                    }
+                    cursors[level] = cursor;
+                    if (cursor >= 0 && levelBreaks[cursor] > start && tokens[levelBreaks[cursor]] - overlap > tokens[start]) {
+                        end = levelBreaks[cursor];
+                        break;
+                    }
+                }
+            }
+
+            int from = bounds[start];
+            int to = bounds[end];
+            while (from < to && text.charAt(from) <= ' ') from++;
+            while (to > from && text.charAt(to - 1) <= ' ') to--;
+            if (from < to) {
+                chunks.add(text.substring(from, to));
+            }
+
+            if (end == pieces) break;
+            if (tokens[end] - overlap > tokens[start]) {
+                next = Math.max(next, start + 1);
+                while (tokens[next] < tokens[end] - overlap) {
+                    next++;
+                }
+                start = next;
+            } else {
+                start = end;
+            }
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Indexes of the boundaries whose whitespace run touches one of the separator occurrences
+     * starting at {@code separators}, ascending.
+     */
+    private static int[] preferredBreaks(String text, int[] bounds, int pieces, int[] separators, int separatorLength) {
+        int[] breaks = new int[Math.min(pieces, separators.length * 2) + 1];
+        int count = 0;
+        int s = 0;
+        for (int k = 1; k < pieces && s < separators.length; k++) {
+            while (s < separators.length && separators[s] + separatorLength < bounds[k]) {
+                s++;
+            }
+            int whitespaceEnd = bounds[k];
+            while (whitespaceEnd < bounds[k + 1] && Character.isWhitespace(text.charAt(whitespaceEnd))) whitespaceEnd++;
+            if (s < separators.length && separators[s] <= whitespaceEnd) {
+                if (count == breaks.length) {
+                    breaks = Arrays.copyOf(breaks, count * 2);
+                }
+                breaks[count++] = k;
+            }
+        }
+        return Arrays.copyOf(breaks, count);
+    }
+
+    /**
+     * End of the piece starting at {@code from}: a whitespace run followed by a run of non-whitespace,
+     * at most {@link #MAX_PIECE_LENGTH} characters and never splitting a surrogate pair.
+     */
+    private static int pieceEnd(String text, int from) {
+        int limit = Math.min(text.length(), from + MAX_PIECE_LENGTH);
+        int pos = from;
+        while (pos < limit && Character.isWhitespace(text.charAt(pos))) pos++;
+        while (pos < limit && !Character.isWhitespace(text.charAt(pos))) pos++;
+        if (pos < text.length() && pos > from + 1 && Character.isLowSurrogate(text.charAt(pos))) pos--;
+        return pos;
+    }
+
+    private int leadingPieceTokens(String text, int from, int to) {
+        while (from < to && text.charAt(from) <= ' ') from++;
+        return from < to ? pieceTokens(text, from, to) : 0;
+    }
+
+    /**
+     * Token count of {@code text[from, to)}, looked up without allocating in a direct-mapped cache.
+     * Entries are immutable, so concurrent callers at worst recount a piece another thread evicted.
+     */
+    private int pieceTokens(String text, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        int slot = (hash ^ (hash >>> 16)) & (pieceCache.length - 1);
+        Piece cached = pieceCache[slot];
+        int length = to - from;
+        if (cached != null && cached.text().length() == length && cached.text().regionMatches(0, text, from, length)) {
+            return cached.tokens();
+        }
+        String piece = text.substring(from, to);
+        int tokens = encoding.countTokensOrdinary(piece);
+        pieceCache[slot] = new Piece(piece, tokens);
+        return tokens;
+    }
+
+    private record Piece(String text, int tokens) {
+    }
+}
@@ -0,0 +1,82 @@
+package org.tanzu.dataflow.streamapps.textchunker;
+
+import java.util.Arrays;
+
+/**
+ * The window walk of {@link TextChunkerConfiguration#splitIntoChunks}, one window per {@link #next()}.
+ * The chunks that follow depend only on {@link #start()}, so two walks that reach the same start
+ * produce the same chunks from there on, which is what lets {@link ParallelChunker} stitch
+ * independently walked regions together.
+ */
+final class WindowWalk {
+
+    private final String text;
+    private final BoundaryIndex index;
+    private final int size;
+    private final int overlap;
+    /** Per separator level, the last offset at or before the current window end, or -1. */
+    private final int[] cursors;
+    private int start;
+    private boolean done;
+
+    WindowWalk(String text, BoundaryIndex index, int size, int overlap, int start) {
+        this.text = text;
+        this.index = index;
+        this.size = size;
+        this.overlap = overlap;
+        this.start = start;
+        this.done = start >= text.length();
+        this.cursors = new int[index.levels()];
+        for (int level = 0; level < cursors.length; level++) {
+            int found = Arrays.binarySearch(index.offsets(level), start);
+            cursors[level] = found >= 0 ? found : -found - 2;
+        }
+    }
+
+    int start() {
+        return start;
+    }
+
+    boolean done() {
+        return done;
+    }
+
+    /**
+     * Closes the window at {@link #start()} and moves to the next one.
+     *
+     * @return the trimmed chunk, or {@code null} if the window holds only whitespace
+     */
+    String next() {
+        int length = text.length();
+        int end = Math.min(start + size, length);
+
+        if (end < length) {
+            int window = end;
+            for (int level = 0; level < cursors.length; level++) {
+                int[] offsets = index.offsets(level);
+                int cursor = cursors[level];
+                while (cursor + 1 < offsets.length && offsets[cursor + 1] <= window) {
+                    cursor++;
+                }
+                cursors[level] = cursor;
+                int separatorLength = index.separator(level).length();
+                if (cursor >= 0 && offsets[cursor] > start && offsets[cursor] + separatorLength - overlap > start) {
+                    end = offsets[cursor] + separatorLength;
+                    break;
+                }
+            }
+        }
+
+        int from = start;
+        int to = end;
+        while (from < to && text.charAt(from) <= ' ') from++;
+        while (to > from && text.charAt(to - 1) <= ' ') to--;
+
+        if (end == length) {
+            done = true;
+        } else {
+            start = end - overlap > start ? end - overlap : end;
+        }
+        return from < to ? text.substring(from, to) : null;
+    }
+}
@@ -0,0 +1,117 @@
+package org.tanzu.dataflow.streamapps.textchunker;
+
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Throughput of the hierarchical splitter on large inputs, and of token chunking against it. Timing-based, so it is kept out of the
+ * default build: run it with {@code mvn test -Pbenchmark -pl text-chunker-processor}.
+ */
+@Tag("benchmark")
+class SplitThroughputBenchmarkTests {
+
+    private static final Logger log = LoggerFactory.getLogger(SplitThroughputBenchmarkTests.class);
+
+    private final TextChunkerConfiguration configuration = new TextChunkerConfiguration();
+
+    @Test
+    void hierarchicalSplitThroughputIsLinear() {
+        TextChunkerProperties properties = new TextChunkerProperties(1000, 200, null, null, null,
+                List.of("\n", ". ", " "), null, null, null, new TextChunkerProperties.Parallel(Integer.MAX_VALUE, 0), null);
+        TextChunkerProperties singleSeparator = new TextChunkerProperties(1000, 200, null, null, null, List.of(), null,
+                null, null, new TextChunkerProperties.Parallel(Integer.MAX_VALUE, 0), null);
+        String page = "Extracted PDF text, one line per layout row. Sentences run across rows\n".repeat(1_000);
+        String small = page.repeat(8);
+        String large = page.repeat(64);
+        for (int warmup = 0; warmup < 10; warmup++) {
+            configuration.splitIntoChunks(small, properties);
+            configuration.splitIntoChunks(small, singleSeparator);
+        }
+
+        long smallNanos = bestOf(small, properties);
+        long largeNanos = bestOf(large, properties);
+        long singleNanos = bestOf(large, singleSeparator);
+        log.info("Hierarchical split: {} characters in {} ms, {} characters in {} ms ({} M characters/s);"
+                        + " single separator: {} ms", small.length(), smallNanos / 1_000_000, large.length(),
+                largeNanos / 1_000_000, large.length() * 1_000L / Math.max(1, largeNanos), singleNanos / 1_000_000);
+
+        assertThat(configuration.splitIntoChunks(large, properties))
+                .allSatisfy(chunk -> assertThat(chunk).endsWith("rows"));
+        // 8x the input; a per-window rescan would take ~64x as long.
+        assertThat(largeNanos).isLessThan(Math.max(smallNanos, 5_000_000L) * 32);
+    }
+
+    @Test
+    void tokenSplitKeepsPaceWithCharacterSplit() {
+        List<String> fallbacks = List.of("\n", ". ", " ");
+        TextChunkerProperties characters = new TextChunkerProperties(1000, 200, null, null, null, fallbacks, null,
+                null, null, new TextChunkerProperties.Parallel(Integer.MAX_VALUE, 0), null);
+        TokenChunker tokens = new TokenChunker(new TextChunkerProperties(256, 50, "tokens", "text-embedding-3-small",
+                null, fallbacks, null, null, null, null, null));
+        String text = prose(new Random(42), 4 * 1024 * 1024);
+        Function<String, List<String>> characterSplit = input -> configuration.splitIntoChunks(input, characters);
+        for (int warmup = 0; warmup < 5; warmup++) {
+            characterSplit.apply(text.substring(0, text.length() / 8));
+            tokens.split(text.substring(0, text.length() / 8));
+        }
+
+        long characterNanos = bestOf(text, characterSplit);
+        long tokenNanos = bestOf(text, tokens::split);
+        log.info("Split of {} characters: by characters (1000/200) in {} ms, by tokens (256/50) in {} ms",
+                text.length(), characterNanos / 1_000_000, tokenNanos / 1_000_000);
+
+        assertThat(tokens.split(text)).hasSizeGreaterThan(text.length() / (256 * 8));
+        // Tokenizing every piece costs more than scanning for separators, but must not dominate.
+        assertThat(tokenNanos).isLessThan(Math.max(characterNanos, 5_000_000L) * 20);
+    }
+
+    /**
+     * Paragraphs drawn from a vocabulary of 5,000 random words, so that, as in real prose, pieces
+     * repeat but the token counts are not served from a handful of cached pieces.
+     */
+    private static String prose(Random random, int length) {
+        String[] vocabulary = new String[5_000];
+        for (int w = 0; w < vocabulary.length; w++) {
+            StringBuilder word = new StringBuilder();
+            for (int c = 1 + random.nextInt(10); c > 0; c--) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            vocabulary[w] = word.toString();
+        }
+        StringBuilder text = new StringBuilder(length + 2_000);
+        while (text.length() < length) {
+            int words = 20 + random.nextInt(120);
+            for (int i = 0; i < words; i++) {
+                text.append(vocabulary[random.nextInt(vocabulary.length)]).append(random.nextInt(15) == 0 ? ". " : " ");
+            }
+            text.setLength(text.length() - 1);
+            text.append(".\n\n");
+        }
+        return text.toString();
+    }
+
+    private long bestOf(String text, TextChunkerProperties properties) {
+        return bestOf(text, input -> configuration.splitIntoChunks(input, properties));
+    }
+
+    /**
+     * Best of five, so that a GC pause does not count as split time.
+     */
+    private static long bestOf(String text, Function<String, List<String>> split) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            long started = System.nanoTime();
+            split.apply(text);
+            best = Math.min(best, System.nanoTime() - started);
+        }
+        return best;
+    }
+}
@@ -1,17 +1,37 @@
 package org.tanzu.dataflow.streamapps.textchunker;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
 
 import org.junit.jupiter.api.Test;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.binder.ConsumerProperties;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.support.MessageBuilder;
 
-import static org.assertj.core.api.Assertions.assertThat;
+import org.tanzu.dataflow.streamapps.common.BlobStore;
+import org.tanzu.dataflow.streamapps.common.ChunkBatch;
+import org.tanzu.dataflow.streamapps.common.ChunkedDocument;
+import org.tanzu.dataflow.streamapps.common.ClaimCheck;
+import org.tanzu.dataflow.streamapps.common.ClaimCheckProperties;
+import org.tanzu.dataflow.streamapps.common.Texts;
 
-import java.util.function.Function;
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 @SpringBootTest
 class TextChunkerApplicationTests {
@@ -19,6 +39,30 @@ class TextChunkerApplicationTests {
     @Autowired
     private Function<Message<String>, List<Message<String>>> chunkText;
 
+    @Autowired
+    private Function<Message<String>, List<Message<ChunkBatch>>> chunkTextBatch;
+
+    @Autowired
+    private Function<Message<String>, Message<ChunkedDocument>> chunkDocument;
+
+    @Autowired
+    private Function<Message<String>, List<Message<String>>> chunkSegments;
+
+    @Autowired
+    private TextChunkerConfiguration configuration;
+
+    @Autowired
+    private TextChunkerProperties chunkerProperties;
+
+    @Autowired
+    private BlobStore blobStore;
+
+    @Autowired
+    private ObjectProvider<TokenChunker> tokenChunker;
+
+    @Autowired
+    private ClaimCheck claimCheck;
+
     @Test
     void chunksSmallTextIntoSingleChunk() {
         Message<String> message = MessageBuilder
@@ -45,4 +89,436 @@ class TextChunkerApplicationTests {
             assertThat(chunk.getPayload().length()).isLessThanOrEqualTo(1000);
         }
     }
+
+    @Test
+    void resolvesClaimCheckedText() {
+        ClaimCheck sender = new ClaimCheck(blobStore, new ClaimCheckProperties(true, 1024, null, 0));
+        String text = "A sentence of a document that travels by reference. ".repeat(200);
+        Message<String> checked = sender.checkInText(MessageBuilder.withPayload(text)
+                .setHeader("source", "doc-1")
+                .build());
+        assertThat(checked.getPayload()).isEmpty();
+
+        List<Message<String>> chunks = chunkText.apply(checked);
+
+        assertThat(chunks).extracting(Message::getPayload)
+                .containsExactlyElementsOf(chunkText.apply(MessageBuilder.withPayload(text).build())
+                        .stream().map(Message::getPayload).toList());
+        assertThat(chunks.getFirst().getHeaders())
+                .containsEntry("source", "doc-1")
+                .doesNotContainKeys(ClaimCheck.REFERENCE_HEADER, ClaimCheck.LENGTH_HEADER);
+    }
+
+    @Test
+    void batchesChunkTextOutputIntoFramedMessages() {
+        String text = "A sentence of a long report. ".repeat(8_000);
+        Message<String> message = MessageBuilder.withPayload(text)
+                .setHeader("file_remoteFile", "docs/report.pdf")
+                .build();
+
+        List<Message<String>> single = chunkText.apply(message);
+        List<Message<ChunkBatch>> batches = chunkTextBatch.apply(message);
+
+        assertThat(single).hasSizeGreaterThan(2 * chunkerProperties.batch().maxChunks());
+        assertThat(batches).hasSize((single.size() + chunkerProperties.batch().maxChunks() - 1)
+                / chunkerProperties.batch().maxChunks());
+        assertThat(batches).flatExtracting(batch -> batch.getPayload().chunks())
+                .containsExactlyElementsOf(single.stream().map(Message::getPayload).toList());
+        assertThat(batches.get(1).getPayload().firstIndex()).isEqualTo(chunkerProperties.batch().maxChunks());
+        assertThat(batches.getLast().getHeaders())
+                .containsEntry("chunk-count", single.size())
+                .containsEntry("file_remoteFile", "docs/report.pdf");
+
+        ChunkBatch first = batches.getFirst().getPayload();
+        assertThat(first.chunkHeaders(batches.getFirst().getHeaders()).get(3))
+                .containsEntry("chunk-index", 3)
+                .containsEntry("chunk-count", single.size());
+    }
+
+    @Test
+    void chunksDocumentWithStableHashes() {
+        String text = "b".repeat(2500);
+        Message<String> message = MessageBuilder.withPayload(text)
+                .setHeader("file_remoteFile", "docs/a.txt")
+                .build();
+
+        ChunkedDocument first = chunkDocument.apply(message).getPayload();
+        ChunkedDocument second = chunkDocument.apply(message).getPayload();
+
+        assertThat(first.documentId()).isEqualTo("docs/a.txt");
+        assertThat(first.chunks()).hasSizeGreaterThan(1);
+        assertThat(first.chunks().getFirst().index()).isZero();
+        assertThat(first.chunks().getFirst().hash())
+                .isEqualTo(Texts.sha256(first.chunks().getFirst().text()));
+        assertThat(second).isEqualTo(first);
+    }
+
+    @Test
+    void matchesLegacyChunkerOnRandomInputs() {
+        Random random = new Random(7);
+        String[] fragments = {"a", "bb", " ", "\n", "\n\n", ". ", "\t", "ab"};
+        String[] separators = {"\n\n", "\n", ". ", "ab", " "};
+        int compared = 0;
+
+        for (int run = 0; run < 5_000; run++) {
+            StringBuilder text = new StringBuilder();
+            int pieces = random.nextInt(400);
+            for (int i = 0; i < pieces; i++) {
+                text.append(fragments[random.nextInt(fragments.length)]);
+            }
+            int size = 1 + random.nextInt(60);
+            int overlap = random.nextInt(size + 5);
+            TextChunkerProperties properties = new TextChunkerProperties(size, overlap, null, null,
+                    separators[random.nextInt(separators.length)], List.of(), null, null, null, null, null);
+
+            List<String> expected = legacySplit(text.toString(), properties);
+            if (expected == null) {
+                continue;
+            }
+            assertThat(configuration.splitIntoChunks(text.toString(), properties))
+                    .as("text=%s size=%d overlap=%d separator=%s", text, size, overlap, properties.separator())
+                    .isEqualTo(expected);
+            compared++;
+        }
+        assertThat(compared).isGreaterThan(1_000);
+    }
+
+    @Test
+    void advancesWhenSeparatorFallsInsideOverlap() {
+        String text = "a".repeat(900) + "\n\n" + "b".repeat(900);
+
+        List<String> chunks = configuration.splitIntoChunks(text, new TextChunkerProperties(1000, 200, null, null, null, null, null, null, null, null, null));
+
+        assertThat(chunks).hasSize(3);
+        assertThat(chunks.getFirst()).isEqualTo("a".repeat(900));
+        assertThat(String.join("", chunks).replace("\n", "")).contains("b".repeat(900));
+    }
+
+    @Test
+    void fallsBackToLinesSentencesAndWords() {
+        TextChunkerProperties properties = new TextChunkerProperties(200, 20, null, null, null,
+                chunkerProperties.fallbackSeparators(), null, null, null, null, null);
+        String lines = "A line of a PDF page without blank lines between paragraphs\n".repeat(50);
+        String sentences = "A sentence without any line breaks at all. ".repeat(50);
+        String words = "word ".repeat(200);
+
+        assertThat(chunkerProperties.separators()).containsExactly("\n\n", "\n", ". ", " ");
+
+        assertThat(configuration.splitIntoChunks(lines, properties))
+                .hasSizeGreaterThan(10)
+                .allSatisfy(chunk -> assertThat(chunk).endsWith("paragraphs"));
+        assertThat(configuration.splitIntoChunks(sentences, properties))
+                .hasSizeGreaterThan(10)
+                .allSatisfy(chunk -> assertThat(chunk).endsWith("all."));
+        assertThat(configuration.splitIntoChunks(words, properties))
+                .hasSizeGreaterThan(4)
+                .allSatisfy(chunk -> assertThat(chunk.split(" ")).containsOnly("word"));
+    }
+
+    @Test
+    void suppressesNearDuplicateChunksWithinAndAcrossDocuments() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        NearDuplicateFilter filter = new NearDuplicateFilter(
+                new TextChunkerProperties.Dedup(true, "drop", 0.7, 3, 1), registry);
+        String footer = "Confidential. This document is the property of Example Corp and may not be copied, "
+                + "distributed or disclosed without prior written consent. All rights reserved.";
+        String first = "Quarterly revenue grew in every region, led by strong demand for managed services "
+                + "and a recovery in hardware sales after two flat quarters.";
+        String second = "The board approved a new travel policy that caps hotel rates by city and requires "
+                + "pre-approval for any international trip longer than five days.";
+
+        NearDuplicateFilter.Document a = filter.open("docs/a.pdf");
+        assertThat(a.check(footer)).isNull();
+        assertThat(a.check(first)).isNull();
+        assertThat(a.check("  " + footer.toUpperCase().replace(" ", "\n") + " ")).isEqualTo(
+                new NearDuplicateFilter.Match("docs/a.pdf", 0, 1.0));
+        assertThat(a.check(second)).isNull();
+        a.close();
+
+        NearDuplicateFilter.Document b = filter.open("docs/b.pdf");
+        assertThat(b.check(footer.replace("All rights reserved.", "All rights are reserved."))).extracting(
+                NearDuplicateFilter.Match::reference).isEqualTo("docs/a.pdf#0");
+        assertThat(b.check(first.replace("grew", "rose"))).extracting(
+                NearDuplicateFilter.Match::reference).isEqualTo("docs/a.pdf#1");
+        assertThat(b.check("Headcount was flat while attrition fell to its lowest level in three years, "
+                + "mostly thanks to the new internal mobility programme.")).isNull();
+        b.close();
+
+        assertThat(registry.counter("chunker.dedup.suppressed", "scope", "document", "action", "drop").count())
+                .isEqualTo(1);
+        assertThat(registry.counter("chunker.dedup.suppressed", "scope", "recent", "action", "drop").count())
+                .isEqualTo(2);
+        assertThat(NearDuplicateFilter.similarity(NearDuplicateFilter.minHash(first, 3),
+                NearDuplicateFilter.minHash(second, 3))).isLessThan(0.1);
+        assertThat(NearDuplicateFilter.rowsPerBand(0.8)).isEqualTo(8);
+    }
+
+    @Test
+    void reingestedDocumentDoesNotMatchItsOwnEarlierPass() {
+        TextChunkerProperties properties = new TextChunkerProperties(300, 0, null, null, null, null, null, null,
+                new TextChunkerProperties.Dedup(true, "drop", 0.8, 3, 1), null, null);
+        NearDuplicateFilter filter = new NearDuplicateFilter(properties.dedup(), new SimpleMeterRegistry());
+        Function<Message<String>, Message<ChunkedDocument>> chunk =
+                configuration.chunkDocument(properties, tokenChunker, filter, claimCheck);
+        Random random = new Random(17);
+        StringBuilder text = new StringBuilder();
+        for (int paragraph = 0; paragraph < 20; paragraph++) {
+            for (int word = 0; word < 40; word++) {
+                text.append("w").append(random.nextInt(100_000)).append(' ');
+            }
+            text.append("\n\n");
+        }
+        Message<String> message = MessageBuilder.withPayload(text.toString())
+                .setHeader("file_remoteFile", "docs/replayed.txt")
+                .build();
+
+        ChunkedDocument first = chunk.apply(message).getPayload();
+        ChunkedDocument second = chunk.apply(message).getPayload();
+
+        assertThat(first.chunks()).hasSizeGreaterThan(1);
+        assertThat(second).isEqualTo(first);
+    }
+
+    @Test
+    void streamingChunkerMatchesBatchSplitter() throws IOException {
+        Random random = new Random(11);
+        String[] fragments = {"a", "bb", " ", "\n", "\n\n", ". ", "\t", "ab"};
+        String[] separators = {"\n\n", "\n", ". ", "ab", " "};
+        for (int run = 0; run < 2_000; run++) {
+            StringBuilder text = new StringBuilder();
+            int pieces = random.nextInt(400);
+            for (int i = 0; i < pieces; i++) {
+                text.append(fragments[random.nextInt(fragments.length)]);
+            }
+            int size = 1 + random.nextInt(60);
+            TextChunkerProperties properties = new TextChunkerProperties(size, random.nextInt(size + 5), null, null,
+                    separators[random.nextInt(separators.length)],
+                    List.of(separators[random.nextInt(separators.length)], separators[random.nextInt(separators.length)]),
+                    null, null, null, null, null);
+            List<String> expected = configuration.splitIntoChunks(text.toString(), properties);
+
+            List<String> streamed = new ArrayList<>();
+            StreamingChunker chunker = new StreamingChunker(properties, streamed::add);
+            for (int from = 0; from < text.length(); ) {
+                int to = Math.min(text.length(), from + 1 + random.nextInt(50));
+                chunker.append(text.subSequence(from, to));
+                from = to;
+            }
+            chunker.finish();
+
+            List<String> read = new ArrayList<>();
+            StreamingChunker.chunk(new StringReader(text.toString()), properties, read::add);
+
+            assertThat(streamed).as("text=%s properties=%s", text, properties).isEqualTo(expected);
+            assertThat(read).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    void parallelChunkerMatchesSequentialSplitter() {
+        Random random = new Random(13);
+        String[] fragments = {"a", "bb", " ", "\n", "\n\n", ". ", "\t", "ab", "a".repeat(80)};
+        String[] separators = {"\n\n", "\n", ". ", "ab", " "};
+        try (ForkJoinPool pool = new ForkJoinPool(4)) {
+            for (int run = 0; run < 500; run++) {
+                StringBuilder text = new StringBuilder();
+                int pieces = random.nextInt(4_000);
+                for (int i = 0; i < pieces; i++) {
+                    text.append(fragments[random.nextInt(fragments.length)]);
+                }
+                int size = 1 + random.nextInt(200);
+                TextChunkerProperties properties = new TextChunkerProperties(size, random.nextInt(size + 5), null, null,
+                        separators[random.nextInt(separators.length)],
+                        List.of(separators[random.nextInt(separators.length)]), null, null, null,
+                        new TextChunkerProperties.Parallel(1, 1 + random.nextInt(2_000)), null);
+
+                assertThat(new ParallelChunker(properties, pool).split(text.toString()))
+                        .as("text=%s properties=%s", text, properties)
+                        .isEqualTo(configuration.splitIntoChunks(text.toString(), properties));
+            }
+        }
+
+        String large = "Extracted PDF text, one line per layout row. Sentences run across rows\n\n".repeat(30_000);
+        List<String> sequential = configuration.splitIntoChunks(large, new TextChunkerProperties(1000, 200, null, null,
+                null, chunkerProperties.fallbackSeparators(), null, null, null,
+                new TextChunkerProperties.Parallel(Integer.MAX_VALUE, 0), null));
+        assertThat(large.length()).isGreaterThan(chunkerProperties.parallel().threshold());
+        assertThat(configuration.splitIntoChunks(large, chunkerProperties)).isEqualTo(sequential);
+    }
+
+    @Test
+    void chunkSegmentsEmitsChunksBeforeTheDocumentEnds() {
+        String text = ("Paragraph of text. ".repeat(40) + "\n\n").repeat(30);
+        int segmentSize = text.length() / 3 + 1;
+
+        List<Message<String>> emitted = new ArrayList<>();
+        for (int segment = 0; segment < 3; segment++) {
+            String payload = text.substring(segment * segmentSize, Math.min(text.length(), (segment + 1) * segmentSize));
+            List<Message<String>> chunks = chunkSegments.apply(MessageBuilder.withPayload(payload)
+                    .setHeader("file_remoteFile", "docs/big.pdf")
+                    .setHeader("segment-index", segment)
+                    .setHeader("segment-last", segment == 2)
+                    .build());
+            if (segment == 0) {
+                assertThat(chunks).isNotEmpty();
+            }
+            emitted.addAll(chunks);
+        }
+
+        List<Message<String>> whole = chunkText.apply(MessageBuilder.withPayload(text).build());
+        assertThat(emitted).extracting(Message::getPayload)
+                .containsExactlyElementsOf(whole.stream().map(Message::getPayload).toList());
+        assertThat(emitted).extracting(chunk -> chunk.getHeaders().get("chunk-index"))
+                .containsExactlyElementsOf(whole.stream().map(chunk -> chunk.getHeaders().get("chunk-index")).toList());
+        assertThat(emitted.getLast().getHeaders())
+                .containsEntry("chunk-last", true)
+                .containsEntry("chunk-count", whole.size())
+                .doesNotContainKey("segment-index");
+        assertThat(emitted.getFirst().getHeaders()).doesNotContainKey("chunk-last");
+
+        assertThatThrownBy(() -> chunkSegments.apply(MessageBuilder.withPayload("late")
+                .setHeader("file_remoteFile", "docs/big.pdf")
+                .setHeader("segment-index", 3)
+                .build()))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("out of order");
+        assertThatThrownBy(() -> chunkSegments.apply(MessageBuilder.withPayload("segment of a document without an id")
+                .setHeader("segment-index", 0)
+                .setHeader("segment-last", false)
+                .build()))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("file_remoteFile");
+    }
+
+    @Test
+    void chunkSegmentsRequiresEverySegmentToReachTheSameConsumer() {
+        ConsumerProperties consumer = new ConsumerProperties();
+        consumer.setInstanceCount(1);
+        TextChunkerConfiguration.requireSegmentAffinity(consumer);
+
+        consumer.setConcurrency(4);
+        assertThatThrownBy(() -> TextChunkerConfiguration.requireSegmentAffinity(consumer))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("concurrency 1");
+
+        consumer.setConcurrency(1);
+        consumer.setInstanceCount(3);
+        assertThatThrownBy(() -> TextChunkerConfiguration.requireSegmentAffinity(consumer))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("partitioned");
+
+        consumer.setPartitioned(true);
+        TextChunkerConfiguration.requireSegmentAffinity(consumer);
+    }
+
+    @Test
+    void chunkSegmentsEmitsTheSameChunksForARedeliveredSegment() {
+        String text = ("Paragraph of text. ".repeat(40) + "\n\n").repeat(30);
+        int segmentSize = text.length() / 3 + 1;
+
+        List<Message<String>> emitted = new ArrayList<>();
+        for (int segment = 0; segment < 3; segment++) {
+            Message<String> message = MessageBuilder.withPayload(
+                            text.substring(segment * segmentSize, Math.min(text.length(), (segment + 1) * segmentSize)))
+                    .setHeader("file_remoteFile", "docs/retried.pdf")
+                    .setHeader("segment-index", segment)
+                    .setHeader("segment-last", segment == 2)
+                    .build();
+            List<Message<String>> chunks = chunkSegments.apply(message);
+            // The send of these chunks failed, so the binder delivers the segment again.
+            List<Message<String>> redelivered = chunkSegments.apply(message);
+
+            assertThat(redelivered).extracting(Message::getPayload)
+                    .containsExactlyElementsOf(chunks.stream().map(Message::getPayload).toList());
+            assertThat(redelivered).extracting(chunk -> chunk.getHeaders().get("chunk-index"))
+                    .containsExactlyElementsOf(chunks.stream().map(chunk -> chunk.getHeaders().get("chunk-index")).toList());
+            emitted.addAll(redelivered);
+        }
+
+        List<Message<String>> whole = chunkText.apply(MessageBuilder.withPayload(text).build());
+        assertThat(emitted).extracting(Message::getPayload)
+                .containsExactlyElementsOf(whole.stream().map(Message::getPayload).toList());
+        assertThat(emitted.getLast().getHeaders()).containsEntry("chunk-count", whole.size());
+
+        assertThatThrownBy(() -> chunkSegments.apply(MessageBuilder.withPayload(text.substring(0, segmentSize))
+                .setHeader("file_remoteFile", "docs/retried.pdf")
+                .setHeader("segment-index", 1)
+                .setHeader("segment-last", false)
+                .build()))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("out of order");
+    }
+
+    @Test
+    void tokenChunksStayWithinTokenBudget() {
+        Encoding encoding = Encodings.newLazyEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+        Random random = new Random(3);
+        String[] words = {"the", "embedding", "tokenizer", "Zürich", "naïve", "chunk", "2024", "don't",
+                "vector,", "store.", "👍", "(see", "§4)", "internationalization", "a"};
+        StringBuilder text = new StringBuilder();
+        for (int paragraph = 0; paragraph < 40; paragraph++) {
+            int length = 20 + random.nextInt(120);
+            for (int i = 0; i < length; i++) {
+                text.append(words[random.nextInt(words.length)]).append(random.nextInt(12) == 0 ? "  " : " ");
+            }
+            text.setLength(text.length() - 1);
+            text.append(".\n\n");
+        }
+
+        TokenChunker chunker = new TokenChunker(new TextChunkerProperties(128, 16, "tokens", "text-embedding-3-small",
+                null, chunkerProperties.fallbackSeparators(), null, null, null, null, null));
+        List<String> chunks = chunker.split(text.toString());
+
+        assertThat(chunker.encodingName()).isEqualTo("cl100k_base");
+        assertThat(chunker.countTokens(text.toString()))
+                .isGreaterThanOrEqualTo(encoding.countTokensOrdinary(text.toString()));
+        assertThat(chunks).hasSizeGreaterThan(20);
+        for (String chunk : chunks) {
+            assertThat(encoding.countTokensOrdinary(chunk)).isLessThanOrEqualTo(128);
+        }
+        long paragraphBreaks = chunks.stream().filter(chunk -> text.indexOf(chunk + "\n\n") >= 0).count();
+        assertThat(paragraphBreaks).isGreaterThanOrEqualTo(30);
+        assertThat(String.join(" ", chunks).split("\\s+")).containsAll(List.of(text.toString().trim().split("\\s+")));
+    }
+
+    /**
+     * The chunker as it was before the linear-time rewrite, kept as the reference for
+     * {@link #matchesLegacyChunkerOnRandomInputs()}. Returns {@code null} for inputs on which it
+     * fails to advance (it loops forever or indexes before the text on those).
+     */
+    private static List<String> legacySplit(String text, TextChunkerProperties properties) {
+        if (text == null || text.isEmpty()) {
+            return List.of();
+        }
+
+        int size = properties.size();
+        int overlap = properties.overlap();
+        String separator = properties.separator();
+        List<String> chunks = new ArrayList<>();
+
+        int start = 0;
+        while (start < text.length()) {
+            int end = Math.min(start + size, text.length());
+
+            if (end < text.length()) {
+                int separatorPos = text.lastIndexOf(separator, end);
+                if (separatorPos > start) {
+                    end = separatorPos + separator.length();
+                }
+            }
+
+            chunks.add(text.substring(start, end).trim());
+            if (end != text.length() && end - overlap <= start) {
+                return null;
+            }
+            start = end - overlap;
+
+            if (start >= text.length()) break;
+            if (end == text.length()) break;
+        }
+
+        return chunks.stream()
+                .filter(chunk -> !chunk.isEmpty())
+                .toList();
+    }
 }
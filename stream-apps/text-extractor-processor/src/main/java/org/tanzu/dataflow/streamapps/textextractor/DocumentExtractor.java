@@ -0,0 +1,201 @@
+package org.tanzu.dataflow.streamapps.textextractor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.tika.Tika;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.exception.WriteLimitReachedException;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.ToTextContentHandler;
+import org.apache.tika.sax.WriteOutContentHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * Parses a document with Tika's auto-detecting parser through a streaming content handler that
+ * writes the text straight into a {@link SegmentWriter}, instead of collecting it into one string
+ * the way {@code Tika.parseToString} does (which also stops silently at 100,000 characters).
+ * <p>
+ * At most {@code extractor.max-characters} characters are extracted per document. Payloads larger
+ * than {@code extractor.spill-threshold} bytes are written to a temp file first, so that the PDF
+ * parser reads them through file-backed random access instead of copying them into heap buffers.
+ * <p>
+ * Publishes {@code extractor.document.buffered} (summary, most characters of text held at once),
+ * {@code extractor.document.allocated} (summary, bytes allocated by the extracting thread, where
+ * the JVM supports measuring it) and {@code extractor.document.truncated} (counter).
+ */
+public class DocumentExtractor {
+
+    private final Tika tika;
+    private final TextExtractorProperties properties;
+    private final DistributionSummary buffered;
+    private final DistributionSummary allocated;
+    private final Counter truncated;
+
+    public DocumentExtractor(Tika tika, TextExtractorProperties properties, MeterRegistry meterRegistry) {
+        this.tika = tika;
+        this.properties = properties;
+        this.buffered = DistributionSummary.builder("extractor.document.buffered")
+                .baseUnit("characters")
+                .register(meterRegistry);
+        this.allocated = DistributionSummary.builder("extractor.document.allocated")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.truncated = meterRegistry.counter("extractor.document.truncated");
+    }
+
+    public String detect(byte[] payload) {
+        return tika.detect(payload);
+    }
+
+    /**
+     * Detects the type of a document that may be a memory-mapped claim-check blob, without copying
+     * it onto the heap.
+     */
+    public String detect(ByteBuffer payload) throws IOException {
+        if (isWholeArray(payload)) {
+            return tika.detect(payload.array());
+        }
+        try (InputStream input = new ByteBufferInputStream(payload.duplicate())) {
+            return tika.detect(input);
+        }
+    }
+
+    public boolean extract(byte[] payload, SegmentWriter out) throws IOException, TikaException, SAXException {
+        return extract(ByteBuffer.wrap(payload), out, ParseGuard.none());
+    }
+
+    /**
+     * Writes the text of {@code payload} to {@code out} and closes it, checking {@code guard}
+     * whenever the parser emits text.
+     *
+     * @return whether the text was cut at {@code extractor.max-characters}
+     * @throws ExtractionAbortedException if the guard stopped the parse
+     */
+    public boolean extract(ByteBuffer payload, SegmentWriter out, ParseGuard guard)
+            throws IOException, TikaException, SAXException {
+        long allocatedBefore = ParseGuard.allocatedBytes();
+        Path spilled = null;
+        try {
+            if (payload.remaining() > properties.spillThreshold()) {
+                spilled = Files.createTempFile(Path.of(properties.tempDirectory()), "extractor-", ".bin");
+                try (FileChannel channel = FileChannel.open(spilled, StandardOpenOption.WRITE)) {
+                    ByteBuffer remaining = payload.duplicate();
+                    while (remaining.hasRemaining()) {
+                        channel.write(remaining);
+                    }
+                }
+            }
+
+            boolean cut = false;
+            ParseContext context = new ParseContext();
+            context.set(Parser.class, tika.getParser());
+            try (TikaInputStream input = spilled != null ? TikaInputStream.get(spilled)
+                    : isWholeArray(payload) ? TikaInputStream.get(payload.array())
+                    : TikaInputStream.get(new ByteBufferInputStream(payload.duplicate()))) {
+                tika.getParser().parse(input, new BodyContentHandler(new WriteOutContentHandler(
+                        new ToTextContentHandler(new GuardedWriter(out, guard)), properties.maxCharacters(), true,
+                        context)), new Metadata(), context);
+            } catch (SAXException | TikaException e) {
+                if (e.getCause() instanceof ExtractionAbortedException abort) {
+                    throw abort;
+                }
+                if (!WriteLimitReachedException.isWriteLimitReached(e)) {
+                    throw e;
+                }
+                cut = true;
+                truncated.increment();
+            }
+            // Also stops a parse whose parser swallowed the abort
+            guard.check();
+            out.close();
+
+            buffered.record(out.peakBuffered());
+            if (allocatedBefore >= 0) {
+                allocated.record(ParseGuard.allocatedBytes() - allocatedBefore);
+            }
+            return cut;
+        } finally {
+            if (spilled != null) {
+                Files.deleteIfExists(spilled);
+            }
+        }
+    }
+
+    private static boolean isWholeArray(ByteBuffer buffer) {
+        return buffer.hasArray() && buffer.arrayOffset() + buffer.position() == 0
+                && buffer.remaining() == buffer.array().length;
+    }
+
+    private static final class GuardedWriter extends Writer {
+
+        private final Writer out;
+        private final ParseGuard guard;
+
+        GuardedWriter(Writer out, ParseGuard guard) {
+            this.out = out;
+            this.guard = guard;
+        }
+
+        @Override
+        public void write(char[] text, int offset, int length) throws IOException {
+            guard.check();
+            out.write(text, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package org.tanzu.dataflow.streamapps.textextractor;
+
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.tanzu.dataflow.streamapps.common.Texts;
+
+/**
+ * On-disk cache of extracted text keyed by the SHA-256 of the document bytes (and
+ * {@code extractor.max-characters} and {@code extractor.pdf.parser}, which shape the text), so that
+ * a redelivered, replayed or re-uploaded document is not parsed again.
+ * <p>
+ * Each entry is one file under {@code extractor.cache.directory}: a truncated flag, the length of
+ * the text, the detected MIME type, the UTF-8 text and the page offsets, if any. Entries are
+ * written to a temporary file while the text streams in and renamed once complete; a document
+ * that fails is never cached. Temporary files are removed at startup only once they are an hour
+ * old, so that those of other instances sharing the directory are not. The files are kept within
+ * {@code extractor.cache.max-bytes} by evicting the least recently used, with recency held in
+ * memory and in the files' modification times, from which it is rebuilt at startup.
+ * <p>
+ * Publishes {@code extractor.cache.hits}, {@code extractor.cache.misses} (counters) and
+ * {@code extractor.cache.size} (gauge, bytes).
+ */
+public class ExtractedTextCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ExtractedTextCache.class);
+
+    private static final String PARTIAL_SUFFIX = ".part";
+    /**
+     * Age from which a temporary file is taken as left behind by a crashed writer. Younger ones may
+     * belong to another instance sharing the directory and are left alone.
+     */
+    private static final Duration PARTIAL_MAX_AGE = Duration.ofHours(1);
+    /** Part of the key, so that entries of an older layout are never read. */
+    private static final int FORMAT_VERSION = 1;
+
+    private final TextExtractorProperties properties;
+    private final Path directory;
+    private final Map<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Counter hits;
+    private final Counter misses;
+    private long size;
+
+    public ExtractedTextCache(TextExtractorProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.directory = Path.of(properties.cache().directory());
+        this.hits = meterRegistry.counter("extractor.cache.hits");
+        this.misses = meterRegistry.counter("extractor.cache.misses");
+        Gauge.builder("extractor.cache.size", this, ExtractedTextCache::size).baseUnit("bytes").register(meterRegistry);
+        if (properties.cache().enabled()) {
+            if (directory.toAbsolutePath().startsWith(Path.of(System.getProperty("java.io.tmpdir")).toAbsolutePath())) {
+                log.warn("Extracted-text cache {} is in the temp directory, on the container disk and lost when the"
+                        + " instance restarts or is restaged; set extractor.cache.directory to a persistent volume"
+                        + " with room for extractor.cache.max-bytes={}", directory, properties.cache().maxBytes());
+            }
+            load();
+        }
+    }
+
+    /**
+     * An entry read back from the cache. The caller reads {@link #text()} and closes it.
+     */
+    public record Hit(String mimeType, boolean truncated, String pageOffsets, Reader text) implements AutoCloseable {
+
+        @Override
+        public void close() throws IOException {
+            text.close();
+        }
+    }
+
+    public boolean enabled() {
+        return properties.cache().enabled();
+    }
+
+    public String key(ByteBuffer payload) {
+        MessageDigest digest = Texts.sha256();
+        digest.update(payload.duplicate());
+        digest.update(ByteBuffer.allocate(2 * Integer.BYTES).putInt(0, properties.maxCharacters())
+                .putInt(Integer.BYTES, FORMAT_VERSION));
+        digest.update(properties.pdf().parser().getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @return the cached entry for {@code key}, or null
+     */
+    public Hit get(String key) {
+        synchronized (entries) {
+            if (entries.get(key) == null) {
+                misses.increment();
+                return null;
+            }
+        }
+        Path file = directory.resolve(key);
+        try {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                // Unbuffered, so that the channel is left right after the header
+                DataInputStream header = new DataInputStream(Channels.newInputStream(channel));
+                boolean truncated = header.readBoolean();
+                long textBytes = header.readLong();
+                String mimeType = header.readUTF();
+                long textStart = channel.position();
+                ByteBuffer pages = ByteBuffer.allocate((int) (channel.size() - textStart - textBytes));
+                channel.read(pages, textStart + textBytes);
+                String pageOffsets = pages.position() > 0 ? new String(pages.array(), 0, pages.position(), StandardCharsets.UTF_8) : null;
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+                hits.increment();
+                return new Hit(mimeType, truncated, pageOffsets, new InputStreamReader(
+                        new LimitedInputStream(Channels.newInputStream(channel.position(textStart)), textBytes),
+                        StandardCharsets.UTF_8));
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            log.warn("Dropping unreadable cache entry {}: {}", key, e.getMessage());
+            remove(key);
+            misses.increment();
+            return null;
+        }
+    }
+
+    /**
+     * Starts an entry for a document being extracted; the text is appended as it is produced.
+     */
+    public Entry begin(String key, String mimeType) {
+        try {
+            Files.createDirectories(directory);
+            Path partial = Files.createTempFile(directory, key, PARTIAL_SUFFIX);
+            DataOutputStream header = new DataOutputStream(Files.newOutputStream(partial));
+            header.writeBoolean(false);
+            header.writeLong(0);
+            header.writeUTF(mimeType);
+            return new Entry(key, partial, header, header.size());
+        } catch (IOException e) {
+            log.warn("Cannot cache extracted text in {}: {}", directory, e.getMessage());
+            return new Entry(key, null, OutputStream.nullOutputStream(), 0);
+        }
+    }
+
+    /**
+     * Text of one document on its way into the cache; appending never fails the extraction.
+     */
+    public final class Entry {
+
+        private final String key;
+        private final Path partial;
+        private final Writer writer;
+        private final int headerBytes;
+        private boolean failed;
+
+        private Entry(String key, Path partial, OutputStream output, int headerBytes) {
+            this.key = key;
+            this.partial = partial;
+            this.headerBytes = headerBytes;
+            this.writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            this.failed = partial == null;
+        }
+
+        public void append(String text) {
+            if (failed) {
+                return;
+            }
+            try {
+                writer.write(text);
+            } catch (IOException e) {
+                log.warn("Cannot cache extracted text of {}: {}", key, e.getMessage());
+                discard();
+            }
+        }
+
+        /**
+         * Makes the entry visible to {@link #get}.
+         *
+         * @param pageOffsets the {@code page-offsets} of the text, or null
+         */
+        public void commit(boolean truncated, String pageOffsets) {
+            if (failed) {
+                return;
+            }
+            try {
+                writer.close();
+                try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+                    long end = channel.size();
+                    channel.write(ByteBuffer.allocate(1 + Long.BYTES)
+                            .put(0, (byte) (truncated ? 1 : 0))
+                            .putLong(1, end - headerBytes), 0);
+                    if (pageOffsets != null) {
+                        channel.write(ByteBuffer.wrap(pageOffsets.getBytes(StandardCharsets.UTF_8)), end);
+                    }
+                }
+                long bytes = Files.size(partial);
+                if (bytes > properties.cache().maxBytes()) {
+                    discard();
+                    return;
+                }
+                Files.move(partial, directory.resolve(key), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                add(key, bytes);
+            } catch (IOException e) {
+                log.warn("Cannot cache extracted text of {}: {}", key, e.getMessage());
+                discard();
+            }
+        }
+
+        /**
+         * Drops the entry, for a document that failed or was aborted.
+         */
+        public void discard() {
+            failed = true;
+            try {
+                writer.close();
+            } catch (IOException e) {
+                // deleted below
+            }
+            try {
+                if (partial != null) {
+                    Files.deleteIfExists(partial);
+                }
+            } catch (IOException e) {
+                log.warn("Cannot delete {}: {}", partial, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads at most {@code remaining} bytes of the wrapped stream.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long remaining) {
+            super(in);
+            this.remaining = remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(bytes, offset, (int) Math.min(length, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+    }
+
+    private long size() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    private void add(String key, long bytes) {
+        List<String> evicted = new ArrayList<>();
+        synchronized (entries) {
+            Long previous = entries.put(key, bytes);
+            size += bytes - (previous != null ? previous : 0);
+            Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+            while (size > properties.cache().maxBytes() && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                if (entry.getKey().equals(key)) {
+                    continue;
+                }
+                size -= entry.getValue();
+                evicted.add(entry.getKey());
+                eldest.remove();
+            }
+        }
+        for (String victim : evicted) {
+            delete(victim);
+        }
+    }
+
+    private void remove(String key) {
+        synchronized (entries) {
+            Long bytes = entries.remove(key);
+            if (bytes != null) {
+                size -= bytes;
+            }
+        }
+        delete(key);
+    }
+
+    private void delete(String key) {
+        try {
+            Files.deleteIfExists(directory.resolve(key));
+        } catch (IOException e) {
+            log.warn("Cannot delete cache entry {}: {}", key, e.getMessage());
+        }
+    }
+
+    private void load() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        record Found(String key, long bytes, FileTime used) {
+        }
+        List<Found> found = new ArrayList<>();
+        FileTime abandoned = FileTime.from(Instant.now().minus(PARTIAL_MAX_AGE));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                try {
+                    if (file.getFileName().toString().endsWith(PARTIAL_SUFFIX)) {
+                        if (Files.getLastModifiedTime(file).compareTo(abandoned) < 0) {
+                            Files.deleteIfExists(file);
+                        }
+                    } else {
+                        found.add(new Found(file.getFileName().toString(), Files.size(file),
+                                Files.getLastModifiedTime(file)));
+                    }
+                } catch (NoSuchFileException e) {
+                    // removed concurrently
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Cannot read extracted-text cache {}: {}", directory, e.getMessage());
+            return;
+        }
+        found.sort(Comparator.comparing(Found::used));
+        for (Found entry : found) {
+            add(entry.key(), entry.bytes());
+        }
+        log.info("Loaded {} cached extracted texts ({} bytes) from {}", entries.size(), size(), directory);
+    }
+}
@@ -0,0 +1,21 @@
+package org.tanzu.dataflow.streamapps.textextractor;
+
+/**
+ * Thrown when a document's extraction is stopped by its {@link ParseGuard}, because it ran past
+ * {@code extractor.worker.timeout-ms} or allocated more than
+ * {@code extractor.worker.max-parse-bytes}.
+ */
+public class ExtractionAbortedException extends RuntimeException {
+
+    private final String reason;
+
+    public ExtractionAbortedException(String reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    /** {@code timeout} or {@code memory}. */
+    public String reason() {
+        return reason;
+    }
+}
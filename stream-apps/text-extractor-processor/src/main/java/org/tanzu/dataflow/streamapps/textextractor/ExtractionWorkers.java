@@ -0,0 +1,162 @@
+package org.tanzu.dataflow.streamapps.textextractor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of extraction threads, so that a pathological document cannot hold the binder
+ * thread. The binder thread hands each document to a worker and waits at most
+ * {@code extractor.worker.timeout-ms}, counted from when a worker starts the parse, for it; on
+ * timeout the parse is aborted through its {@link ParseGuard} and the worker interrupted, and an
+ * {@link ExtractionAbortedException} is thrown for the caller to route the document elsewhere.
+ * At most {@code extractor.worker.queue-capacity} documents wait for a worker; beyond that
+ * submissions are rejected and the message fails.
+ * <p>
+ * A parser that ignores both the guard and the interrupt keeps its worker busy after the timeout.
+ * Each such stuck worker is replaced by an extra thread, up to {@code extractor.worker.threads}
+ * extra threads, and given back when its parse finally returns; {@link #isExhausted()} reports when
+ * that budget is used up, so the health indicator can take the instance out of service.
+ * <p>
+ * Publishes {@code extractor.worker.active}, {@code extractor.worker.queued},
+ * {@code extractor.worker.utilization} and {@code extractor.worker.stuck} (gauges) and
+ * {@code extractor.document.aborted} (counter, tagged with the {@code reason}: {@code timeout} or
+ * {@code memory}).
+ */
+public class ExtractionWorkers implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ExtractionWorkers.class);
+
+    /**
+     * One document's extraction, run on a worker thread.
+     */
+    @FunctionalInterface
+    public interface Task<T> {
+        T run(ParseGuard guard) throws Exception;
+    }
+
+    private static final int RUNNING = 0;
+    private static final int TIMED_OUT = 1;
+    private static final int DONE = 2;
+
+    private final TextExtractorProperties.Worker properties;
+    private final ThreadPoolExecutor executor;
+    private final Counter timeouts;
+    private final Counter memoryExceeded;
+    private int stuck;
+
+    public ExtractionWorkers(TextExtractorProperties.Worker properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.executor = new ThreadPoolExecutor(properties.threads(), properties.threads(), 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(properties.queueCapacity()),
+                Thread.ofPlatform().name("extractor-worker-", 0).daemon().factory());
+        Gauge.builder("extractor.worker.active", executor, ThreadPoolExecutor::getActiveCount).register(meterRegistry);
+        Gauge.builder("extractor.worker.queued", executor, e -> e.getQueue().size()).register(meterRegistry);
+        Gauge.builder("extractor.worker.utilization", executor,
+                e -> (double) e.getActiveCount() / e.getMaximumPoolSize()).register(meterRegistry);
+        Gauge.builder("extractor.worker.stuck", this, ExtractionWorkers::stuck).register(meterRegistry);
+        this.timeouts = Counter.builder("extractor.document.aborted").tag("reason", "timeout").register(meterRegistry);
+        this.memoryExceeded = Counter.builder("extractor.document.aborted").tag("reason", "memory").register(meterRegistry);
+    }
+
+    /**
+     * Runs {@code task} on a worker and waits for its result.
+     *
+     * @throws ExtractionAbortedException if the document timed out or exceeded its parse memory
+     */
+    public <T> T run(Task<T> task) throws Exception {
+        ParseGuard guard = new ParseGuard(properties.maxParseBytes());
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicInteger state = new AtomicInteger(RUNNING);
+        Future<T> future = executor.submit(() -> {
+            guard.start();
+            started.countDown();
+            try {
+                return task.run(guard);
+            } finally {
+                if (state.getAndSet(DONE) == TIMED_OUT) {
+                    resize(-1);
+                    log.info("Stuck extraction returned; active workers: {} of {}", executor.getActiveCount(),
+                            executor.getMaximumPoolSize());
+                }
+            }
+        });
+        try {
+            // Time spent queued behind other documents does not count against this one.
+            while (!started.await(1, TimeUnit.SECONDS)) {
+                if (executor.isShutdown()) {
+                    throw new RejectedExecutionException("Extraction workers are shut down");
+                }
+            }
+            return future.get(properties.timeoutMs(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            ExtractionAbortedException abort = new ExtractionAbortedException("timeout",
+                    "Extraction exceeded extractor.worker.timeout-ms=" + properties.timeoutMs());
+            guard.abort(abort);
+            if (state.compareAndSet(RUNNING, TIMED_OUT)) {
+                // Until the parse notices the abort or the interrupt, its worker is lost to the pool.
+                resize(1);
+            }
+            future.cancel(true);
+            timeouts.increment();
+            log.warn("{}; active workers: {} of {}", abort.getMessage(), executor.getActiveCount(),
+                    executor.getMaximumPoolSize());
+            throw abort;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ExtractionAbortedException abort && abort.reason().equals("memory")) {
+                memoryExceeded.increment();
+                log.warn(abort.getMessage());
+            }
+            if (e.getCause() instanceof Exception cause) throw cause;
+            throw e;
+        }
+    }
+
+    /**
+     * Workers whose parse timed out but has not returned yet.
+     */
+    public synchronized int stuck() {
+        return stuck;
+    }
+
+    /**
+     * Whether as many workers are stuck as the pool may replace; extraction capacity then shrinks
+     * with every further stuck parse.
+     */
+    public synchronized boolean isExhausted() {
+        return stuck >= properties.threads();
+    }
+
+    private synchronized void resize(int stuckDelta) {
+        stuck += stuckDelta;
+        int size = properties.threads() + Math.min(stuck, properties.threads());
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else if (size < executor.getMaximumPoolSize()) {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,24 @@
+package org.tanzu.dataflow.streamapps.textextractor;
+
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+
+/**
+ * Reports the extractor DOWN once parses that ignore their timeout have used up the
+ * {@link ExtractionWorkers} replacement threads, so the platform restarts the instance instead of
+ * leaving it to extract with ever fewer workers.
+ */
+public class ExtractionWorkersHealthIndicator implements HealthIndicator {
+
+    private final ExtractionWorkers workers;
+
+    public ExtractionWorkersHealthIndicator(ExtractionWorkers workers) {
+        this.workers = workers;
+    }
+
+    @Override
+    public Health health() {
+        Health.Builder health = workers.isExhausted() ? Health.down() : Health.up();
+        return health.withDetail("stuck", workers.stuck()).build();
+    }
+}
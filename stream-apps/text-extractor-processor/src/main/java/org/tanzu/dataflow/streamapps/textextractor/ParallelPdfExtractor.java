@@ -0,0 +1,260 @@
+package org.tanzu.dataflow.streamapps.textextractor;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.io.RandomAccessReadBuffer;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extracts the text of a PDF with PDFBox's stripper, for {@code extractor.pdf.parser=pdfbox}. The
+ * pages are stripped in ranges of {@code extractor.pdf.pages-per-range} pages and written to the
+ * output in page order, so that only a few ranges of text are held at once. Besides the text, the
+ * character offset at which each page starts is returned.
+ * <p>
+ * Documents of at least {@code extractor.pdf.parallel-min-pages} pages are stripped on a fork/join
+ * pool, when it has more than one thread. A PDFBox document is not thread-safe, so a range task
+ * borrows a parsed {@link PDDocument} that no other task is using, and parses another one over the
+ * shared bytes only when all are busy: the document is parsed at most once per concurrently running
+ * task rather than once per range. At most parallelism + 1 ranges are in flight, none once
+ * {@code extractor.max-characters} is reached. Other documents are stripped
+ * range after range on the calling thread. Both ways give the same text, so the output does not
+ * depend on the host's CPU count. Publishes {@code extractor.pdf.parallel} (timer).
+ */
+public class ParallelPdfExtractor {
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelPdfExtractor.class);
+
+    private final TextExtractorProperties properties;
+    private final ForkJoinPool pool;
+    private final Timer timer;
+
+    public ParallelPdfExtractor(TextExtractorProperties properties, ForkJoinPool pool, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.pool = pool;
+        this.timer = Timer.builder("extractor.pdf.parallel").register(meterRegistry);
+    }
+
+    /**
+     * Text of a PDF, cut at {@code extractor.max-characters}.
+     *
+     * @param pageOffsets character offset in the text at which each page starts, for the pages
+     *                    before the cut
+     */
+    public record Pages(boolean truncated, int[] pageOffsets) {
+    }
+
+    /**
+     * Writes the text of the PDF in {@code payload} to {@code out} and closes it.
+     *
+     * @return the truncation and page offsets, or null, with nothing written, if PDFBox cannot open
+     *         the document
+     * @throws ExtractionAbortedException if the guard stopped the parse
+     */
+    public Pages extract(ByteBuffer payload, SegmentWriter out, ParseGuard guard) throws Exception {
+        PDDocument document;
+        try {
+            document = open(payload);
+        } catch (IOException e) {
+            log.debug("PDFBox cannot open the document, leaving it to Tika: {}", e.getMessage());
+            return null;
+        }
+
+        long start = System.nanoTime();
+        Deque<Future<PageRange>> inFlight = new ArrayDeque<>();
+        try (Documents documents = new Documents(payload, document)) {
+            int pageCount = document.getNumberOfPages();
+            int limit = properties.maxCharacters();
+            boolean parallel = pool.getParallelism() > 1 && pageCount >= properties.pdf().parallelMinPages();
+            int window = parallel ? pool.getParallelism() + 1 : 1;
+            int pagesPerRange = properties.pdf().pagesPerRange();
+            int[] pageOffsets = new int[pageCount];
+            int pages = 0;
+            int written = 0;
+            int nextPage = 1;
+            boolean truncated = false;
+            while (true) {
+                // Once the text is full, one more range tells whether anything was cut.
+                while (inFlight.size() < (written < limit ? window : 1) && nextPage <= pageCount) {
+                    int from = nextPage;
+                    int to = (int) Math.min(pageCount, (long) from + pagesPerRange - 1);
+                    nextPage = to + 1;
+                    inFlight.add(parallel ? pool.submit(() -> strip(documents, from, to, guard, true))
+                            : CompletableFuture.completedFuture(strip(documents, from, to, guard, false)));
+                }
+                Future<PageRange> task = inFlight.poll();
+                if (task == null) {
+                    break;
+                }
+                PageRange range = task.get();
+                guard.check();
+                String text = range.text();
+                for (int i = 0; i < range.pageStarts().length; i++) {
+                    if (written + range.pageStarts()[i] > limit) {
+                        break;
+                    }
+                    pageOffsets[pages++] = written + range.pageStarts()[i];
+                }
+                if (written + text.length() > limit) {
+                    int end = limit - written;
+                    if (end > 0 && Character.isHighSurrogate(text.charAt(end - 1))) {
+                        end--;
+                    }
+                    text = text.substring(0, end);
+                    truncated = true;
+                }
+                out.write(text);
+                written += text.length();
+                if (truncated) {
+                    break;
+                }
+            }
+            out.close();
+            log.debug("Extracted {} PDF pages {}", pageCount, parallel ? "in parallel" : "sequentially");
+            return new Pages(truncated, Arrays.copyOf(pageOffsets, pages));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) throw cause;
+            throw e;
+        } finally {
+            inFlight.forEach(range -> range.cancel(true));
+            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Text of pages {@code from} to {@code to} (1-based, inclusive) and the offset in it at which
+     * each of them starts.
+     */
+    private record PageRange(String text, int[] pageStarts) {
+    }
+
+    /**
+     * @param charge whether to charge the guard with this thread's allocation, which it does not
+     *               measure itself unless this is the parsing thread
+     */
+    private static PageRange strip(Documents documents, int from, int to, ParseGuard guard, boolean charge)
+            throws IOException {
+        PDDocument document = documents.borrow();
+        try {
+            return strip(document, from, to, guard, charge);
+        } finally {
+            documents.release(document);
+        }
+    }
+
+    private static PageRange strip(PDDocument document, int from, int to, ParseGuard guard, boolean charge)
+            throws IOException {
+        StringWriter text = new StringWriter();
+        RangeStripper stripper = new RangeStripper(text, to - from + 1, guard, charge);
+        stripper.setStartPage(from);
+        stripper.setEndPage(to);
+        stripper.writeText(document, text);
+        stripper.chargeAllocation();
+        return new PageRange(text.toString(), stripper.pageStarts);
+    }
+
+    private static PDDocument open(ByteBuffer payload) throws IOException {
+        return Loader.loadPDF(new RandomAccessReadBuffer(payload.duplicate()));
+    }
+
+    /**
+     * Parsed copies of one PDF that are not in use by a range task. A document released after
+     * {@link #close()} (by a task still running when the extraction ended) is closed instead.
+     */
+    private static final class Documents implements AutoCloseable {
+
+        private final ByteBuffer payload;
+        private final Deque<PDDocument> idle = new ArrayDeque<>();
+        private boolean closed;
+
+        Documents(ByteBuffer payload, PDDocument document) {
+            this.payload = payload;
+            this.idle.push(document);
+        }
+
+        PDDocument borrow() throws IOException {
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("PDF extraction has ended");
+                }
+                if (!idle.isEmpty()) {
+                    return idle.pop();
+                }
+            }
+            return open(payload);
+        }
+
+        void release(PDDocument document) throws IOException {
+            synchronized (this) {
+                if (!closed) {
+                    idle.push(document);
+                    return;
+                }
+            }
+            document.close();
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                closed = true;
+            }
+            for (PDDocument document : idle) {
+                document.close();
+            }
+        }
+    }
+
+    /**
+     * Records where each page starts in the output and checks the guard between pages, charging
+     * it with the allocation of the range's thread if asked to.
+     */
+    private static final class RangeStripper extends PDFTextStripper {
+
+        private final StringWriter text;
+        private final int[] pageStarts;
+        private final ParseGuard guard;
+        private long allocated;
+        private int page;
+
+        RangeStripper(StringWriter text, int pages, ParseGuard guard, boolean charge) {
+            this.text = text;
+            this.pageStarts = new int[pages];
+            this.guard = guard;
+            this.allocated = charge ? ParseGuard.allocatedBytes() : -1;
+            setPageEnd("\n");
+        }
+
+        @Override
+        protected void startPage(PDPage pdPage) throws IOException {
+            chargeAllocation();
+            guard.check();
+            pageStarts[page++] = text.getBuffer().length();
+            super.startPage(pdPage);
+        }
+
+        void chargeAllocation() {
+            if (allocated >= 0) {
+                long now = ParseGuard.allocatedBytes();
+                guard.charge(now - allocated);
+                allocated = now;
+            }
+        }
+    }
+}
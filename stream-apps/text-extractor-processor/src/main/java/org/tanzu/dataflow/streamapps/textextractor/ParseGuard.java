@@ -0,0 +1,79 @@
+package org.tanzu.dataflow.streamapps.textextractor;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cancellation point for one document's parse, checked by {@link DocumentExtractor} whenever the
+ * parser emits text. A parse is stopped once it has been {@link #abort aborted} (on timeout) or
+ * once it has allocated more than {@code maxParseBytes}: on the worker thread, plus whatever helper
+ * threads {@link #charge} to it. Parsers that loop without emitting text are only reached by the
+ * worker thread's interrupt.
+ */
+public final class ParseGuard {
+
+    /** Checks between allocation readings, which are much slower than reading the abort flag. */
+    private static final int ALLOCATION_CHECK_INTERVAL = 64;
+
+    private final long maxParseBytes;
+    private final AtomicLong charged = new AtomicLong();
+    private volatile ExtractionAbortedException abort;
+    private volatile long ownAllocated;
+    private Thread owner;
+    private long allocatedAtStart = -1;
+    private int checks;
+
+    public ParseGuard(long maxParseBytes) {
+        this.maxParseBytes = maxParseBytes;
+    }
+
+    /** A guard that never stops the parse. */
+    public static ParseGuard none() {
+        return new ParseGuard(Long.MAX_VALUE);
+    }
+
+    /** Starts measuring allocation; called on the parsing thread. */
+    void start() {
+        owner = Thread.currentThread();
+        allocatedAtStart = allocatedBytes();
+    }
+
+    /** Counts {@code bytes} allocated for this parse by another thread. */
+    void charge(long bytes) {
+        charged.addAndGet(bytes);
+    }
+
+    void abort(ExtractionAbortedException reason) {
+        abort = reason;
+    }
+
+    /**
+     * @throws ExtractionAbortedException if the parse has to stop
+     */
+    void check() {
+        ExtractionAbortedException reason = abort;
+        if (reason != null) {
+            throw reason;
+        }
+        if (maxParseBytes == Long.MAX_VALUE) {
+            return;
+        }
+        if (Thread.currentThread() == owner && allocatedAtStart >= 0 && ++checks % ALLOCATION_CHECK_INTERVAL == 0) {
+            ownAllocated = allocatedBytes() - allocatedAtStart;
+        }
+        if (ownAllocated + charged.get() > maxParseBytes) {
+            abort = new ExtractionAbortedException("memory",
+                    "Parse allocated more than extractor.worker.max-parse-bytes=" + maxParseBytes);
+            throw abort;
+        }
+    }
+
+    /** Bytes allocated by the current thread, or -1 where the JVM cannot measure it. */
+    static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+                && threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+            return threads.getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,76 @@
+package org.tanzu.dataflow.streamapps.textextractor;
+
+import java.io.Writer;
+import java.util.function.Consumer;
+
+/**
+ * Writer that hands the text written to it to a sink in segments of {@code segmentSize}
+ * characters as soon as each one fills, and the remainder on {@link #close()}, so at most one
+ * segment is buffered. A surrogate pair is never split between two segments.
+ */
+public class SegmentWriter extends Writer {
+
+    private final int segmentSize;
+    private final Consumer<String> sink;
+    private final StringBuilder buffer;
+    private long characters;
+    private int peakBuffered;
+    private boolean closed;
+
+    public SegmentWriter(int segmentSize, Consumer<String> sink) {
+        this.segmentSize = Math.max(2, segmentSize);
+        this.sink = sink;
+        this.buffer = new StringBuilder(Math.min(this.segmentSize, 8192));
+    }
+
+    @Override
+    public void write(char[] text, int offset, int length) {
+        characters += length;
+        while (length > 0) {
+            int n = Math.min(length, segmentSize - buffer.length());
+            buffer.append(text, offset, n);
+            offset += n;
+            length -= n;
+            if (buffer.length() == segmentSize) {
+                emit();
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Hands the remaining text to the sink, if any.
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            if (!buffer.isEmpty()) {
+                emit();
+            }
+        }
+    }
+
+    /** Characters written so far. */
+    public long characters() {
+        return characters;
+    }
+
+    /** Most characters held at once. */
+    public int peakBuffered() {
+        return Math.max(peakBuffered, buffer.length());
+    }
+
+    private void emit() {
+        peakBuffered = Math.max(peakBuffered, buffer.length());
+        int end = buffer.length();
+        if (!closed && Character.isHighSurrogate(buffer.charAt(end - 1))) {
+            end--;
+        }
+        sink.accept(buffer.substring(0, end));
+        buffer.delete(0, end);
+    }
+}
@@ -1,22 +1,60 @@
 package org.tanzu.dataflow.streamapps.textextractor;
 
-import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import org.apache.tika.Tika;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.cloud.stream.function.StreamBridge;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.support.MessageBuilder;
 
+import org.tanzu.dataflow.streamapps.common.ClaimCheck;
+
 /**
  * Spring Cloud Stream function that extracts text from binary documents.
  * Accepts a byte[] payload (PDF, DOCX, or plain text) and emits the extracted text.
  * Uses Apache Tika for content detection and text extraction.
+ * <p>
+ * {@code extractSegments} is the bounded-memory alternative for large documents: the text is
+ * published to the {@value #SEGMENTS_BINDING} binding in segments of
+ * {@code extractor.segments.size} characters while the document is still being parsed, marked with
+ * the {@code segment-index} and {@code segment-last} headers that the text-chunker's
+ * {@code chunkSegments} function consumes. A failed document is redelivered from segment 0, which
+ * restarts it downstream.
+ * <p>
+ * Both functions take part in the {@link ClaimCheck} transport: a claim-checked document is parsed
+ * from the memory-mapped blob, and text of {@code claim-check.threshold} bytes or more is sent by
+ * reference.
+ * <p>
+ * Parsing runs on the bounded {@link ExtractionWorkers} pool rather than on the binder thread. A
+ * document that runs past {@code extractor.worker.timeout-ms} is aborted and, with
+ * {@code extractor.worker.on-timeout=slow-lane}, sent unchanged to the {@value #SLOW_LANE_BINDING}
+ * binding (for an extractor deployed with a longer timeout); otherwise it fails with an
+ * {@link ExtractionAbortedException}, which is not retried, so the binder dead-letters it. A
+ * document exceeding {@code extractor.worker.max-parse-bytes} always fails. Workers held by parses
+ * that ignore the timeout are replaced, and the {@link ExtractionWorkersHealthIndicator} reports
+ * DOWN once they are not.
+ * <p>
+ * With {@code extractor.cache.enabled=true}, a document whose bytes were extracted before is served
+ * from the {@link ExtractedTextCache}, with its original {@code original-mime-type}, without being
+ * detected or parsed again.
+ * <p>
+ * With {@code extractor.pdf.parser=pdfbox}, PDFs are extracted by the {@link ParallelPdfExtractor}
+ * instead of Tika. With {@code extractor.pdf.page-offsets=true}, {@code extractText} then adds a
+ * {@value #PAGE_OFFSETS_HEADER} header listing the character offset at which each page starts in
+ * the text (comma-separated, first page first).
  */
 @Configuration
 @EnableConfigurationProperties(TextExtractorProperties.class)
@@ -24,32 +62,79 @@ public class TextExtractorConfiguration {
 
     private static final Logger log = LoggerFactory.getLogger(TextExtractorConfiguration.class);
 
+    static final String SEGMENTS_BINDING = "extractSegments-out-0";
+    static final String SLOW_LANE_BINDING = "slowLane-out-0";
+    static final String SEGMENT_INDEX_HEADER = "segment-index";
+    static final String SEGMENT_LAST_HEADER = "segment-last";
+    static final String TRUNCATED_HEADER = "text-truncated";
+    static final String PAGE_OFFSETS_HEADER = "page-offsets";
+
     @Bean
     public Tika tika() {
         return new Tika();
     }
 
     @Bean
-    public Function<Message<byte[]>, Message<String>> extractText(Tika tika, TextExtractorProperties properties) {
+    public DocumentExtractor documentExtractor(Tika tika, TextExtractorProperties properties,
+                                               MeterRegistry meterRegistry) {
+        return new DocumentExtractor(tika, properties, meterRegistry);
+    }
+
+    @Bean
+    public ExtractionWorkers extractionWorkers(TextExtractorProperties properties, MeterRegistry meterRegistry) {
+        return new ExtractionWorkers(properties.worker(), meterRegistry);
+    }
+
+    @Bean
+    public ExtractionWorkersHealthIndicator extractionWorkersHealthIndicator(ExtractionWorkers workers) {
+        return new ExtractionWorkersHealthIndicator(workers);
+    }
+
+    @Bean
+    public ParallelPdfExtractor parallelPdfExtractor(TextExtractorProperties properties, MeterRegistry meterRegistry) {
+        return new ParallelPdfExtractor(properties, ForkJoinPool.commonPool(), meterRegistry);
+    }
+
+    @Bean
+    public ExtractedTextCache extractedTextCache(TextExtractorProperties properties, MeterRegistry meterRegistry) {
+        return new ExtractedTextCache(properties, meterRegistry);
+    }
+
+    @Bean
+    public Function<Message<byte[]>, Message<String>> extractText(DocumentExtractor extractor,
+                                                                  TextExtractorProperties properties,
+                                                                  ClaimCheck claimCheck,
+                                                                  ExtractionWorkers workers,
+                                                                  ExtractedTextCache cache,
+                                                                  ParallelPdfExtractor pdfExtractor,
+                                                                  StreamBridge streamBridge) {
         return message -> {
-            byte[] payload = message.getPayload();
+            ByteBuffer payload = claimCheck.payload(message);
             try {
-                String mimeType = tika.detect(payload);
-                log.debug("Detected MIME type: {}", mimeType);
-
-                if (!isSupportedFormat(mimeType, properties)) {
-                    log.warn("Unsupported format: {}. Supported: {}", mimeType, properties.formats());
+                AtomicReference<String> text = new AtomicReference<>("");
+                Extraction extraction = extract(extractor, pdfExtractor, properties, workers, cache, payload,
+                        Integer.MAX_VALUE, mimeType -> text::set);
+                if (extraction == null) {
                     return null;
                 }
+                log.debug("Extracted {} characters of text", text.get().length());
 
-                String text = tika.parseToString(new ByteArrayInputStream(payload));
-                log.debug("Extracted {} characters of text", text.length());
-
-                return MessageBuilder.withPayload(text)
+                MessageBuilder<String> builder = MessageBuilder.withPayload(text.get())
                         .copyHeaders(message.getHeaders())
+                        .removeHeaders(ClaimCheck.REFERENCE_HEADER, ClaimCheck.LENGTH_HEADER)
                         .setHeader("content-type", "text/plain")
-                        .setHeader("original-mime-type", mimeType)
-                        .build();
+                        .setHeader("original-mime-type", extraction.mimeType());
+                if (extraction.truncated()) {
+                    log.warn("Text truncated at extractor.max-characters={}", properties.maxCharacters());
+                    builder.setHeader(TRUNCATED_HEADER, true);
+                }
+                if (properties.pdf().pageOffsets() && extraction.pageOffsets() != null) {
+                    builder.setHeader(PAGE_OFFSETS_HEADER, extraction.pageOffsets());
+                }
+                return claimCheck.checkInText(builder.build());
+            } catch (ExtractionAbortedException e) {
+                divert(message, e, properties, streamBridge);
+                return null;
             } catch (Exception e) {
                 log.error("Text extraction failed: {}", e.getMessage(), e);
                 throw new RuntimeException("Text extraction failed: " + e.getMessage(), e);
@@ -57,6 +142,184 @@ public class TextExtractorConfiguration {
         };
     }
 
+    @Bean
+    public Consumer<Message<byte[]>> extractSegments(DocumentExtractor extractor, TextExtractorProperties properties,
+                                                     ClaimCheck claimCheck, ExtractionWorkers workers,
+                                                     ExtractedTextCache cache, ParallelPdfExtractor pdfExtractor,
+                                                     StreamBridge streamBridge) {
+        return message -> {
+            try {
+                extractSegments(extractor, pdfExtractor, properties, claimCheck, workers, cache, message,
+                        segment -> streamBridge.send(SEGMENTS_BINDING, claimCheck.checkInText(segment)));
+            } catch (ExtractionAbortedException e) {
+                divert(message, e, properties, streamBridge);
+            }
+        };
+    }
+
+    void extractSegments(DocumentExtractor extractor, ParallelPdfExtractor pdfExtractor,
+                         TextExtractorProperties properties, ClaimCheck claimCheck, ExtractionWorkers workers,
+                         ExtractedTextCache cache, Message<byte[]> message, Consumer<Message<String>> output) {
+        ByteBuffer payload = claimCheck.payload(message);
+        try {
+            AtomicReference<SegmentPublisher> publisher = new AtomicReference<>();
+            Extraction extraction = extract(extractor, pdfExtractor, properties, workers, cache, payload,
+                    properties.segments().size(), mimeType -> {
+                        publisher.set(new SegmentPublisher(message, mimeType, output));
+                        return publisher.get();
+                    });
+            if (extraction == null) {
+                return;
+            }
+            if (extraction.truncated()) {
+                log.warn("Text truncated at extractor.max-characters={}", properties.maxCharacters());
+            }
+            int segments = publisher.get().finish(extraction.truncated());
+            log.debug("Extracted {} document in {} segments", extraction.mimeType(), segments);
+        } catch (ExtractionAbortedException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error("Text extraction failed: {}", e.getMessage(), e);
+            throw new RuntimeException("Text extraction failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param pageOffsets comma-separated start offsets of the pages, where known
+     */
+    private record Extraction(String mimeType, boolean truncated, String pageOffsets) {
+    }
+
+    /**
+     * Writes the text of {@code payload} in segments to the sink made for its MIME type, from the
+     * {@link ExtractedTextCache} when it holds the document and otherwise by parsing it on a worker,
+     * with PDFBox for PDFs if so configured (and caching the text).
+     *
+     * @return the MIME type and truncation of the text, or null if the format is not supported
+     */
+    private Extraction extract(DocumentExtractor extractor, ParallelPdfExtractor pdfExtractor,
+                               TextExtractorProperties properties, ExtractionWorkers workers, ExtractedTextCache cache,
+                               ByteBuffer payload, int segmentSize, Function<String, Consumer<String>> sinkFor)
+            throws Exception {
+        String key = cache.enabled() ? cache.key(payload) : null;
+        ExtractedTextCache.Hit hit = key != null ? cache.get(key) : null;
+        if (hit != null) {
+            try (hit) {
+                if (!isSupportedFormat(hit.mimeType(), properties)) {
+                    log.warn("Unsupported format: {}. Supported: {}", hit.mimeType(), properties.formats());
+                    return null;
+                }
+                try (SegmentWriter out = new SegmentWriter(segmentSize, sinkFor.apply(hit.mimeType()))) {
+                    hit.text().transferTo(out);
+                }
+            }
+            log.debug("Served {} text from the cache", hit.mimeType());
+            return new Extraction(hit.mimeType(), hit.truncated(), hit.pageOffsets());
+        }
+
+        String mimeType = extractor.detect(payload);
+        log.debug("Detected MIME type: {}", mimeType);
+        if (!isSupportedFormat(mimeType, properties)) {
+            log.warn("Unsupported format: {}. Supported: {}", mimeType, properties.formats());
+            return null;
+        }
+
+        Consumer<String> sink = sinkFor.apply(mimeType);
+        ExtractedTextCache.Entry entry = key != null ? cache.begin(key, mimeType) : null;
+        Consumer<String> target = entry == null ? sink : segment -> {
+            entry.append(segment);
+            sink.accept(segment);
+        };
+        try {
+            Extraction extraction = workers.run(guard -> {
+                SegmentWriter out = new SegmentWriter(segmentSize, target);
+                if (mimeType.equals("application/pdf") && properties.pdf().parser().equals("pdfbox")) {
+                    ParallelPdfExtractor.Pages pages = pdfExtractor.extract(payload, out, guard);
+                    if (pages != null) {
+                        return new Extraction(mimeType, pages.truncated(), Arrays.stream(pages.pageOffsets())
+                                .mapToObj(Integer::toString)
+                                .collect(Collectors.joining(",")));
+                    }
+                }
+                return new Extraction(mimeType, extractor.extract(payload, out, guard), null);
+            });
+            if (entry != null) {
+                entry.commit(extraction.truncated(), extraction.pageOffsets());
+            }
+            return extraction;
+        } catch (Exception e) {
+            if (entry != null) {
+                entry.discard();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Sends an aborted document to the slow lane if so configured, or fails it.
+     */
+    private void divert(Message<byte[]> message, ExtractionAbortedException abort, TextExtractorProperties properties,
+                        StreamBridge streamBridge) {
+        if (abort.reason().equals("timeout") && properties.worker().onTimeout().equals("slow-lane")) {
+            log.warn("{}; sending the document to {}", abort.getMessage(), SLOW_LANE_BINDING);
+            streamBridge.send(SLOW_LANE_BINDING, message);
+            return;
+        }
+        throw abort;
+    }
+
+    /**
+     * Publishes the segments of one document, holding the most recent one back so that it can be
+     * marked as the last when parsing ends.
+     */
+    private static final class SegmentPublisher implements Consumer<String> {
+
+        private final Message<byte[]> document;
+        private final String mimeType;
+        private final Consumer<Message<String>> output;
+        private String pending;
+        private int index;
+
+        SegmentPublisher(Message<byte[]> document, String mimeType, Consumer<Message<String>> output) {
+            this.document = document;
+            this.mimeType = mimeType;
+            this.output = output;
+        }
+
+        @Override
+        public void accept(String segment) {
+            if (pending != null) {
+                publish(pending, false, false);
+            }
+            pending = segment;
+        }
+
+        /**
+         * Publishes the last segment, empty if the document has no text.
+         *
+         * @return number of segments published
+         */
+        int finish(boolean truncated) {
+            publish(pending != null ? pending : "", true, truncated);
+            pending = null;
+            return index;
+        }
+
+        private void publish(String segment, boolean last, boolean truncated) {
+            MessageBuilder<String> builder = MessageBuilder.withPayload(segment)
+                    .copyHeaders(document.getHeaders())
+                    .removeHeaders(ClaimCheck.REFERENCE_HEADER, ClaimCheck.LENGTH_HEADER)
+                    .setHeader("content-type", "text/plain")
+                    .setHeader("original-mime-type", mimeType)
+                    .setHeader(SEGMENT_INDEX_HEADER, index++)
+                    .setHeader(SEGMENT_LAST_HEADER, last);
+            if (truncated) {
+                builder.setHeader(TRUNCATED_HEADER, true);
+            }
+            output.accept(builder.build());
+        }
+    }
+
     private boolean isSupportedFormat(String mimeType, TextExtractorProperties properties) {
         var formats = properties.formats();
         if (formats.contains("pdf") && mimeType.equals("application/pdf")) return true;
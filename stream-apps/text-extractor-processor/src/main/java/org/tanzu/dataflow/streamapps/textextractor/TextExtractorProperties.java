@@ -4,13 +4,117 @@ import java.util.Set;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+/**
+ * @param maxCharacters  extracted text kept per document; the rest is dropped and the output is
+ *                       marked with a {@code text-truncated} header
+ * @param spillThreshold payload size in bytes above which the document is parsed from a temp file
+ *                       instead of from the message bytes
+ * @param tempDirectory  directory of the spilled documents
+ * @param worker         extraction worker pool
+ * @param cache          on-disk cache of extracted text
+ * @param pdf            PDF parser and page ranges
+ */
 @ConfigurationProperties(prefix = "extractor")
 public record TextExtractorProperties(
-        Set<String> formats
+        Set<String> formats,
+        int maxCharacters,
+        long spillThreshold,
+        String tempDirectory,
+        Segments segments,
+        Worker worker,
+        Cache cache,
+        Pdf pdf
 ) {
     public TextExtractorProperties {
         if (formats == null || formats.isEmpty()) {
             formats = Set.of("pdf", "docx", "txt");
         }
+        if (maxCharacters <= 0) maxCharacters = 20_000_000;
+        if (spillThreshold <= 0) spillThreshold = 8 * 1024 * 1024;
+        if (tempDirectory == null || tempDirectory.isBlank()) tempDirectory = System.getProperty("java.io.tmpdir");
+        if (segments == null) segments = new Segments(0);
+        if (worker == null) worker = new Worker(0, 0, 0, 0, null);
+        if (cache == null) cache = new Cache(false, null, 0);
+        if (pdf == null) pdf = new Pdf(null, 0, 0, false);
+    }
+
+    /**
+     * Settings for {@code extractSegments}.
+     *
+     * @param size characters per emitted segment
+     */
+    public record Segments(
+            int size
+    ) {
+        public Segments {
+            if (size <= 0) size = 1_048_576;
+        }
+    }
+
+    /**
+     * Settings for {@link ExtractionWorkers}.
+     *
+     * @param threads        documents extracted at once; also the consumer concurrency of the
+     *                       extraction bindings, which submit the documents
+     * @param queueCapacity  documents waiting for a worker before submissions are rejected
+     * @param timeoutMs      time a document may take once a worker starts parsing it; time spent
+     *                       waiting for a worker does not count
+     * @param maxParseBytes  bytes one parse may allocate before it is stopped
+     * @param onTimeout      {@code dead-letter} to fail the message, or {@code slow-lane} to send it
+     *                       to the {@code slowLane-out-0} binding
+     */
+    public record Worker(
+            int threads,
+            int queueCapacity,
+            long timeoutMs,
+            long maxParseBytes,
+            String onTimeout
+    ) {
+        public Worker {
+            if (threads <= 0) threads = 2;
+            if (queueCapacity <= 0) queueCapacity = 64;
+            if (timeoutMs <= 0) timeoutMs = 120_000;
+            if (maxParseBytes <= 0) maxParseBytes = 8L * 1024 * 1024 * 1024;
+            if (onTimeout == null || onTimeout.isBlank()) onTimeout = "dead-letter";
+        }
+    }
+
+    /**
+     * Settings for the {@link ExtractedTextCache}: texts are kept under {@code directory} up to
+     * {@code maxBytes} in total.
+     */
+    public record Cache(
+            boolean enabled,
+            String directory,
+            long maxBytes
+    ) {
+        public Cache {
+            if (directory == null || directory.isBlank()) directory = System.getProperty("java.io.tmpdir") + "/extractor-cache";
+            if (maxBytes <= 0) maxBytes = 256L * 1024 * 1024;
+        }
+    }
+
+    /**
+     * Settings for PDF extraction.
+     *
+     * @param parser           {@code tika} or {@code pdfbox} (the {@link ParallelPdfExtractor}); the
+     *                         two do not give the same text for the same PDF
+     * @param parallelMinPages pages from which {@code pdfbox} strips a PDF in parallel page ranges
+     * @param pagesPerRange    pages per range
+     * @param pageOffsets      whether to add the {@code page-offsets} header to the extracted text,
+     *                         which only {@code pdfbox} produces
+     */
+    public record Pdf(
+            String parser,
+            int parallelMinPages,
+            int pagesPerRange,
+            boolean pageOffsets
+    ) {
+        public Pdf {
+            if (parser == null || parser.isBlank()) parser = "tika";
+            parser = parser.toLowerCase();
+            if (parallelMinPages <= 0) parallelMinPages = 64;
+            if (pagesPerRange <= 0) pagesPerRange = 16;
+        }
     }
 }
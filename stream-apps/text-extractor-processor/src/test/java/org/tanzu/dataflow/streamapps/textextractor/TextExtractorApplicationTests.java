@@ -1,23 +1,92 @@
 package org.tanzu.dataflow.streamapps.textextractor;
 
+import java.nio.ByteBuffer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.font.Standard14Fonts;
+import org.apache.tika.Tika;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Status;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.config.BindingServiceProperties;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.test.context.TestPropertySource;
+
+import org.tanzu.dataflow.streamapps.common.BlobStore;
+import org.tanzu.dataflow.streamapps.common.ClaimCheck;
+import org.tanzu.dataflow.streamapps.common.ClaimCheckProperties;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 @SpringBootTest
+@TestPropertySource(properties = {
+        "extractor.cache.enabled=true",
+        "extractor.cache.directory=target/extractor-cache"
+})
 class TextExtractorApplicationTests {
 
     @Autowired
     private Function<Message<byte[]>, Message<String>> extractText;
 
+    @Autowired
+    private TextExtractorConfiguration configuration;
+
+    @Autowired
+    private Tika tika;
+
+    @Autowired
+    private ClaimCheck claimCheck;
+
+    @Autowired
+    private BlobStore blobStore;
+
+    @Autowired
+    private ExtractionWorkers workers;
+
+    @Autowired
+    private ExtractedTextCache cache;
+
+    @Autowired
+    private ParallelPdfExtractor pdfExtractor;
+
+    @Autowired
+    private TextExtractorProperties extractorProperties;
+
+    @Autowired
+    private BindingServiceProperties bindingServiceProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @TempDir
+    Path cacheDirectory;
+
     @Test
     void extractsPlainText() {
         String input = "Hello, this is a plain text document.";
@@ -30,4 +99,312 @@ class TextExtractorApplicationTests {
         assertThat(result).isNotNull();
         assertThat(result.getPayload()).contains("Hello, this is a plain text document.");
     }
+
+    @Test
+    void extractsTextBeyondTheParseToStringLimit() {
+        String input = "Line of a long plain text document.\n".repeat(5_000);
+
+        Message<String> result = extractText.apply(MessageBuilder
+                .withPayload(input.getBytes(StandardCharsets.UTF_8))
+                .build());
+
+        assertThat(result.getPayload().strip()).isEqualTo(input.strip());
+        assertThat(result.getHeaders()).doesNotContainKey("text-truncated");
+    }
+
+    @Test
+    void extractSegmentsEmitsBoundedSegmentsInOrder() {
+        // A 1 KiB spill threshold sends this document through the temp-file path as well
+        TextExtractorProperties properties = new TextExtractorProperties(
+                Set.of("txt"), 0, 1024, null, new TextExtractorProperties.Segments(500), null, null, null);
+        DocumentExtractor extractor = new DocumentExtractor(tika, properties, new SimpleMeterRegistry());
+        byte[] input = "Segmented plain text document line.\n".repeat(300).getBytes(StandardCharsets.UTF_8);
+        List<Message<String>> segments = new ArrayList<>();
+
+        configuration.extractSegments(extractor, pdfExtractor, properties, claimCheck, workers, cache, MessageBuilder.withPayload(input)
+                .setHeader("source", "doc-1")
+                .build(), segments::add);
+
+        assertThat(segments).hasSizeGreaterThan(10);
+        StringBuilder joined = new StringBuilder();
+        for (int i = 0; i < segments.size(); i++) {
+            Message<String> segment = segments.get(i);
+            assertThat(segment.getPayload().length()).isLessThanOrEqualTo(500);
+            assertThat(segment.getHeaders())
+                    .containsEntry("segment-index", i)
+                    .containsEntry("segment-last", i == segments.size() - 1)
+                    .containsEntry("source", "doc-1")
+                    .containsEntry("original-mime-type", "text/plain");
+            joined.append(segment.getPayload());
+        }
+        String whole = extractText.apply(MessageBuilder.withPayload(input).build()).getPayload();
+        assertThat(joined.toString()).isEqualTo(whole);
+    }
+
+    @Test
+    void extractsClaimCheckedDocument() {
+        ClaimCheck sender = new ClaimCheck(blobStore, new ClaimCheckProperties(true, 1024, null, 0));
+        String input = "Plain text document sent by reference.\n".repeat(100);
+        Message<byte[]> checked = sender.checkIn(MessageBuilder
+                .withPayload(input.getBytes(StandardCharsets.UTF_8))
+                .setHeader("source", "doc-1")
+                .build());
+        assertThat(checked.getPayload()).isEmpty();
+
+        Message<String> result = extractText.apply(checked);
+
+        assertThat(result.getPayload().strip()).isEqualTo(input.strip());
+        assertThat(result.getHeaders())
+                .containsEntry("source", "doc-1")
+                .containsEntry("original-mime-type", "text/plain")
+                .doesNotContainKeys(ClaimCheck.REFERENCE_HEADER, ClaimCheck.LENGTH_HEADER);
+    }
+
+    @Test
+    void truncatesAtMaxCharacters() throws Exception {
+        TextExtractorProperties properties = new TextExtractorProperties(Set.of("txt"), 100, 0, null, null, null, null, null);
+        DocumentExtractor extractor = new DocumentExtractor(tika, properties, new SimpleMeterRegistry());
+        StringBuilder text = new StringBuilder();
+
+        boolean truncated = extractor.extract("x".repeat(1_000).getBytes(StandardCharsets.UTF_8),
+                new SegmentWriter(Integer.MAX_VALUE, text::append));
+
+        assertThat(truncated).isTrue();
+        assertThat(text).hasSize(100);
+    }
+
+    @Test
+    void servesRepeatedDocumentsFromTheCache() {
+        byte[] input = ("Cached plain text document " + UUID.randomUUID() + ".\n").repeat(50)
+                .getBytes(StandardCharsets.UTF_8);
+        double hits = meterRegistry.get("extractor.cache.hits").counter().count();
+
+        Message<String> first = extractText.apply(MessageBuilder.withPayload(input).build());
+        Message<String> second = extractText.apply(MessageBuilder.withPayload(input).setHeader("source", "replay").build());
+
+        assertThat(meterRegistry.get("extractor.cache.hits").counter().count()).isEqualTo(hits + 1);
+        assertThat(second.getPayload()).isEqualTo(first.getPayload());
+        assertThat(second.getHeaders())
+                .containsEntry("original-mime-type", first.getHeaders().get("original-mime-type"))
+                .containsEntry("source", "replay");
+    }
+
+    @Test
+    void cacheEvictsLeastRecentlyUsedTexts() throws Exception {
+        TextExtractorProperties properties = new TextExtractorProperties(Set.of("txt"), 0, 0, null, null, null,
+                new TextExtractorProperties.Cache(true, cacheDirectory.toString(), 350), null);
+        ExtractedTextCache lru = new ExtractedTextCache(properties, new SimpleMeterRegistry());
+        for (String key : List.of("a", "b")) {
+            ExtractedTextCache.Entry entry = lru.begin(key, "text/plain");
+            entry.append("x".repeat(150));
+            entry.commit(false, null);
+        }
+        lru.get("a").close();
+
+        ExtractedTextCache.Entry entry = lru.begin("c", "text/plain");
+        entry.append("y".repeat(150));
+        entry.commit(true, "0,75");
+
+        assertThat(lru.get("b")).isNull();
+        try (ExtractedTextCache.Hit hit = lru.get("c")) {
+            assertThat(hit.truncated()).isTrue();
+            assertThat(hit.pageOffsets()).isEqualTo("0,75");
+            assertThat(hit.mimeType()).isEqualTo("text/plain");
+            assertThat(hit.text().transferTo(Writer.nullWriter())).isEqualTo(150);
+        }
+        lru.get("a").close();
+        assertThat(new ExtractedTextCache(properties, new SimpleMeterRegistry()).get("a")).isNotNull();
+    }
+
+    @Test
+    void abortsDocumentsThatRunPastTheTimeout() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        try (ExtractionWorkers slowWorkers = new ExtractionWorkers(
+                new TextExtractorProperties.Worker(1, 1, 200, 0, null), meterRegistry)) {
+            long start = System.nanoTime();
+
+            assertThatThrownBy(() -> slowWorkers.run(guard -> {
+                while (true) {
+                    guard.check();
+                    Thread.sleep(10);
+                }
+            })).isInstanceOfSatisfying(ExtractionAbortedException.class,
+                    e -> assertThat(e.reason()).isEqualTo("timeout"));
+
+            assertThat((System.nanoTime() - start) / 1_000_000).isLessThan(5_000);
+            assertThat(meterRegistry.get("extractor.document.aborted").tag("reason", "timeout").counter().count())
+                    .isEqualTo(1);
+        }
+    }
+
+    @Test
+    void replacesWorkersHeldByParsesThatIgnoreTheTimeout() throws Exception {
+        AtomicBoolean release = new AtomicBoolean();
+        try (ExtractionWorkers oneWorker = new ExtractionWorkers(
+                new TextExtractorProperties.Worker(1, 1, 200, 0, null), new SimpleMeterRegistry())) {
+            ExtractionWorkersHealthIndicator health = new ExtractionWorkersHealthIndicator(oneWorker);
+
+            assertThatThrownBy(() -> oneWorker.run(guard -> {
+                // Neither checks the guard nor reacts to the interrupt
+                while (!release.get()) {
+                    Thread.onSpinWait();
+                }
+                return "late";
+            })).isInstanceOfSatisfying(ExtractionAbortedException.class,
+                    e -> assertThat(e.reason()).isEqualTo("timeout"));
+            assertThat(oneWorker.stuck()).isEqualTo(1);
+            assertThat(health.health().getStatus()).isEqualTo(Status.DOWN);
+
+            String next = oneWorker.run(guard -> "next document");
+            assertThat(next).isEqualTo("next document");
+
+            release.set(true);
+            for (int wait = 0; oneWorker.stuck() > 0 && wait < 500; wait++) {
+                Thread.sleep(10);
+            }
+            assertThat(oneWorker.stuck()).isZero();
+            assertThat(health.health().getStatus()).isEqualTo(Status.UP);
+        } finally {
+            release.set(true);
+        }
+    }
+
+    @Test
+    void startsTheTimeoutWhenAWorkerPicksUpTheDocument() throws Exception {
+        try (ExtractionWorkers oneWorker = new ExtractionWorkers(
+                new TextExtractorProperties.Worker(1, 1, 200, 0, null), new SimpleMeterRegistry())) {
+            CountDownLatch firstStarted = new CountDownLatch(1);
+            CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return oneWorker.run(guard -> {
+                        firstStarted.countDown();
+                        new CountDownLatch(1).await();
+                        return "first";
+                    });
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            });
+            firstStarted.await();
+
+            // Queued until the first document times out, so its own deadline would already have
+            // passed when it starts if the wait counted against it
+            String second = oneWorker.run(guard -> {
+                assertThatThrownBy(first::join).hasCauseInstanceOf(ExtractionAbortedException.class);
+                return "second";
+            });
+            assertThat(second).isEqualTo("second");
+        }
+    }
+
+    @Test
+    void extractionBindingsConsumeWithOneThreadPerWorker() {
+        assertThat(bindingServiceProperties.getConsumerProperties("extractText-in-0").getConcurrency())
+                .isEqualTo(extractorProperties.worker().threads());
+        assertThat(bindingServiceProperties.getConsumerProperties("extractSegments-in-0").getConcurrency())
+                .isEqualTo(extractorProperties.worker().threads());
+    }
+
+    @Test
+    void stopsParsesThatExceedTheMemoryGuard() {
+        TextExtractorProperties properties = new TextExtractorProperties(Set.of("txt"), 0, 0, null, null,
+                new TextExtractorProperties.Worker(1, 1, 0, 1024 * 1024, null), null, null);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        DocumentExtractor extractor = new DocumentExtractor(tika, properties, meterRegistry);
+        ByteBuffer input = ByteBuffer.wrap("A line of a document too big for the guard.\n".repeat(100_000)
+                .getBytes(StandardCharsets.UTF_8));
+
+        try (ExtractionWorkers guardedWorkers = new ExtractionWorkers(properties.worker(), meterRegistry)) {
+            assertThatThrownBy(() -> guardedWorkers.run(guard ->
+                    extractor.extract(input, new SegmentWriter(Integer.MAX_VALUE, text -> { }), guard)))
+                    .isInstanceOfSatisfying(ExtractionAbortedException.class,
+                            e -> assertThat(e.reason()).isEqualTo("memory"));
+            assertThat(meterRegistry.get("extractor.document.aborted").tag("reason", "memory").counter().count())
+                    .isEqualTo(1);
+        }
+    }
+
+    @Test
+    void stripsPdfsInPageRangesWithTheSameTextOnAnyPool() throws Exception {
+        ByteBuffer pdf = ByteBuffer.wrap(pdf(40));
+        TextExtractorProperties single = pdfProperties(0, Integer.MAX_VALUE);
+        TextExtractorProperties ranges = pdfProperties(0, 7);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            StringBuilder expected = new StringBuilder();
+            ParallelPdfExtractor.Pages expectedPages = new ParallelPdfExtractor(single, pool, new SimpleMeterRegistry())
+                    .extract(pdf, new SegmentWriter(Integer.MAX_VALUE, expected::append), ParseGuard.none());
+            StringBuilder text = new StringBuilder();
+            ParallelPdfExtractor.Pages pages = new ParallelPdfExtractor(ranges, pool, new SimpleMeterRegistry())
+                    .extract(pdf, new SegmentWriter(Integer.MAX_VALUE, text::append), ParseGuard.none());
+
+            assertThat(text.toString()).isEqualTo(expected.toString());
+            assertThat(pages.pageOffsets()).containsExactly(expectedPages.pageOffsets()).hasSize(40);
+            for (int page = 0; page < 40; page++) {
+                assertThat(text.substring(pages.pageOffsets()[page])).startsWith("Page " + (page + 1) + " of the report");
+            }
+            assertThat(pages.truncated()).isFalse();
+
+            StringBuilder cut = new StringBuilder();
+            int limit = pages.pageOffsets()[10] + 5;
+            ParallelPdfExtractor.Pages truncated = new ParallelPdfExtractor(pdfProperties(limit, 7), pool,
+                    new SimpleMeterRegistry()).extract(pdf, new SegmentWriter(100, cut::append), ParseGuard.none());
+            assertThat(truncated.truncated()).isTrue();
+            assertThat(cut.toString()).isEqualTo(text.substring(0, limit));
+            assertThat(truncated.pageOffsets()).hasSize(11);
+
+            StringBuilder sequential = new StringBuilder();
+            ParallelPdfExtractor.Pages sequentialPages = new ParallelPdfExtractor(ranges, new ForkJoinPool(1),
+                    new SimpleMeterRegistry()).extract(pdf, new SegmentWriter(100, sequential::append), ParseGuard.none());
+            assertThat(sequential.toString()).isEqualTo(text.toString());
+            assertThat(sequentialPages.pageOffsets()).containsExactly(pages.pageOffsets());
+
+            StringBuilder small = new StringBuilder();
+            ParallelPdfExtractor.Pages smallPages = new ParallelPdfExtractor(ranges, pool, new SimpleMeterRegistry())
+                    .extract(ByteBuffer.wrap(pdf(5)), new SegmentWriter(100, small::append), ParseGuard.none());
+            assertThat(small.toString()).isEqualTo(text.substring(0, pages.pageOffsets()[5]));
+            assertThat(smallPages.pageOffsets()).containsExactly(Arrays.copyOf(pages.pageOffsets(), 5));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void keysCachedTextByPdfParser() {
+        ByteBuffer payload = ByteBuffer.wrap("%PDF-1.7".getBytes(StandardCharsets.UTF_8));
+        ExtractedTextCache tika = new ExtractedTextCache(
+                new TextExtractorProperties(Set.of("pdf"), 0, 0, null, null, null, null, null), new SimpleMeterRegistry());
+        ExtractedTextCache pdfbox = new ExtractedTextCache(pdfProperties(0, 7), new SimpleMeterRegistry());
+
+        assertThat(tika.key(payload)).isNotEqualTo(pdfbox.key(payload))
+                .isEqualTo(new ExtractedTextCache(new TextExtractorProperties(Set.of("pdf"), 0, 0, null, null, null, null,
+                        new TextExtractorProperties.Pdf("TIKA", 0, 0, false)), new SimpleMeterRegistry()).key(payload));
+    }
+
+    private static TextExtractorProperties pdfProperties(int maxCharacters, int pagesPerRange) {
+        return new TextExtractorProperties(Set.of("pdf"), maxCharacters, 0, null, null, null, null,
+                new TextExtractorProperties.Pdf("pdfbox", 10, pagesPerRange, true));
+    }
+
+    private static byte[] pdf(int pages) throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            PDType1Font font = new PDType1Font(Standard14Fonts.FontName.HELVETICA);
+            for (int page = 1; page <= pages; page++) {
+                PDPage pdPage = new PDPage();
+                document.addPage(pdPage);
+                try (PDPageContentStream content = new PDPageContentStream(document, pdPage)) {
+                    content.beginText();
+                    content.setFont(font, 12);
+                    content.newLineAtOffset(72, 700);
+                    content.showText("Page " + page + " of the report.");
+                    content.newLineAtOffset(0, -16);
+                    content.showText("Findings for section " + page + " continue here.");
+                    content.endText();
+                }
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            document.save(bytes);
+            return bytes.toByteArray();
+        }
+    }
 }